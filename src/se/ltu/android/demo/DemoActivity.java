@@ -23,6 +23,8 @@ public class DemoActivity extends Activity {
 	private static final String TAG = "TestGL";
 	private static final boolean USE_VBOS = true;
 	private static final boolean USE_SENSORS = true;
+	// hold frames to the refresh rate of the display, coalescing requests
+	private static final boolean VSYNC_ALIGNED = false;
 	private DemoGLSurfaceView mGLView;
 	private SensorManager mSensorManager;
 	private ArrayList<Sensor> sensors;
@@ -57,6 +59,9 @@ public class DemoActivity extends Activity {
         setContentView(mGLView);
         mGLView.requestFocus();
         mGLView.setRenderWhenDirty(true);
+        if(VSYNC_ALIGNED) {
+        	mGLView.setVsyncAligned(getWindowManager().getDefaultDisplay().getRefreshRate());
+        }
         mGLView.setFocusableInTouchMode(true);
         
         mGameThread = new DemoGameThread(mGLView);
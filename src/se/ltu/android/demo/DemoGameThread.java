@@ -1,33 +1,43 @@
 /* SVN FILE: $Id$ */
 package se.ltu.android.demo;
 
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.ArrayList;
 
 import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
 import android.util.Log;
 import android.view.animation.AccelerateDecelerateInterpolator;
 
 import se.ltu.android.demo.scene.Board;
+import se.ltu.android.demo.scene.AsyncLoader;
 import se.ltu.android.demo.scene.CameraLeaf;
 import se.ltu.android.demo.scene.LightNode;
+import se.ltu.android.demo.scene.LodNode;
+import se.ltu.android.demo.scene.MeshCache;
+import se.ltu.android.demo.scene.MeshOptimizer;
 import se.ltu.android.demo.scene.Node;
 import se.ltu.android.demo.scene.PieceData;
+import se.ltu.android.demo.scene.RenderQueue;
+import se.ltu.android.demo.scene.RenderQueueBuffer;
 import se.ltu.android.demo.scene.Spatial;
 import se.ltu.android.demo.scene.TriMesh;
+import se.ltu.android.demo.scene.UploadScheduler;
 import se.ltu.android.demo.scene.animation.AnimationListener;
 import se.ltu.android.demo.scene.animation.KeyFrame;
 import se.ltu.android.demo.scene.animation.KeyFrameAnimation;
 import se.ltu.android.demo.scene.camera.Camera;
+import se.ltu.android.demo.scene.intersection.BVHTree;
+import se.ltu.android.demo.scene.intersection.PickContext;
 import se.ltu.android.demo.scene.intersection.PickResult;
-import se.ltu.android.demo.scene.intersection.Ray;
 import se.ltu.android.demo.scene.shapes.*;
 import se.ltu.android.demo.scene.state.Light;
 import se.ltu.android.demo.scene.state.Material;
 import se.ltu.android.demo.sensors.SensorHandler;
+import se.ltu.android.demo.util.Benchmarks;
+import se.ltu.android.demo.util.FrameStats;
 import se.ltu.android.demo.util.ObjLoader;
 
 /**
@@ -38,30 +48,44 @@ import se.ltu.android.demo.util.ObjLoader;
  * @version $Revision$
  * @lastmodified $Date$
  */
-public class DemoGameThread extends Thread implements AnimationListener {
+public class DemoGameThread extends Thread implements AnimationListener,
+		AsyncLoader.Listener {
 	private final static String TAG = "GameThread";
 	private final static int TARGET_FPS = 25;
-	/**
-	 * [0] = x coordinate<br>
-	 * [1] = y coordinate<br>
-	 * [2] = type tap (1 = single, 2 = double, otherwise coordinates are ignored)
-	 */
-	private static float[] tapCoords = new float[3];
-	/**
-	 * [0] = x coordinate<br>
-	 * [1] = y coordinate<br>
-	 * [2] = coordinate change (0 = false, true otherwise)<br>
-	 * [3] = on click (0 = false, true otherwise)<br>
-	 */
-	private static float[] trackInput = new float[4];
-	private long timePerFrame = 1000;
-	private long timeTarget;
+	// length of an update of the world, 50 updates per second
+	private final static int STEP_MILLIS = 20;
+	// updates run at most per frame to catch up, the rest is dropped
+	private final static int MAX_STEPS = 5;
+	// input events handled in order, the on* methods below must only be
+	// called from the UI thread since the queue has a single producer
+	private static InputQueue input = new InputQueue(64);
+	private InputQueue.Event event = new InputQueue.Event();
+	private volatile long frameNanos;
+	private volatile int stepMillis = STEP_MILLIS;
+	// frame times, the time between published frames
+	private FrameStats frameStats = new FrameStats(256);
+	private long lastStats = 0;
+	private long droppedNanos = 0;
+	private boolean rebuildPicking = false;
 	private Node world;
-	private TriMesh[][] board_data = new TriMesh[8][8];
+	private Spatial[][] board_data = new Spatial[8][8];
+	// smallest screen size of each level of detail of the pieces
+	private static final float[] LOD_SIZES = { 0.12f, 0.07f, 0 };
 	private DemoGLSurfaceView mGLView;
 	private boolean isRunning = true;
 	private boolean isPaused = false;
-	private TriMesh pickedMesh;
+	private Spatial pickedMesh;
+	private RenderQueueBuffer queues;
+	private BVHTree pickTree = new BVHTree();
+	private PickContext pickContext = new PickContext();
+	
+	// the pieces are loaded in the background
+	private AsyncLoader assetLoader = new AsyncLoader(2);
+	private MeshCache meshCache;
+	private UploadScheduler uploads;
+	private long startTime;
+	private boolean firstFrame = true;
+	private boolean loading = true;
 	
 	// 
 	private boolean moving_piece = false;
@@ -87,7 +111,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 	public DemoGameThread(DemoGLSurfaceView glview) {
 		setName("GameThread");
 		mGLView = glview;
-		timeTarget = 1000 / TARGET_FPS;
+		setTargetFps(TARGET_FPS);
 		camList = new Camera[4];
 
 		camList[0] = new Camera();
@@ -109,49 +133,169 @@ public class DemoGameThread extends Thread implements AnimationListener {
 	 */
 	@Override
 	public void run() {
+		startTime = System.nanoTime();
+		queues = mGLView.getRenderer().getQueues();
+		meshCache = mGLView.getRenderer().getMeshCache();
+		meshCache.setQuantized(true);
+		uploads = mGLView.getRenderer().getUploads();
 		createWorld();
-		mGLView.getRenderer().setCamera(camList[iCam]);
-		mGLView.getRenderer().setScene(world);
 
-		long lastTime = System.currentTimeMillis();
-		long timeSleep;
+		long lastTime = System.nanoTime();
+		long accumulator = 0;
+		long now, elapsed, stepNanos, timeSleep;
+		int steps;
 		// Good place to put a method trace
 		//Debug.startMethodTracing("mtrace");
 		while (isRunning) {
-			while (isPaused && isRunning) {
-				try {
-					sleep(100);
-				} catch (InterruptedException e) {
+			if (isPaused) {
+				while (isPaused && isRunning) {
+					try {
+						sleep(100);
+					} catch (InterruptedException e) {
+					}
 				}
+				// do not catch up on the time spent paused
+				lastTime = System.nanoTime();
 			}
+			now = System.nanoTime();
+			elapsed = now - lastTime;
+			lastTime = now;
+			frameStats.add(elapsed);
 			/*
-			 * This thread have some control over the frame rate
-			 * especially timePerFrame will be useful in animations
+			 * The world is updated in steps of fixed length, as many as
+			 * fit in the time since the last frame, so animations do not
+			 * depend on the frame rate or its jitter. The time left over
+			 * is carried to the next frame and the frame is drawn that
+			 * far between the last two steps. If we fall too far behind
+			 * (a slow frame or a garbage collection), the time beyond
+			 * MAX_STEPS steps is dropped rather than caught up with.
 			 */
-			timePerFrame = System.currentTimeMillis() - lastTime;
-			lastTime = System.currentTimeMillis();
-			update();
+			stepNanos = stepMillis * 1000000L;
+			accumulator += elapsed;
+			if (accumulator > MAX_STEPS * stepNanos) {
+				droppedNanos += accumulator - MAX_STEPS * stepNanos;
+				accumulator = MAX_STEPS * stepNanos;
+			}
+			steps = (int) (accumulator / stepNanos);
+			accumulator -= steps * stepNanos;
+			update(steps, (float) accumulator / stepNanos);
+			//printFrameStats();
 			/* 
 			 * We want to sleep because we don't need to update as fast as possible.
 			 * This way the renderer gets more time and we get a slightly higher frame rate.
-			 * The last part on timeSleep (+ lastTime - System.currentTimeMillis()) is rather
-			 * important to get smooth animations.
 			 */
-			timeSleep = timeTarget - timePerFrame + lastTime - System.currentTimeMillis();
+			timeSleep = frameNanos - (System.nanoTime() - lastTime);
 			if (timeSleep > 0) {
 				try {
-					sleep(timeSleep);
+					sleep(timeSleep / 1000000, (int) (timeSleep % 1000000));
 				} catch (InterruptedException e) {
 				}
 			}
 		}
+		assetLoader.shutdown();
+		// the next world gets the same gl light numbers
+		((LightNode) world).getLight().release();
 	}
 
-	private void update() {
+	/*
+	 * Handles input, updates the world the given number of steps and
+	 * publishes a frame alpha of a step past the previous state
+	 */
+	private void update(int steps, float alpha) {
 		updateInput();
-		world.update(timePerFrame); // updates animations
+		if(steps > 0) {
+			// attached spatials need an update before they are drawn
+			rebuildPicking |= assetLoader.update() > 0;
+			for(int i = 0; i < steps; i++) {
+				world.update(stepMillis); // updates animations
+				world.updateGeometricState();
+			}
+			if(rebuildPicking) {
+				pickTree.build(world);
+				rebuildPicking = false;
+			} else {
+				pickTree.refit();
+			}
+		}
 		updateCamera();
+		publishFrame(alpha);
 		mGLView.requestRender();
+		if(firstFrame) {
+			firstFrame = false;
+			Log.d(TAG, "First frame "+(System.nanoTime() - startTime) / 1000000+" ms after start");
+		}
+		if(loading && assetLoader.isIdle()) {
+			loading = false;
+			Log.d(TAG, "Fully loaded "+(System.nanoTime() - startTime) / 1000000+" ms after start");
+		}
+	}
+	
+	/**
+	 * Fills the back render queue with the visible part of the world, as
+	 * seen from the current camera, and hands it over to the renderer.
+	 */
+	private void publishFrame(float alpha) {
+		RenderQueue queue = queues.getBack();
+		queue.clear(Camera.getProjectionM(), camList[iCam].getModelM());
+		queue.setInterpolation(alpha);
+		world.queue(queue);
+		queue.sort();
+		queue.buildBatches();
+		queues.publish();
+	}
+
+	// frame time percentiles and the render requests handled by the GL
+	// thread every few seconds, if called once per frame
+	@SuppressWarnings("unused")
+	private void printFrameStats() {
+		long now = System.nanoTime();
+		if(now - lastStats >= 5000000000L) {
+			Log.d(TAG, "frame time p50: "+frameStats.getP50() / 1000
+					+" us, p99: "+frameStats.getP99() / 1000
+					+" us, max: "+frameStats.getMax() / 1000
+					+" us, dropped: "+droppedNanos / 1000000+" ms");
+			long presented = Math.max(mGLView.getPresentedFrames(), 1);
+			Log.d(TAG, "render requests: "+mGLView.getRenderRequests()
+					+" (coalesced: "+mGLView.getCoalescedRequests()
+					+"), frames: "+presented
+					+", GL thread wakeups: "+mGLView.getWakeups()
+					+", request to present: "+mGLView.getLatencyNanos() / presented / 1000
+					+" us (max: "+mGLView.getMaxLatencyNanos() / 1000
+					+" us), GL thread CPU: "+mGLView.getGLThreadCpuNanos() / 1000000+" ms");
+			long handled = Math.max(input.getHandled(), 1);
+			Log.d(TAG, "input events: "+input.getHandled()
+					+", dropped: "+input.getDropped()
+					+", max depth: "+input.getMaxDepth()
+					+", event to handling: "+input.getLatencyNanos() / handled / 1000
+					+" us (max: "+input.getMaxLatencyNanos() / 1000+" us)");
+			lastStats = now;
+		}
+	}
+
+	/**
+	 * Sets how often a frame is published. The world is still updated in
+	 * steps of the same length, see <code>setTimeStep</code>.
+	 * @param fps frames per second
+	 */
+	public void setTargetFps(int fps) {
+		frameNanos = 1000000000L / Math.max(fps, 1);
+	}
+
+	/**
+	 * Sets the length of an update of the world. Animations advance by
+	 * exactly this much per update, however long the frames are.
+	 * @param millis length of a step in milliseconds
+	 */
+	public void setTimeStep(int millis) {
+		stepMillis = Math.max(millis, 1);
+	}
+
+	/**
+	 * @return frame times of the most recent frames, only to be read
+	 * on this thread or after it has stopped
+	 */
+	public FrameStats getFrameStats() {
+		return frameStats;
 	}
 
 	private void updateCamera() {
@@ -161,39 +305,41 @@ public class DemoGameThread extends Thread implements AnimationListener {
 	}
 
 	private void updateInput() {
-		checkTap();
-		checkTrack();
+		while (input.poll(event)) {
+			switch (event.type) {
+			case InputQueue.SINGLE_TAP:
+			case InputQueue.DOUBLE_TAP:
+				checkTap(event);
+				break;
+			case InputQueue.TRACKBALL_MOVE:
+			case InputQueue.TRACKBALL_CLICK:
+				checkTrack(event);
+				break;
+			}
+		}
 	}
 
-	/**
-	 * @return
-	 */
-	private void checkTap() {
-		Ray pickRay = null;
-		PickResult result = null;
+	private void checkTap(InputQueue.Event tap) {
 		int nTaps = 0;
 
-		synchronized (tapCoords) {
-			if (tapCoords[2] == 1 && !moving_piece) {
-				nTaps = 1;
-				pickRay = camList[iCam].calculatePickRay(tapCoords[0],
-						tapCoords[1]);
-			}
-			if (tapCoords[2] == 2 && !moving_camera) {
-				// only move camera 0 and iCamSensor (straight above and sensor camera)
-				if(iCam == 0 || iCam == iCamSensor) {
-					nTaps = 2;
-					pickRay = camList[iCam].calculatePickRay(tapCoords[0],
-							tapCoords[1]);
-				}
+		if (tap.type == InputQueue.SINGLE_TAP && !moving_piece) {
+			nTaps = 1;
+			camList[iCam].calculatePickRay(tap.x, tap.y, pickContext);
+		}
+		if (tap.type == InputQueue.DOUBLE_TAP && !moving_camera) {
+			// only move camera 0 and iCamSensor (straight above and sensor camera)
+			if(iCam == 0 || iCam == iCamSensor) {
+				nTaps = 2;
+				camList[iCam].calculatePickRay(tap.x, tap.y, pickContext);
 			}
-			tapCoords[2] = 0;
 		}
-		if (pickRay != null) {
-			result = new PickResult();
-			world.calculatePick(pickRay, result);
+		if (nTaps == 0) {
+			return;
 		}
-		if (result == null || !result.hasResult()) {
+		PickResult result = pickContext.getResult();
+		pickContext.reset();
+		pickTree.calculatePick(pickContext.getRay(), result);
+		if (!result.hasResult()) {
 			return;
 		}
 		if(nTaps == 1) {
@@ -204,38 +350,31 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		}
 	}
 
-	private void checkTrack() {
-		synchronized (trackInput) {
-			if (trackInput[3] != 0 && !moving_camera) {
-				// switch camera
-				iCam++;
-				if (iCam == camList.length) {
-					iCam = 0;
-				}
-				mGLView.getRenderer().setCamera(camList[iCam]);
+	private void checkTrack(InputQueue.Event track) {
+		if (track.type == InputQueue.TRACKBALL_CLICK && !moving_camera) {
+			// switch camera
+			iCam++;
+			if (iCam == camList.length) {
+				iCam = 0;
 			}
-			trackInput[3] = 0;
-			if (trackInput[2] != 0) {
-				float[] pos = camList[iCam].getPosition();
-				float newpos = pos[2] + trackInput[1];
-				switch(iCam) {
-				case 0:
-					newpos = clamp(-1, 15, newpos);
-					break;
-				case 1:
-					newpos = clamp(-15, 15, newpos);
-					break;
-					default:
-						newpos = clamp(-1, 9, newpos);
-				}
-				if(iCam == 0 || iCam == 1) {
-					camList[iCam].setPosition(pos[0], pos[1], newpos);
-				} else {
-					camList[iCam].lookAt(pos[0], pos[1], newpos, 0, 0, -2.9f, 0, 0, 1);
-				}
-				trackInput[0] = 0;
-				trackInput[1] = 0;
-				trackInput[2] = 0;
+		}
+		if (track.type == InputQueue.TRACKBALL_MOVE) {
+			float[] pos = camList[iCam].getPosition();
+			float newpos = pos[2] + track.y;
+			switch(iCam) {
+			case 0:
+				newpos = clamp(-1, 15, newpos);
+				break;
+			case 1:
+				newpos = clamp(-15, 15, newpos);
+				break;
+				default:
+					newpos = clamp(-1, 9, newpos);
+			}
+			if(iCam == 0 || iCam == 1) {
+				camList[iCam].setPosition(pos[0], pos[1], newpos);
+			} else {
+				camList[iCam].lookAt(pos[0], pos[1], newpos, 0, 0, -2.9f, 0, 0, 1);
 			}
 		}
 	}
@@ -257,7 +396,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		Log.d(TAG, "Single tap");
 		Spatial spatial = result.getClosest();
 		if (spatial.hasData() && (spatial.getData() instanceof PieceData)) {
-			checkPickPiece((TriMesh)spatial);
+			checkPickPiece(spatial);
 			return;
 		} 
 		if (spatial.hasParent() && spatial.getParent().getName().equals("Board")) {
@@ -322,7 +461,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		}
 	}
 
-	private void checkPickPiece(TriMesh spatial) {
+	private void checkPickPiece(Spatial spatial) {
 		if (pickedMesh != null) {
 			if(spatial.equals(pickedMesh)) {
 				// picked the previously selected piece
@@ -338,6 +477,27 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		selectPick(spatial);
 	}
 
+	/**
+	 * Replaces a placeholder with its loaded piece on the board.
+	 */
+	public void onLoaded(Spatial placeholder, Spatial piece) {
+		uploads.register(piece);
+		for(int col = 0; col < 8; col++) {
+			for(int row = 0; row < 8; row++) {
+				if(board_data[col][row] == placeholder) {
+					board_data[col][row] = piece;
+				}
+			}
+		}
+		if(pickedMesh == placeholder) {
+			selectPick(piece);
+		} else if(((PieceData)piece.getData()).isDark()) {
+			piece.setMaterial(darkMat);
+		} else {
+			piece.setMaterial(lightMat);
+		}
+	}
+
 	private void unselectPick() {
 		if(((PieceData)pickedMesh.getData()).isDark()) {
 			pickedMesh.setMaterial(darkMat);
@@ -347,7 +507,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		pickedMesh = null;		
 	}
 	
-	private void selectPick(TriMesh spatial) {
+	private void selectPick(Spatial spatial) {
 		pickedMesh = spatial;
 		if(((PieceData)pickedMesh.getData()).isDark()) {
 			pickedMesh.setMaterial(darkMatPicked);
@@ -372,7 +532,6 @@ public class DemoGameThread extends Thread implements AnimationListener {
 
 	private void createWorld() {
 		// world = new Node("Root Node");
-		TriMesh mesh;
 		Board board;
 		Quad quad;
 		
@@ -419,83 +578,22 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		darkMatPicked.setAmbient(0.26f, 0.82f, 1, 1);
 		darkMatPicked.setDiffuse(0.26f, 0.82f, 1, 1);
 		
-		PieceData pData;
-		
-		try {
-			char col = 'c';
-			int row = 2;
-			TriMesh pawn = new TriMesh("Pawn");
-			InputStream stream = mGLView.getContext().getResources().openRawResource(R.raw.pawn);
-			DataInputStream dis = new DataInputStream(stream);
-			pawn.importModel(dis);
-			pawn.setLocalTranslation(PieceData.getColPos(col), PieceData
-					.getRowPos(row), -2.8f);
-			pData = new PieceData(col, row);
-			pData.setDark(false);
-			pawn.setData(pData);
-			pawn.setMaterial(lightMat);
-			board_data[PieceData.getColIndex(col)][PieceData.getRowIndex(row)] = pawn;
-			world.attachChild(pawn);
-			
-			col = 'd';
-			row = 3;
-			TriMesh knight = new TriMesh("Knight");
-			stream = mGLView.getContext().getResources().openRawResource(R.raw.knight);
-			dis = new DataInputStream(stream);
-			knight.importModel(dis);
-			knight.setLocalTranslation(PieceData.getColPos(col), PieceData
-					.getRowPos(row), -2.8f);
-			pData = new PieceData(col, row);
-			pData.setDark(false);
-			knight.setData(pData);
-			knight.setMaterial(lightMat);
-			board_data[PieceData.getColIndex(col)][PieceData.getRowIndex(row)] = knight;
-			world.attachChild(knight);
-			
-			col = 'e';
-			row = 2;
-			TriMesh king = new TriMesh("King");
-			stream = mGLView.getContext().getResources().openRawResource(R.raw.king);
-			dis = new DataInputStream(stream);
-			king.importModel(dis);
-			king.setLocalTranslation(PieceData.getColPos(col), PieceData
-					.getRowPos(row), -2.8f);
-			pData = new PieceData(col, row);
-			pData.setDark(false);
-			king.setData(pData);
-			king.setMaterial(lightMat);
-			board_data[PieceData.getColIndex(col)][PieceData.getRowIndex(row)] = king;
-			world.attachChild(king);
-			
-			col = 'd';
-			row = 6;
-			mesh = pawn.cloneMesh("Cloned pawn");
-			mesh.setLocalTranslation(PieceData.getColPos(col), PieceData
-					.getRowPos(row), -2.8f);
-			mesh.setData(new PieceData(col, row));
-			pData = new PieceData(col, row);
-			pData.setDark(true);
-			mesh.setData(pData);
-			mesh.setMaterial(darkMat);
-			board_data[PieceData.getColIndex(col)][PieceData.getRowIndex(row)] = mesh;
-			world.attachChild(mesh);
-			
-			col = 'e';
-			row = 6;
-			mesh = mesh.cloneMesh("Cloned knight");
-			mesh.setLocalTranslation(PieceData.getColPos(col), PieceData
-					.getRowPos(row), -2.8f);
-			mesh.setData(new PieceData(col, row));
-			pData = new PieceData(col, row);
-			pData.setDark(true);
-			mesh.setData(pData);
-			mesh.setMaterial(darkMat);
-			board_data[PieceData.getColIndex(col)][PieceData.getRowIndex(row)] = mesh;
-			world.attachChild(mesh);
-			
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		// boxes stand in for the pieces until they are loaded
+		Resources res = mGLView.getContext().getResources();
+		// the pieces share their models through the mesh cache
+		int[] pawn = { R.raw.pawn, R.raw.pawn_lod1, R.raw.pawn_lod2 };
+		assetLoader.load(new PieceTask(meshCache, res, "Pawn", pawn, true),
+				createPlaceholder("Pawn", 1.0f, 'c', 2, false), this);
+		assetLoader.load(new PieceTask(meshCache, res, "Knight",
+				new int[] { R.raw.knight, R.raw.knight_lod1, R.raw.knight_lod2 }, false),
+				createPlaceholder("Knight", 1.07f, 'd', 3, false), this);
+		assetLoader.load(new PieceTask(meshCache, res, "King",
+				new int[] { R.raw.king, R.raw.king_lod1, R.raw.king_lod2 }, false),
+				createPlaceholder("King", 1.71f, 'e', 2, false), this);
+		assetLoader.load(new PieceTask(meshCache, res, "Cloned pawn", pawn, true),
+				createPlaceholder("Cloned pawn", 1.0f, 'd', 6, true), this);
+		assetLoader.load(new PieceTask(meshCache, res, "Cloned knight", pawn, true),
+				createPlaceholder("Cloned knight", 1.0f, 'e', 6, true), this);
 		
 		/*
 		// convert models
@@ -511,12 +609,104 @@ public class DemoGameThread extends Thread implements AnimationListener {
 
 		world.attachChild(board);
 		world.attachChild(camLeaf);
-		world.updateTransform();
-		world.updateWorldBound(false);
+		world.updateGeometricState();
+		pickTree.build(world);
+		// the pieces are still placeholders, which are drawn from client
+		// side arrays until they are replaced, so they never hold hardware
+		// buffers that would need to be freed (the pieces are registered
+		// in onLoaded)
+		ArrayList<Spatial> children = world.getChildren();
+		for(int i = 0; i < children.size(); i++) {
+			if(!(children.get(i).getData() instanceof PieceData)) {
+				uploads.register(children.get(i));
+			}
+		}
 	}
 
 	/**
-	 * Converts a model from OBJ to our TriMesh's binary format.
+	 * Creates a box that stands in for a piece on the board until the piece
+	 * has been loaded.
+	 * @param name name of the piece
+	 * @param height height of the piece
+	 * @param col column of the piece
+	 * @param row row of the piece
+	 * @param dark true for a dark piece
+	 * @return the box, attached to the world
+	 */
+	private Spatial createPlaceholder(String name, float height, char col, int row, boolean dark) {
+		Box box = new Box(name, new float[] { 0, 0, height / 2 }, 0.6f, 0.6f, height);
+		box.setLocalTranslation(PieceData.getColPos(col), PieceData.getRowPos(row), -2.8f);
+		PieceData pData = new PieceData(col, row);
+		pData.setDark(dark);
+		box.setData(pData);
+		box.setMaterial(dark ? darkMat : lightMat);
+		board_data[PieceData.getColIndex(col)][PieceData.getRowIndex(row)] = box;
+		world.attachChild(box);
+		return box;
+	}
+	
+	/**
+	 * Loads a piece with its levels of detail, see <code>LOD_SIZES</code>.
+	 * The levels are clones from the mesh cache and picking is exact on
+	 * the most detailed.
+	 */
+	private static class PieceTask implements AsyncLoader.Task {
+		private final MeshCache cache;
+		private final Resources res;
+		private final String name;
+		private final int[] ids;
+		private final boolean instancing;
+		
+		/**
+		 * @param cache cache to get the levels from
+		 * @param res resources to load from
+		 * @param name name of the piece
+		 * @param ids resource identifiers of the levels, most detailed first
+		 * @param instancing true if the piece will be cloned many times, see
+		 * <code>TriMesh.setInstancing</code>
+		 */
+		PieceTask(MeshCache cache, Resources res, String name, int[] ids, boolean instancing) {
+			this.cache = cache;
+			this.res = res;
+			this.name = name;
+			this.ids = ids;
+			this.instancing = instancing;
+		}
+		
+		public Spatial load() throws IOException {
+			LodNode piece = new LodNode(name);
+			Spatial level;
+			try {
+				for(int i = 0; i < ids.length; i++) {
+					level = cache.acquire(name+" "+i, res, ids[i]);
+					setUp(level, i == 0);
+					piece.addLevel(level, LOD_SIZES[i]);
+				}
+			} catch (IOException e) {
+				// the levels already acquired would never be evicted
+				cache.release(piece);
+				throw e;
+			}
+			return piece;
+		}
+		
+		// sets up the mesh of a level, or each sub-mesh if it was split
+		private void setUp(Spatial level, boolean exactPicking) {
+			if(level instanceof Node) {
+				ArrayList<Spatial> parts = ((Node) level).getChildren();
+				for(int i = 0; i < parts.size(); i++) {
+					setUp(parts.get(i), exactPicking);
+				}
+			} else if(level instanceof TriMesh) {
+				((TriMesh) level).setInstancing(instancing);
+				((TriMesh) level).setExactPicking(exactPicking);
+			}
+		}
+	}
+
+	/**
+	 * Converts a model from OBJ to our TriMesh's binary format, with the
+	 * triangles and vertices reordered by <code>MeshOptimizer</code>.
 	 * @param inputObj a resource identifier for an OBJ-file (like R.raw.whatever)
 	 * @param outputMod an output file location (like "/sdcard/whatever.mod").
 	 * @throws IOException if there was any error
@@ -526,6 +716,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		ObjLoader loader = new ObjLoader();
         AssetFileDescriptor fd = mGLView.getContext().getResources().openRawResourceFd(inputObj);
 		TriMesh tPawn = loader.loadModel("Pawn", fd);
+		MeshOptimizer.optimize(tPawn, false);
 		FileOutputStream fos = new FileOutputStream(outputMod);
 		DataOutputStream dos = new DataOutputStream(fos);
 		tPawn.exportModel(dos);
@@ -534,6 +725,64 @@ public class DemoGameThread extends Thread implements AnimationListener {
 		Log.d(TAG, "Converted obj to mod: "+outputMod);
 	}
 
+	/**
+	 * Runs the on-device benchmarks and logs the results. Call this at the
+	 * end of createWorld() while developing.
+	 * @throws IOException if there was any error
+	 */
+	@SuppressWarnings("unused")
+	private void runBenchmarks() throws IOException, InterruptedException {
+		Resources res = mGLView.getContext().getResources();
+		// stream vs mapped model loading
+		Benchmarks.modelLoading(res, R.raw.king, mGLView.getContext().getCacheDir(), 20);
+		// full vs dirty scene graph updates
+		Benchmarks.sceneUpdate(100, 2, 200);
+		Benchmarks.sceneUpdate(1000, 2, 200);
+		// locked scene vs render queue hand over between threads
+		Benchmarks.sceneHandoff(300, 500);
+		// draw calls with and without instance batching
+		Benchmarks.instancing(16, 100);
+		Benchmarks.instancing(64, 100);
+		// linear scene graph vs bounding volume hierarchy picking
+		Benchmarks.picking(10, 1000);
+		Benchmarks.picking(100, 1000);
+		Benchmarks.picking(1000, 1000);
+		// allocations per pick with and without a reused pick context
+		Benchmarks.pickingAllocations(100, 1000);
+		// string based vs byte based OBJ parsing
+		Benchmarks.objLoading(10000, 5);
+		Benchmarks.objLoading(100000, 1);
+		// sorted list vs hash table vertex deduplication
+		Benchmarks.objDeduplication(10000);
+		Benchmarks.objDeduplication(100000);
+		// 32-bit indices and splitting for meshes over 65536 vertices
+		Benchmarks.largeMesh(300000);
+		// vertex cache efficiency of the shipped models
+		Benchmarks.meshOptimization(res, R.raw.pawn, "pawn");
+		Benchmarks.meshOptimization(res, R.raw.knight, "knight");
+		Benchmarks.meshOptimization(res, R.raw.king, "king");
+		// float vs quantized vertex data
+		Benchmarks.vertexFormats(res, R.raw.pawn, "pawn");
+		Benchmarks.vertexFormats(res, R.raw.knight, "knight");
+		Benchmarks.vertexFormats(res, R.raw.king, "king");
+		// triangles per frame with and without levels of detail
+		Benchmarks.lod(res, new int[] { R.raw.pawn, R.raw.pawn_lod1, R.raw.pawn_lod2 },
+				LOD_SIZES, "pawn");
+		Benchmarks.lod(res, new int[] { R.raw.king, R.raw.king_lod1, R.raw.king_lod2 },
+				LOD_SIZES, "king");
+		// time to first frame and to fully loaded
+		Benchmarks.asyncLoading(res, R.raw.king, 50, 1);
+		Benchmarks.asyncLoading(res, R.raw.king, 50, 2);
+		// shared models
+		Benchmarks.meshCache(res, new int[] { R.raw.pawn, R.raw.knight, R.raw.king }, 16);
+		// sensor sample cost and rotation matrix age
+		Benchmarks.sensorFusion(5);
+		// sensor filter against the one it replaced
+		Benchmarks.movingAverage(100000);
+		// restoring GL resources after a lost context
+		Benchmarks.contextLoss(16, 4, 64 * 1024);
+	}
+
 	/**
 	 * Register a double tap on this thread
 	 * 
@@ -543,11 +792,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 	 *            screen y coordinate
 	 */
 	public static void onDoubleTap(float x, float y) {
-		synchronized (tapCoords) {
-			tapCoords[0] = x;
-			tapCoords[1] = y;
-			tapCoords[2] = 2;
-		}
+		input.offer(InputQueue.DOUBLE_TAP, x, y);
 	}
 	
 	/**
@@ -559,20 +804,14 @@ public class DemoGameThread extends Thread implements AnimationListener {
 	 *            screen y coordinate
 	 */
 	public static void onSingleTap(float x, float y) {
-		synchronized (tapCoords) {
-			tapCoords[0] = x;
-			tapCoords[1] = y;
-			tapCoords[2] = 1;
-		}
+		input.offer(InputQueue.SINGLE_TAP, x, y);
 	}
 
 	/**
 	 * Register a track ball click on this thread.
 	 */
 	public static void onTrackballClick() {
-		synchronized (trackInput) {
-			trackInput[3] = 1;
-		}
+		input.offer(InputQueue.TRACKBALL_CLICK, 0, 0);
 	}
 	
 	/**
@@ -581,11 +820,7 @@ public class DemoGameThread extends Thread implements AnimationListener {
 	 * @param y relative movement y coordinate
 	 */
 	public static void onTrackballMove(float x, float y) {
-		synchronized (trackInput) {
-			trackInput[0] += x;
-			trackInput[1] += y;
-			trackInput[2] = 1;
-		}
+		input.offer(InputQueue.TRACKBALL_MOVE, x, y);
 	}
 
 	/**
@@ -3,8 +3,14 @@ package se.ltu.android.demo;
 
 import javax.microedition.khronos.egl.EGL10;
 import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
 
-import se.ltu.android.demo.scene.Node;
+import se.ltu.android.demo.scene.GLResources;
+import se.ltu.android.demo.scene.MeshCache;
+import se.ltu.android.demo.scene.RenderQueue;
+import se.ltu.android.demo.scene.RenderQueueBuffer;
+import se.ltu.android.demo.scene.TriMesh;
+import se.ltu.android.demo.scene.UploadScheduler;
 import se.ltu.android.demo.scene.camera.Camera;
 
 import android.util.Log;
@@ -18,19 +24,40 @@ import android.util.Log;
  */
 public class DemoRenderer implements GLSurfaceView.Renderer {
 	private final static String TAG = "RENDERER";
-	private Node scene;	
 	private final float FOVY = 60.0f;
 	private final float ZNEAR = 0.1f;
 	private final float ZFAR = 20.0f;
+	// bytes of model data kept by the mesh cache
+	private final static long MESH_CACHE_BYTES = 1 << 20;
+	// hardware buffers created per frame
+	private final static int UPLOAD_BYTES = 64 * 1024;
+	private final static long UPLOAD_NANOS = 2000000;
 	
 	long lastFrame = 0;
 	int fps = 0;
 	private boolean use_vbos = false;
-	private Camera camera;
+	// frames published by the game thread, the scene graph is never
+	// touched from this thread
+	private RenderQueueBuffer queues = new RenderQueueBuffer();
+	private RenderQueue queue;
+	// everything we have put in the GL context, the hardware buffers of
+	// meshes registered by the game thread among them
+	private GLResources resources = new GLResources(UPLOAD_BYTES, UPLOAD_NANOS);
+	// shared models, released clones have their buffers freed here
+	private MeshCache meshCache = new MeshCache(MESH_CACHE_BYTES, queues);
+	
+	long lastStats = 0;
+	int frames = 0;
+	long drawCalls = 0;
+	long stateChanges = 0;
+	long meshes = 0;
+	long culled = 0;
+	long triangles = 0;
+	long lastAcquireNanos = 0;
+	long lastStale = 0;
 	
 	public DemoRenderer() {
 		lastFrame = System.currentTimeMillis();
-		camera = new Camera();	// need a default one if one is not set for us
 	}
 
 	@Override
@@ -50,11 +77,10 @@ public class DemoRenderer implements GLSurfaceView.Renderer {
         gl.glDepthFunc(GL10.GL_LEQUAL);
         gl.glShadeModel(GL10.GL_SMOOTH);
         
-        if(scene != null && use_vbos) {
-    		// TODO messy...
-    		scene.forgetHardwareBuffers();
-    		scene.generateHardwareBuffers(gl);
-        }
+        // the old context and everything in it are gone, hardware
+        // buffers are uploaded again over the next frames
+        resources.contextCreated(gl);
+        Log.d(TAG, "32-bit indices supported: "+TriMesh.isIntIndicesSupported());
     }
 
 	@Override
@@ -67,40 +93,64 @@ public class DemoRenderer implements GLSurfaceView.Renderer {
     
 	@Override
     public void shutdown(GL10 gl) {
-		if (scene != null && use_vbos) {
-			scene.freeHardwareBuffers(gl);
-        }
+		resources.shutdown(gl);
     }
 
 	@Override
 	public void drawFrame(GL10 gl) {
+		long frameStart = System.nanoTime();
         gl.glClear(GL10.GL_COLOR_BUFFER_BIT | GL10.GL_DEPTH_BUFFER_BIT);
         
+        // the newest frame from the game thread
+        queue = queues.acquire();
+        if(meshCache.freeReleased(gl, queue) > 0) {
+        	resources.getUploads().removeFreed();
+        }
+        
         // setup camera
         gl.glMatrixMode(GL10.GL_MODELVIEW);
-        synchronized(camera) {
-        	gl.glLoadMatrixf(camera.getModelM(), 0);
-        }
+        gl.glLoadMatrixf(queue.getViewM(), 0);
         gl.glEnableClientState(GL10.GL_VERTEX_ARRAY);
         
-        // draw the world
-        if(scene != null) {
-        	if(use_vbos) {
-        		// creates hardware buffers for objects
-        		// that do not already have any
-        		scene.generateHardwareBuffers(gl);
-    		}
-        	scene.draw(gl);
+        // draw the world, meshes waiting for their upload are drawn from
+        // client side arrays
+        if(use_vbos && gl instanceof GL11) {
+        	resources.upload(gl);
+        }
+        queue.draw(gl);
+        if(resources.frameDrawn(System.nanoTime() - frameStart)) {
+        	Log.d(TAG, "Context "+resources.getContexts()+" restored "
+        			+resources.getRestoreNanos() / 1000000+" ms and "
+        			+resources.getRestoreFrames()+" frames after it was created, longest frame "
+        			+resources.getLongestRestoreFrame() / 1000+" us");
         }
         //printFPS();
+        //printStats();
     }
-
+	
 	/**
-	 * Set the scene to render
-	 * @param scene a node representing the scene
+	 * @return the scheduler that meshes added to the scene are registered
+	 * with to get hardware buffers
 	 */
-	public void setScene(Node scene) {
-		this.scene = scene;
+	public UploadScheduler getUploads() {
+		return resources.getUploads();
+	}
+	
+	/**
+	 * @return the cache that models shared between the game thread and
+	 * its loading threads are acquired from
+	 */
+	public MeshCache getMeshCache() {
+		return meshCache;
+	}
+	
+	/**
+	 * The game thread fills and publishes the back queue of this buffer
+	 * each frame, the renderer draws the newest published queue.
+	 * @return the render queues shared with the game thread
+	 */
+	public RenderQueueBuffer getQueues() {
+		return queues;
 	}
 	
 	/**
@@ -110,6 +160,7 @@ public class DemoRenderer implements GLSurfaceView.Renderer {
 	 */
 	public void useVBOs(boolean value) {
 		use_vbos = value;
+		resources.getUploads().setEnabled(value);
 	}
 
 	@Override
@@ -122,16 +173,6 @@ public class DemoRenderer implements GLSurfaceView.Renderer {
         return configSpec;
 	}
 
-	/**
-	 * Set the camera of the camera
-	 * @param camera Camera to use
-	 */
-	public void setCamera(Camera camera) {
-		synchronized(camera) {
-			this.camera = camera;
-		}
-	}
-	
 	// a rough FPS counter, if called in drawFrame().
 	@SuppressWarnings("unused")
 	private void printFPS() {
@@ -144,4 +185,33 @@ public class DemoRenderer implements GLSurfaceView.Renderer {
         	fps++;
         }
 	}
+	
+	// average meshes, triangles, culled spatials, draw calls and state changes per frame, if called
+	// in drawFrame(). Drawing in scene graph order costs one material
+	// and one array bind per mesh, i.e. two state changes per mesh.
+	@SuppressWarnings("unused")
+	private void printStats() {
+		frames++;
+		meshes += queue.size();
+		culled += queue.getCulled();
+		triangles += queue.getTriangles();
+		drawCalls += queue.getDrawCalls();
+		stateChanges += queue.getStateChanges();
+		long now = System.currentTimeMillis();
+		if(now - lastStats >= 1000l) {
+			Log.d(TAG, "meshes: " + meshes / frames
+					+ ", triangles: " + triangles / frames
+					+ ", culled: " + culled / frames
+					+ ", draw calls: " + drawCalls / frames
+					+ ", state changes: " + stateChanges / frames
+					+ " (unsorted: " + 2 * meshes / frames + ")");
+			Log.d(TAG, "acquire: " + (queues.getAcquireNanos() - lastAcquireNanos) / frames
+					+ " ns/frame, stale frames: " + (queues.getStale() - lastStale));
+			lastAcquireNanos = queues.getAcquireNanos();
+			lastStale = queues.getStale();
+			frames = 0;
+			meshes = triangles = culled = drawCalls = stateChanges = 0;
+			lastStats = now;
+		}
+	}
 }
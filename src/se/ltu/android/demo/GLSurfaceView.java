@@ -31,6 +31,7 @@ import javax.microedition.khronos.opengles.GL;
 import javax.microedition.khronos.opengles.GL10;
 
 import android.content.Context;
+import android.os.Debug;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
@@ -134,15 +135,102 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         mGLThread.setEvent(r);
     }
     
+    /**
+     * Requests a frame to be drawn. When rendering only when dirty, the GL
+     * thread sleeps until this is called, and requests made before it
+     * gets to draw are coalesced into one frame. Can be called from any
+     * thread.
+     */
     public void requestRender() {
-    	isDirty = true;
+    	mGLThread.requestRender();
     }
       
     /**
-	 * @param b
+	 * @param b true to draw only when a frame has been requested with
+	 * <code>requestRender</code>, false to draw continuously
 	 */
 	public void setRenderWhenDirty(boolean b) {
-		renderWhenDirty = b;
+		mGLThread.setRenderWhenDirty(b);
+	}
+	
+	/**
+	 * Aligns frames to the refresh of the display: a frame is not drawn
+	 * sooner than one refresh period after the previous one, and requests
+	 * made meanwhile are coalesced into it. Swapping buffers usually
+	 * waits for the refresh anyway, this keeps the GL thread from waiting
+	 * there with a frame that newer requests could have been part of.
+	 * @param refreshRate refresh rate of the display in Hz, or 0 to draw
+	 * as soon as a frame is requested
+	 */
+	public void setVsyncAligned(float refreshRate) {
+		mGLThread.setVsyncAligned(refreshRate);
+	}
+	
+	/**
+	 * @return number of calls to <code>requestRender</code>
+	 */
+	public long getRenderRequests() {
+		synchronized(mGLThread) {
+			return mGLThread.mRequests;
+		}
+	}
+	
+	/**
+	 * @return number of calls to <code>requestRender</code> that were
+	 * coalesced into a frame that had already been requested
+	 */
+	public long getCoalescedRequests() {
+		synchronized(mGLThread) {
+			return mGLThread.mCoalesced;
+		}
+	}
+	
+	/**
+	 * @return number of frames drawn and swapped
+	 */
+	public long getPresentedFrames() {
+		synchronized(mGLThread) {
+			return mGLThread.mPresented;
+		}
+	}
+	
+	/**
+	 * @return number of times the GL thread has gone through its loop,
+	 * with or without drawing a frame
+	 */
+	public long getWakeups() {
+		synchronized(mGLThread) {
+			return mGLThread.mWakeups;
+		}
+	}
+	
+	/**
+	 * @return total time from the first request of each requested frame
+	 * until it was swapped, in nanoseconds
+	 */
+	public long getLatencyNanos() {
+		synchronized(mGLThread) {
+			return mGLThread.mLatencyTotal;
+		}
+	}
+	
+	/**
+	 * @return longest time from the first request of a frame until it
+	 * was swapped, in nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		synchronized(mGLThread) {
+			return mGLThread.mLatencyMax;
+		}
+	}
+	
+	/**
+	 * @return CPU time used by the GL thread, in nanoseconds
+	 */
+	public long getGLThreadCpuNanos() {
+		synchronized(mGLThread) {
+			return mGLThread.mCpuNanos;
+		}
 	}
 
     @Override
@@ -378,6 +466,7 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
             mEglHelper.start(configSpec);
 
             GL10 gl = null;
+            boolean contextLost = false;
             boolean tellRendererSurfaceCreated = true;
             boolean tellRendererSurfaceChanged = true;
 
@@ -391,16 +480,20 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
                  */
                 int w, h;
                 boolean changed;
+                boolean draw;
+                long requestTime;
                 boolean needStart = false;
                 synchronized (this) {
+                    mCpuNanos = Debug.threadCpuTimeNanos();
                     if (mEvent != null) {
                         mEvent.run();
                         mEvent = null;
 
                     }
-                    if (mPaused) {
+                    if (mPaused || contextLost) {
                         mEglHelper.finish();
                         needStart = true;
+                        contextLost = false;
                     }
                     if(needToWait()) {
                         while (needToWait()) {
@@ -410,10 +503,25 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
                     if (mDone) {
                         break;
                     }
+                    if (mVsyncPeriod > 0 && mRenderRequested) {
+                        /*
+                         * Hold the frame until a refresh period has passed
+                         * since the last one, later requests join it
+                         */
+                        long delay = mLastPresent + mVsyncPeriod - System.nanoTime();
+                        while (delay > 0 && !mDone) {
+                            wait(delay / 1000000, (int) (delay % 1000000));
+                            delay = mLastPresent + mVsyncPeriod - System.nanoTime();
+                        }
+                    }
+                    mWakeups++;
                     changed = mSizeChanged;
                     w = mWidth;
                     h = mHeight;
                     mSizeChanged = false;
+                    draw = !mRenderWhenDirty || mRenderRequested || changed;
+                    requestTime = mRenderRequested ? mRequestTime : 0;
+                    mRenderRequested = false;
                 }
                 if (needStart) {
                     mEglHelper.start(configSpec);
@@ -433,10 +541,7 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
                     tellRendererSurfaceChanged = false;
                 }
                 if ((w > 0) && (h > 0)) {
-                	if(!renderWhenDirty || isDirty) {
-                		if(renderWhenDirty) {
-	                    	isDirty = false;
-	                    }
+                	if(draw) {
 	                    /* draw a frame here */
 	                    mRenderer.drawFrame(gl);
 	                   
@@ -444,7 +549,14 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
 	                     * Once we're done with GL, we need to call swapBuffers()
 	                     * to instruct the system to display the rendered frame
 	                     */
-	                    mEglHelper.swap();
+	                    if (!mEglHelper.swap()) {
+	                        /*
+	                         * Start over with a new context, the renderer
+	                         * restores its resources in surfaceCreated()
+	                         */
+	                        contextLost = true;
+	                    }
+	                    presented(requestTime);
                 	}
                 }
              }
@@ -461,14 +573,57 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         }
 
         private boolean needToWait() {
-            return (mPaused || (! mHasFocus) || (! mHasSurface) || mContextLost)
+            return (mPaused || (! mHasFocus) || (! mHasSurface) || mContextLost
+                    || (mRenderWhenDirty && ! mRenderRequested && ! mSizeChanged
+                        && mEvent == null))
                 && (! mDone);
         }
 
+        private synchronized void presented(long requestTime) {
+            long now = System.nanoTime();
+            mLastPresent = now;
+            mPresented++;
+            if (requestTime != 0) {
+                long latency = now - requestTime;
+                mLatencyTotal += latency;
+                mLatencyMax = Math.max(mLatencyMax, latency);
+            }
+        }
+
+        public void requestRender() {
+            synchronized(this) {
+                mRequests++;
+                if (mRenderRequested) {
+                    mCoalesced++;
+                } else {
+                    mRenderRequested = true;
+                    mRequestTime = System.nanoTime();
+                    notify();
+                }
+            }
+        }
+
+        public void setRenderWhenDirty(boolean renderWhenDirty) {
+            synchronized(this) {
+                mRenderWhenDirty = renderWhenDirty;
+                notify();
+            }
+        }
+
+        public void setVsyncAligned(float refreshRate) {
+            synchronized(this) {
+                mVsyncPeriod = refreshRate > 0 ? (long) (1000000000L / refreshRate) : 0;
+                notify();
+            }
+        }
+
         public void surfaceCreated() {
             synchronized(this) {
                 mHasSurface = true;
                 mContextLost = false;
+                // draw the new surface even if nothing has been requested
+                mRenderRequested = true;
+                mRequestTime = 0;
                 notify();
             }
         }
@@ -489,6 +644,8 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         public void onResume() {
             synchronized (this) {
                 mPaused = false;
+                mRenderRequested = true;
+                mRequestTime = 0;
                 notify();
             }
         }
@@ -506,6 +663,7 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
                 mWidth = w;
                 mHeight = h;
                 mSizeChanged = true;
+                notify();
             }
         }
 
@@ -530,6 +688,7 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         public void setEvent(Runnable r) {
             synchronized(this) {
                 mEvent = r;
+                notify();
             }
         }
        
@@ -551,12 +710,24 @@ public class GLSurfaceView extends SurfaceView implements SurfaceHolder.Callback
         private Renderer mRenderer;
         private Runnable mEvent;
         private EglHelper mEglHelper;
+        // render requests, guarded by this thread's monitor
+        private boolean mRenderWhenDirty;
+        private boolean mRenderRequested = true;
+        private long mRequestTime;
+        private long mVsyncPeriod;
+        private long mLastPresent;
+        // statistics, guarded by this thread's monitor
+        private long mRequests;
+        private long mCoalesced;
+        private long mPresented;
+        private long mWakeups;
+        private long mLatencyTotal;
+        private long mLatencyMax;
+        private long mCpuNanos;
     }
 
     private static final Semaphore sEglSemaphore = new Semaphore(1);
     private boolean mSizeChanged = true;
-    private boolean renderWhenDirty = false;
-    private boolean isDirty = true;
 
     private SurfaceHolder mHolder;
     private GLThread mGLThread;
@@ -0,0 +1,166 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo;
+
+/**
+ * A bounded queue of input events from the UI thread to the game thread.
+ * Every event is kept and handled in order, so taps between two updates
+ * are not lost and trackball moves are not merged.<br><br>
+ * The queue is a ring of preallocated events with exactly one producer
+ * (the UI thread, which gets all touch and trackball events) and one
+ * consumer (the game thread). Each side only writes its own position in
+ * the ring, so no locks are needed: the volatile positions make an event
+ * visible to the consumer once it is written and free for the producer
+ * once it is read. Neither side allocates. If the game thread falls so far
+ * behind that the queue is full, new events are dropped and counted. The
+ * statistics of taken events are kept by the consumer and should be read
+ * on its thread.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class InputQueue {
+	public final static int SINGLE_TAP = 1;
+	public final static int DOUBLE_TAP = 2;
+	public final static int TRACKBALL_MOVE = 3;
+	public final static int TRACKBALL_CLICK = 4;
+	
+	private final Event[] events;
+	private final int mask;
+	// next position to read, written only by the consumer
+	private volatile long head = 0;
+	// next position to write, written only by the producer
+	private volatile long tail = 0;
+	// written only by the producer
+	private volatile long dropped = 0;
+	// written only by the consumer
+	private long handled = 0;
+	private int maxDepth = 0;
+	private long latencyTotal = 0;
+	private long latencyMax = 0;
+	
+	/**
+	 * An input event. Screen coordinates for taps, relative movement for
+	 * trackball moves.
+	 */
+	public static class Event {
+		public int type;
+		public float x;
+		public float y;
+		// when the event was queued, from System.nanoTime
+		public long time;
+		
+		void set(Event other) {
+			type = other.type;
+			x = other.x;
+			y = other.y;
+			time = other.time;
+		}
+	}
+	
+	/**
+	 * Creates an empty queue
+	 * @param capacity number of events the queue can hold, rounded up to
+	 * a power of two
+	 */
+	public InputQueue(int capacity) {
+		int size = 1;
+		while(size < capacity) {
+			size <<= 1;
+		}
+		events = new Event[size];
+		for(int i = 0; i < size; i++) {
+			events[i] = new Event();
+		}
+		mask = size - 1;
+	}
+	
+	/**
+	 * Adds an event. Called from the producer thread only.
+	 * @param type type of event, like SINGLE_TAP
+	 * @param x x coordinate or movement
+	 * @param y y coordinate or movement
+	 * @return false if the queue was full and the event dropped
+	 */
+	public boolean offer(int type, float x, float y) {
+		long t = tail;
+		if(t - head == events.length) {
+			dropped++;
+			return false;
+		}
+		Event e = events[(int) t & mask];
+		e.type = type;
+		e.x = x;
+		e.y = y;
+		e.time = System.nanoTime();
+		// publishes the event to the consumer
+		tail = t + 1;
+		return true;
+	}
+	
+	/**
+	 * Takes the oldest event. Called from the consumer thread only.
+	 * @param into event to copy the oldest event to
+	 * @return false if the queue was empty
+	 */
+	public boolean poll(Event into) {
+		long h = head;
+		long t = tail;
+		if(h == t) {
+			return false;
+		}
+		maxDepth = Math.max(maxDepth, (int) (t - h));
+		into.set(events[(int) h & mask]);
+		// frees the slot for the producer
+		head = h + 1;
+		long latency = System.nanoTime() - into.time;
+		latencyTotal += latency;
+		latencyMax = Math.max(latencyMax, latency);
+		handled++;
+		return true;
+	}
+	
+	/**
+	 * @return number of events in the queue
+	 */
+	public int size() {
+		return (int) (tail - head);
+	}
+	
+	/**
+	 * @return number of events taken from the queue
+	 */
+	public long getHandled() {
+		return handled;
+	}
+	
+	/**
+	 * @return number of events dropped because the queue was full
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+	
+	/**
+	 * @return the most events that have been waiting in the queue at
+	 * once
+	 */
+	public int getMaxDepth() {
+		return maxDepth;
+	}
+	
+	/**
+	 * @return total time from when events were queued until they were
+	 * taken, in nanoseconds
+	 */
+	public long getLatencyNanos() {
+		return latencyTotal;
+	}
+	
+	/**
+	 * @return longest time from when an event was queued until it was
+	 * taken, in nanoseconds
+	 */
+	public long getMaxLatencyNanos() {
+		return latencyMax;
+	}
+}
@@ -0,0 +1,221 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import android.util.Log;
+
+/**
+ * Loads parts of the scene on background threads while the game keeps
+ * running. A placeholder (a box where the object will be, for example)
+ * is attached to the scene in place of each object, and is replaced by the
+ * loaded object in <code>update</code>, which is called from the game
+ * thread once per frame. Independent loads run in parallel on a fixed
+ * number of threads.<br><br>
+ * The loading threads never touch the scene graph: a task only builds new
+ * spatials, and the game thread attaches them. The loaded spatials are
+ * handed over through a concurrent queue, which also makes sure the game
+ * thread sees them fully built.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class AsyncLoader {
+	private final static String TAG = "AsyncLoader";
+	private final ExecutorService executor;
+	// loads that have finished, in the order they finished
+	private final ConcurrentLinkedQueue<Load> done = new ConcurrentLinkedQueue<Load>();
+	// owned by the game thread
+	private int pending = 0;
+	private int loaded = 0;
+	private int failed = 0;
+
+	/**
+	 * Something to load. <code>load</code> is called on a loading thread
+	 * and must not change any spatial that is attached to the scene.
+	 */
+	public interface Task {
+		/**
+		 * @return the loaded spatial, not attached to the scene
+		 * @throws Exception if it could not be loaded
+		 */
+		public Spatial load() throws Exception;
+	}
+
+	/**
+	 * Any class that wants to know when a load has finished should
+	 * implement this interface. Called from the game thread.
+	 */
+	public interface Listener {
+		/**
+		 * Tells the listener that a spatial has replaced its placeholder in
+		 * the scene.
+		 * @param placeholder the placeholder, now detached
+		 * @param loaded the loaded spatial
+		 */
+		public void onLoaded(Spatial placeholder, Spatial loaded);
+	}
+
+	// a submitted task, passed back to the game thread when done
+	private class Load implements Callable<Spatial> {
+		final Task task;
+		final Spatial placeholder;
+		final Listener listener;
+		Spatial result;
+		// an Error too, like running out of memory on a large model
+		Throwable error;
+
+		Load(Task task, Spatial placeholder, Listener listener) {
+			this.task = task;
+			this.placeholder = placeholder;
+			this.listener = listener;
+		}
+
+		public Spatial call() throws Exception {
+			try {
+				result = task.load();
+				if(result == null) {
+					error = new NullPointerException("Task returned no spatial");
+				}
+				return result;
+			} catch (Exception e) {
+				error = e;
+				throw e;
+			} catch (Error e) {
+				error = e;
+				throw e;
+			} finally {
+				done.add(this);
+			}
+		}
+	}
+
+	/**
+	 * Creates a loader with its own loading threads. The threads run at a
+	 * lower priority than the game and GL threads.
+	 * @param threads number of loads that can run in parallel
+	 */
+	public AsyncLoader(int threads) {
+		executor = Executors.newFixedThreadPool(Math.max(threads, 1), new ThreadFactory() {
+			private int count = 0;
+
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Loader-"+(count++));
+				t.setDaemon(true);
+				t.setPriority(Thread.NORM_PRIORITY - 1);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Starts loading a spatial in the background. Called from the game
+	 * thread.
+	 * @param task the task that loads the spatial
+	 * @param placeholder a spatial attached to the scene that the loaded
+	 * spatial will replace, or null to not attach the loaded spatial
+	 * @param listener listener to tell when the spatial has been attached,
+	 * may be null
+	 * @return a future for the loaded spatial
+	 */
+	public Future<Spatial> load(Task task, Spatial placeholder, Listener listener) {
+		pending++;
+		return executor.submit(new Load(task, placeholder, listener));
+	}
+
+	/**
+	 * Replaces the placeholders of the loads that have finished since the
+	 * last call and tells their listeners. A load that failed keeps its
+	 * placeholder. Called from the game thread, typically once per frame
+	 * before the scene is updated.
+	 * @return number of spatials attached
+	 */
+	public int update() {
+		int attached = 0;
+		Load load;
+		while((load = done.poll()) != null) {
+			pending--;
+			if(load.error != null) {
+				failed++;
+				Log.e(TAG, "Could not load "+(load.placeholder == null ? "spatial"
+						: load.placeholder.getName())+": "+load.error);
+				continue;
+			}
+			loaded++;
+			if(load.placeholder != null) {
+				replace(load.placeholder, load.result);
+			}
+			attached++;
+			if(load.listener != null) {
+				load.listener.onLoaded(load.placeholder, load.result);
+			}
+		}
+		return attached;
+	}
+
+	/**
+	 * Puts a spatial in the place of another in the scene. The spatial
+	 * gets the local transformation, data and running animations of the
+	 * one it replaces, which is detached.
+	 * @param old spatial to replace
+	 * @param spatial spatial to put in its place, not attached
+	 */
+	public static void replace(Spatial old, Spatial spatial) {
+		spatial.setLocalTranslation(old.getLocalTranslation());
+		spatial.setLocalRotation(old.getLocalRotation());
+		spatial.setLocalScale(old.getLocalScale());
+		if(old.hasData()) {
+			spatial.setData(old.getData());
+		}
+		if(old.animations != null && !old.animations.isEmpty()) {
+			spatial.animations = old.animations;
+			old.animations = null;
+		}
+		Node parent = old.getParent();
+		if(parent != null) {
+			parent.detachChild(old);
+			parent.attachChild(spatial);
+		}
+	}
+
+	/**
+	 * @return number of loads that have not been handled by
+	 * <code>update</code>
+	 */
+	public int getPending() {
+		return pending;
+	}
+
+	/**
+	 * @return true if every load has been handled by <code>update</code>
+	 */
+	public boolean isIdle() {
+		return pending == 0;
+	}
+
+	/**
+	 * @return number of spatials loaded
+	 */
+	public int getLoaded() {
+		return loaded;
+	}
+
+	/**
+	 * @return number of loads that failed
+	 */
+	public int getFailed() {
+		return failed;
+	}
+
+	/**
+	 * Stops the loading threads. Loads that have not started are dropped.
+	 */
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+}
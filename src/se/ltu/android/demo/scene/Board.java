@@ -1,13 +1,8 @@
 /* SVN FILE: $Id$ */
 package se.ltu.android.demo.scene;
 
-import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
-import java.nio.FloatBuffer;
-
 import se.ltu.android.demo.scene.intersection.AABBox;
 import se.ltu.android.demo.scene.shapes.Box;
-import se.ltu.android.demo.util.BufferUtils;
 
 /**
  * An application specific extension of a Node representing a chess board.
@@ -42,6 +37,8 @@ public class Board extends Node {
 					curSquare = darkSquare.cloneMesh(squareName);
 				}
 				curSquare.setLocalTranslation(col-3.5f, row-4.5f, 0.0f);
+				// squares are picked through their pick boxes
+				curSquare.setPickable(false);
 				attachChild(curSquare);
 				
 				// create pickable box
@@ -56,97 +53,4 @@ public class Board extends Node {
 		}
 		mergeChildren("grid");
 	}
-
-	/**
-	 * Merge all TriMeshes <i>directly attached</i> to this node to one single TriMesh
-	 * This method removes 
-	 * @param name name of the new TriMesh
-	 */
-	// TODO move to Node, set to public and make more general
-	// TODO null pointer error checking
-	// TODO only works on children with the same draw method (i.e. TRIANGLES).. no error checking!
-	private void mergeChildren(String name) {
-		int len = children.size();
-		Spatial child;
-		TriMesh triChild;
-		int nVertices = 0;
-		int nIndices = 0;
-		int nTexCoords = 0;
-		int nNormals = 0;
-		int nColors = 0;
-		CharBuffer oIndices;
-		int iOffset;
-		
-		// get the buffer sizes first
-		for (int i = 0; i < len; i++) {
-			child = children.get(i);
-			if(child instanceof TriMesh) {
-				triChild = (TriMesh)child;
-				nVertices += triChild.vertices.capacity();
-				nIndices += triChild.indices.capacity();
-				nTexCoords += triChild.texcoords.capacity();
-				nNormals += triChild.normals.capacity();
-				nColors += triChild.colors.capacity();
-			}
-		}
-		
-		FloatBuffer vertices = BufferUtils.createFloatBuffer(nVertices);
-		CharBuffer indices = BufferUtils.createCharBuffer(nIndices);
-		FloatBuffer texcoords = BufferUtils.createFloatBuffer(nTexCoords);
-		FloatBuffer normals = BufferUtils.createFloatBuffer(nNormals);
-		ByteBuffer colors = BufferUtils.createByteBuffer(nColors);
-		vertices.clear();
-		indices.clear();
-		texcoords.clear();
-		normals.clear();
-		colors.clear();
-		
-		// then fill our buffer
-		for (int i = 0; i < len; i++) {
-			child = children.get(i);
-			if(child instanceof TriMesh) {
-				triChild = (TriMesh)child;
-				
-				iOffset = (vertices.position()+1)/3;
-				
-				triChild.updateTransform();
-				vertices.put(triChild.getWorldVertices());
-				
-				oIndices = triChild.indices;
-				oIndices.clear();
-				try {
-					while(oIndices.hasRemaining()) {
-						indices.put((char) (iOffset + oIndices.get()));
-					}
-				} catch (Exception e) {
-					e.printStackTrace();
-				}
-				
-				triChild.texcoords.clear();
-				texcoords.put(triChild.texcoords);
-				
-				triChild.normals.clear();
-				normals.put(triChild.normals);
-				
-				triChild.colors.clear();
-				colors.put(triChild.colors);
-				
-				// remove directly attached TriMeshes
-				children.remove(i);
-				i--;
-				len--;
-			}
-		}
-			
-		TriMesh ret = new TriMesh(name, vertices, indices);
-		ret.texcoords = texcoords;
-		ret.normals = normals;
-		ret.colors = colors;
-		
-		// create empty bb.. currently we need no more
-		// TODO check bounding volumes during iteration
-		ret.modelBound = new AABBox();
-		ret.setPickable(false);
-		attachChild(ret);
-	}
-}
\ No newline at end of file
+}
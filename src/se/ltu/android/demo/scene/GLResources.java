@@ -0,0 +1,157 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+import se.ltu.android.demo.scene.state.Material;
+
+/**
+ * Keeps track of everything the renderer has put in a GL context: the
+ * hardware buffers of meshes (through an <code>UploadScheduler</code>),
+ * the material state cached by <code>Material</code> and the
+ * capabilities read from the context. When a new context is created, the
+ * old one and everything in it is gone; <code>contextCreated</code> then
+ * invalidates what was tracked, in time proportional to the number of
+ * resources and not to the size of the scene, and the hardware buffers
+ * are uploaded again over the following frames.<br><br>
+ * Every method is called from the GL thread, except
+ * <code>getUploads</code> whose scheduler takes registrations from the
+ * game thread.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class GLResources {
+	private final UploadScheduler uploads;
+	private int contexts = 0;
+	// from a new context until every hardware buffer is back
+	private boolean restoring = false;
+	private long restoreStart = 0;
+	private long restoreNanos = 0;
+	private int restoreFrames = 0;
+	private long longestFrame = 0;
+
+	/**
+	 * Creates a registry with an upload budget per frame, see
+	 * <code>UploadScheduler</code>.
+	 * @param byteBudget number of bytes to upload per frame
+	 * @param nanoBudget time to spend on uploads per frame, in nanoseconds
+	 */
+	public GLResources(int byteBudget, long nanoBudget) {
+		uploads = new UploadScheduler(byteBudget, nanoBudget);
+	}
+
+	/**
+	 * Invalidates every resource of the previous context, if there was one,
+	 * and reads the capabilities of the new context. Called when a new
+	 * context has been created, before anything is drawn with it.
+	 * @param gl the new GL context
+	 */
+	public void contextCreated(GL10 gl) {
+		String extensions = gl.glGetString(GL10.GL_EXTENSIONS);
+		TriMesh.setIntIndicesSupported(extensions != null
+				&& extensions.indexOf("GL_OES_element_index_uint") >= 0);
+		// the buffers went with the old context, and a new context starts
+		// out with the default material
+		uploads.forgetHardwareBuffers();
+		if(!(gl instanceof GL11)) {
+			// no hardware buffers to restore, meshes draw from client arrays
+			uploads.clearPending();
+		}
+		Material.resetState();
+		contexts++;
+		restoring = uploads.isPending();
+		restoreStart = System.nanoTime();
+		restoreNanos = 0;
+		restoreFrames = 0;
+		longestFrame = 0;
+	}
+
+	/**
+	 * Uploads registered meshes within the budget of this frame. Called
+	 * before the frame is drawn.
+	 * @param gl the GL context
+	 * @return number of meshes that got hardware buffers
+	 */
+	public int upload(GL10 gl) {
+		return uploads.upload(gl);
+	}
+
+	/**
+	 * Tells the registry that a frame has been drawn, to measure how long
+	 * the resources of a new context take to restore.
+	 * @param frameNanos time spent on the frame, in nanoseconds
+	 * @return true if the last resources of a new context were restored
+	 * in this frame
+	 */
+	public boolean frameDrawn(long frameNanos) {
+		if(!restoring) {
+			return false;
+		}
+		restoreFrames++;
+		longestFrame = Math.max(longestFrame, frameNanos);
+		if(uploads.isPending()) {
+			return false;
+		}
+		restoring = false;
+		restoreNanos = System.nanoTime() - restoreStart;
+		return true;
+	}
+
+	/**
+	 * Frees every resource. Called before the context is destroyed.
+	 * @param gl the GL context
+	 */
+	public void shutdown(GL10 gl) {
+		uploads.freeHardwareBuffers(gl);
+		Material.resetState();
+	}
+
+	/**
+	 * @return the scheduler of the hardware buffers, that meshes added to
+	 * the scene are registered with
+	 */
+	public UploadScheduler getUploads() {
+		return uploads;
+	}
+
+	/**
+	 * @return number of contexts created
+	 */
+	public int getContexts() {
+		return contexts;
+	}
+
+	/**
+	 * @return true if resources of the current context are waiting to be
+	 * restored
+	 */
+	public boolean isRestoring() {
+		return restoring;
+	}
+
+	/**
+	 * @return time from when the current context was created until its
+	 * resources were restored, in nanoseconds, or 0 if not yet restored
+	 */
+	public long getRestoreNanos() {
+		return restoreNanos;
+	}
+
+	/**
+	 * @return number of frames drawn while the resources of the current
+	 * context were restored
+	 */
+	public int getRestoreFrames() {
+		return restoreFrames;
+	}
+
+	/**
+	 * @return the longest frame drawn while the resources of the current
+	 * context were restored, in nanoseconds
+	 */
+	public long getLongestRestoreFrame() {
+		return longestFrame;
+	}
+}
@@ -0,0 +1,200 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.FloatBuffer;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import se.ltu.android.demo.util.BufferUtils;
+
+/**
+ * Instances of one mesh family pre-transformed to world coordinates on the
+ * CPU and packed in one set of client side arrays, so they can be drawn
+ * with a single glDrawElements. This is the instancing path for OpenGL ES
+ * 1.x, which has no instanced draw calls. Batches are built by the render
+ * queue on the game thread, see <code>TriMesh.setInstancing</code>.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+class InstanceBatch {
+	/**
+	 * The largest number of vertices a batch can hold with 16-bit indices
+	 */
+	static final int MAX_VERTICES = 65536;
+
+	// number of queue entries drawn by this batch
+	int instances;
+	private int vertexCount;
+	private int indexCount;
+	private boolean hasNormals;
+	private boolean hasTexcoords;
+	private boolean hasColors;
+
+	// scratch arrays, filled first and then copied to the buffers in bulk
+	private float[] vertices = new float[0];
+	private float[] normals = new float[0];
+	private float[] texcoords = new float[0];
+	private byte[] colors = new byte[0];
+	private char[] indices = new char[0];
+
+	private FloatBuffer vertexBuffer;
+	private FloatBuffer normalBuffer;
+	private FloatBuffer texcoordBuffer;
+	private ByteBuffer colorBuffer;
+	private CharBuffer indexBuffer;
+
+	/**
+	 * Fills this batch with instances of a mesh family.
+	 * @param source family root, prepared with <code>prepareInstancing</code>
+	 * @param transforms world transformations, 16 floats per entry
+	 * @param entries entry indices in drawing order
+	 * @param start first position in entries to batch
+	 * @param count number of entries to batch
+	 */
+	void build(TriMesh source, float[] transforms, int[] entries, int start, int count) {
+		float[] srcVertices = source.instVertices;
+		float[] srcNormals = source.instNormals;
+		float[] srcTexcoords = source.instTexcoords;
+		byte[] srcColors = source.instColors;
+		char[] srcIndices = source.instIndices;
+		int nVertices = srcVertices.length / 3;
+
+		instances = count;
+		vertexCount = nVertices * count;
+		indexCount = srcIndices.length * count;
+		hasNormals = srcNormals != null;
+		hasTexcoords = srcTexcoords != null;
+		hasColors = srcColors != null;
+		ensureCapacity();
+
+		float[] m = transforms;
+		int o;
+		float x, y, z, nx, ny, nz, len;
+		int v = 0;
+		int n = 0;
+		int idx = 0;
+		for(int k = 0; k < count; k++) {
+			o = entries[start + k] * 16;
+			for(int i = 0; i < srcVertices.length; i += 3) {
+				x = srcVertices[i];
+				y = srcVertices[i+1];
+				z = srcVertices[i+2];
+				vertices[v++] = m[o]*x + m[o+4]*y + m[o+8]*z + m[o+12];
+				vertices[v++] = m[o+1]*x + m[o+5]*y + m[o+9]*z + m[o+13];
+				vertices[v++] = m[o+2]*x + m[o+6]*y + m[o+10]*z + m[o+14];
+			}
+			if(hasNormals) {
+				// rotation and scale only, renormalized afterwards
+				for(int i = 0; i < srcNormals.length; i += 3) {
+					x = srcNormals[i];
+					y = srcNormals[i+1];
+					z = srcNormals[i+2];
+					nx = m[o]*x + m[o+4]*y + m[o+8]*z;
+					ny = m[o+1]*x + m[o+5]*y + m[o+9]*z;
+					nz = m[o+2]*x + m[o+6]*y + m[o+10]*z;
+					len = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+					if(len > 0) {
+						len = 1 / len;
+					}
+					normals[n++] = nx * len;
+					normals[n++] = ny * len;
+					normals[n++] = nz * len;
+				}
+			}
+			if(hasTexcoords) {
+				System.arraycopy(srcTexcoords, 0, texcoords, k * srcTexcoords.length,
+						srcTexcoords.length);
+			}
+			if(hasColors) {
+				System.arraycopy(srcColors, 0, colors, k * srcColors.length,
+						srcColors.length);
+			}
+			int offset = k * nVertices;
+			for(int i = 0; i < srcIndices.length; i++) {
+				indices[idx++] = (char) (srcIndices[i] + offset);
+			}
+		}
+
+		vertexBuffer.clear();
+		vertexBuffer.put(vertices, 0, vertexCount * 3);
+		indexBuffer.clear();
+		indexBuffer.put(indices, 0, indexCount);
+		if(hasNormals) {
+			normalBuffer.clear();
+			normalBuffer.put(normals, 0, vertexCount * 3);
+		}
+		if(hasTexcoords) {
+			texcoordBuffer.clear();
+			texcoordBuffer.put(texcoords, 0, vertexCount * 2);
+		}
+		if(hasColors) {
+			colorBuffer.clear();
+			colorBuffer.put(colors, 0, vertexCount * 4);
+		}
+	}
+
+	/**
+	 * Draws all instances. The modelview matrix should hold only the camera
+	 * matrix since the vertices are in world coordinates.
+	 * @param gl
+	 */
+	void draw(GL10 gl) {
+		vertexBuffer.position(0);
+		gl.glVertexPointer(3, GL10.GL_FLOAT, 0, vertexBuffer);
+		if(hasNormals) {
+			normalBuffer.position(0);
+			gl.glEnableClientState(GL10.GL_NORMAL_ARRAY);
+			gl.glNormalPointer(GL10.GL_FLOAT, 0, normalBuffer);
+		}
+		if(hasTexcoords) {
+			texcoordBuffer.position(0);
+			gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+			gl.glTexCoordPointer(2, GL10.GL_FLOAT, 0, texcoordBuffer);
+		}
+		if(hasColors) {
+			colorBuffer.position(0);
+			gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
+			gl.glColorPointer(4, GL10.GL_UNSIGNED_BYTE, 0, colorBuffer);
+		}
+
+		indexBuffer.position(0);
+		gl.glDrawElements(GL10.GL_TRIANGLES, indexCount, GL10.GL_UNSIGNED_SHORT, indexBuffer);
+
+		if(hasNormals) {
+			gl.glDisableClientState(GL10.GL_NORMAL_ARRAY);
+		}
+		if(hasTexcoords) {
+			gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+		}
+		if(hasColors) {
+			gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
+		}
+	}
+
+	// grows the arrays and buffers to fit the current counts
+	private void ensureCapacity() {
+		if(vertices.length < vertexCount * 3) {
+			vertices = new float[vertexCount * 3];
+			vertexBuffer = BufferUtils.createFloatBuffer(vertexCount * 3);
+		}
+		if(indices.length < indexCount) {
+			indices = new char[indexCount];
+			indexBuffer = BufferUtils.createCharBuffer(indexCount);
+		}
+		if(hasNormals && normals.length < vertexCount * 3) {
+			normals = new float[vertexCount * 3];
+			normalBuffer = BufferUtils.createFloatBuffer(vertexCount * 3);
+		}
+		if(hasTexcoords && texcoords.length < vertexCount * 2) {
+			texcoords = new float[vertexCount * 2];
+			texcoordBuffer = BufferUtils.createFloatBuffer(vertexCount * 2);
+		}
+		if(hasColors && colors.length < vertexCount * 4) {
+			colors = new byte[vertexCount * 4];
+			colorBuffer = BufferUtils.createByteBuffer(vertexCount * 4);
+		}
+	}
+}
@@ -46,4 +46,13 @@ public class LightNode extends Node {
 		light.enable(gl);
 		super.draw(gl);
 	}
+	
+	/* (non-Javadoc)
+	 * @see se.ltu.android.demo.scene.Node#queue(se.ltu.android.demo.scene.RenderQueue)
+	 */
+	@Override
+	public void queue(RenderQueue queue) {
+		queue.add(light);
+		super.queue(queue);
+	}
 }
@@ -0,0 +1,158 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import android.util.Log;
+
+import se.ltu.android.demo.scene.intersection.PickResult;
+import se.ltu.android.demo.scene.intersection.Ray;
+
+/**
+ * A node with several levels of detail of the same object as children,
+ * from the most detailed to the least detailed. Only one level is queued
+ * for drawing each frame, chosen by how large the node appears on screen
+ * (see <code>RenderQueue.getScreenSize</code>). A level is kept until the
+ * size is a margin (the hysteresis) outside its range, so that objects
+ * close to a threshold do not flicker between levels.<br><br>
+ * Picking always tests the most detailed level but reports this node.
+ * Levels can be generated with <code>MeshSimplifier</code>. A level is
+ * a mesh, or a Node of sub-meshes if the mesh was split (see 
+ * <code>MeshSplitter</code>).
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class LodNode extends Node {
+	private final static String TAG = "LodNode";
+	// smallest screen size each level is chosen at
+	private float[] minSizes = new float[4];
+	private float hysteresis = 0.1f;
+	// -1 until the node is queued the first time
+	private int level = -1;
+	private final PickResult levelResult = new PickResult();
+
+	/**
+	 * Creates a new instance without levels
+	 * @param name name of the node
+	 */
+	public LodNode(String name) {
+		super(name);
+	}
+
+	/**
+	 * Adds a level that is less detailed than the levels already added.
+	 * @param level the level, a mesh or a Node of split sub-meshes
+	 * @param minSize the smallest screen size (projected diameter relative
+	 * to the viewport height) this level is used at. Ignored for the last
+	 * level, which is used at any smaller size.
+	 */
+	public void addLevel(Spatial level, float minSize) {
+		int n = children.size();
+		if(n == minSizes.length) {
+			float[] bigger = new float[n * 2];
+			System.arraycopy(minSizes, 0, bigger, 0, n);
+			minSizes = bigger;
+		}
+		minSizes[n] = minSize;
+		attachChild(level);
+	}
+
+	/**
+	 * @param i level number, 0 is the most detailed
+	 * @return the level, a mesh or a Node of split sub-meshes
+	 */
+	public Spatial getLevel(int i) {
+		return children.get(i);
+	}
+
+	/**
+	 * @return number of levels
+	 */
+	public int getLevelCount() {
+		return children.size();
+	}
+
+	/**
+	 * @return the level chosen when this node was last queued, or -1 if
+	 * it has not been queued
+	 */
+	public int getCurrentLevel() {
+		return level;
+	}
+
+	/**
+	 * Sets how far outside its range, as a fraction of the threshold, the
+	 * screen size has to be before the current level is replaced.
+	 * The default is 0.1.
+	 * @param hysteresis margin around the thresholds
+	 */
+	public void setHysteresis(float hysteresis) {
+		this.hysteresis = Math.max(hysteresis, 0);
+	}
+
+	/**
+	 * Creates a clone of this node with clones of each level, see
+	 * <code>MeshSplitter.cloneModel</code>.
+	 * @param name name of the clone
+	 * @return the cloned node
+	 */
+	public LodNode cloneLod(String name) {
+		LodNode clone = new LodNode(name);
+		int len = children.size();
+		for(int i = 0; i < len; i++) {
+			Spatial level = getLevel(i);
+			clone.addLevel(MeshSplitter.cloneModel(level, level.getName()), minSizes[i]);
+		}
+		clone.hysteresis = hysteresis;
+		clone.setLocalTranslation(locTranslation);
+		clone.setLocalRotation(locRotation);
+		clone.setLocalScale(locScale);
+		return clone;
+	}
+
+	@Override
+	public void queue(RenderQueue queue) {
+		int len = children.size();
+		if(len == 0 || queue.cull(worldBound)) {
+			return;
+		}
+		level = selectLevel(queue.getScreenSize(worldBound), len);
+		children.get(level).queue(queue);
+	}
+
+	// the current level if the size is within its range widened by the
+	// hysteresis, otherwise the level whose range holds the size
+	private int selectLevel(float size, int len) {
+		int current = Math.min(level, len - 1);
+		if(current >= 0) {
+			boolean belowCurrent = current < len - 1
+					&& size < minSizes[current] * (1 - hysteresis);
+			boolean aboveCurrent = current > 0
+					&& size >= minSizes[current - 1] * (1 + hysteresis);
+			if(!belowCurrent && !aboveCurrent) {
+				return current;
+			}
+		}
+		for(int i = 0; i < len - 1; i++) {
+			if(size >= minSizes[i]) {
+				return i;
+			}
+		}
+		return len - 1;
+	}
+
+	@Override
+	public void calculatePick(Ray ray, PickResult result) {
+		if(result == null) {
+			Log.w(TAG, "PickResult is null in "+name);
+			return;
+		}
+		if(!pickable || children.isEmpty() || !ray.intersects(worldBound)) {
+			return;
+		}
+		levelResult.clear();
+		children.get(0).calculatePick(ray, levelResult);
+		if(levelResult.hasResult()) {
+			result.add(this, levelResult.getDistance());
+		}
+	}
+}
@@ -0,0 +1,341 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+
+import se.ltu.android.demo.scene.intersection.AABBox;
+import se.ltu.android.demo.scene.intersection.PickResult;
+import se.ltu.android.demo.scene.intersection.Ray;
+import se.ltu.android.demo.scene.state.Material;
+import se.ltu.android.demo.util.BufferUtils;
+
+/**
+ * A mesh built by merging several static meshes, see
+ * <code>Node.mergeChildren</code>. It remembers which vertices and
+ * indices came from which source mesh, so picking still reports the
+ * source mesh that was hit rather than the merged mesh.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class MergedMesh extends TriMesh {
+	/**
+	 * The largest number of vertices in one merged mesh with 16-bit indices
+	 */
+	public static final int MAX_VERTICES = 65536;
+
+	private ArrayList<SourceRange> ranges = new ArrayList<SourceRange>();
+	private float[] distance = new float[1];
+
+	/**
+	 * The part of a merged mesh that came from one source mesh.
+	 */
+	public static class SourceRange {
+		/**
+		 * The mesh the range came from. It is no longer attached to the scene.
+		 */
+		public final TriMesh source;
+		public final int firstVertex;
+		public final int vertexCount;
+		public final int firstIndex;
+		public final int indexCount;
+		/**
+		 * Bound of the range in the merged mesh's model coordinates
+		 */
+		public final AABBox modelBound = new AABBox();
+		final AABBox worldBound = new AABBox();
+
+		SourceRange(TriMesh source, int firstVertex, int vertexCount,
+				int firstIndex, int indexCount) {
+			this.source = source;
+			this.firstVertex = firstVertex;
+			this.vertexCount = vertexCount;
+			this.firstIndex = firstIndex;
+			this.indexCount = indexCount;
+		}
+	}
+
+	/**
+	 * Creates a new empty instance
+	 * @param name name of the mesh
+	 */
+	public MergedMesh(String name) {
+		super(name);
+	}
+
+	/**
+	 * @return the source ranges of this mesh, in vertex order
+	 */
+	public ArrayList<SourceRange> getSourceRanges() {
+		return ranges;
+	}
+
+	/**
+	 * Tests the ray against the bound of each source range and adds the
+	 * source meshes that are hit, if they were pickable. The triangles of
+	 * a range are tested as well if its source mesh has exact picking.
+	 */
+	@Override
+	public void calculatePick(Ray ray, PickResult result) {
+		if(result == null || !pickable || !ray.intersects(worldBound)) {
+			return;
+		}
+		int len = ranges.size();
+		SourceRange range;
+		for(int i = 0; i < len; i++) {
+			range = ranges.get(i);
+			if(!range.source.isPickable()) {
+				continue;
+			}
+			range.worldBound.transform(transM, range.modelBound);
+			if(!ray.intersects(range.worldBound, distance)) {
+				continue;
+			}
+			if(!range.source.isExactPicking()
+					|| pickTriangles(ray, range.firstIndex, range.indexCount, distance)) {
+				result.add(range.source, distance[0]);
+			}
+		}
+	}
+
+	/**
+	 * Merges meshes that share material and draw mode. Triangle fans are
+	 * converted to triangles and triangle strips are stitched together
+	 * with degenerate triangles. Unless 32-bit indices are allowed, a new
+	 * mesh is started whenever the vertices would not fit 16-bit indices.
+	 * Missing normals, colors or texture coordinates are filled with 
+	 * defaults when other meshes in the same merged mesh have them.
+	 * @param name base name of the merged meshes
+	 * @param meshes meshes to merge, with 16-bit or 32-bit indices, and
+	 * with at most MAX_VERTICES vertices each unless 32-bit indices are
+	 * allowed
+	 * @param matrices transformation of each mesh into the merged meshes'
+	 * model coordinates, 16 floats per mesh
+	 * @param allowIntIndices true to merge past MAX_VERTICES vertices into
+	 * meshes with 32-bit indices
+	 * @return the merged meshes
+	 */
+	static ArrayList<MergedMesh> merge(String name, ArrayList<TriMesh> meshes, float[] matrices,
+			boolean allowIntIndices) {
+		int maxVertices = allowIntIndices ? Integer.MAX_VALUE : MAX_VERTICES;
+		ArrayList<MergedMesh> result = new ArrayList<MergedMesh>();
+		boolean[] done = new boolean[meshes.size()];
+		ArrayList<TriMesh> batch = new ArrayList<TriMesh>();
+		ArrayList<Integer> batchIndex = new ArrayList<Integer>();
+
+		for(int i = 0; i < meshes.size(); i++) {
+			if(done[i]) {
+				continue;
+			}
+			TriMesh first = meshes.get(i);
+			Material material = first.getMaterial();
+			int mode = mergedMode(first.drawMode);
+			int nVertices = 0;
+			batch.clear();
+			batchIndex.clear();
+			for(int j = i; j < meshes.size(); j++) {
+				TriMesh mesh = meshes.get(j);
+				if(done[j] || mesh.getMaterial() != material || mergedMode(mesh.drawMode) != mode) {
+					continue;
+				}
+				if(nVertices > maxVertices - mesh.vertexCount) {
+					// left for a later merged mesh of the same group
+					continue;
+				}
+				nVertices += mesh.vertexCount;
+				batch.add(mesh);
+				batchIndex.add(j);
+				done[j] = true;
+			}
+			if(batch.isEmpty()) {
+				continue;
+			}
+			MergedMesh merged = build(name+result.size(), batch, batchIndex, matrices, mode);
+			merged.setMaterial(material);
+			result.add(merged);
+		}
+		return result;
+	}
+
+	// fans are merged as triangles, strips stay strips
+	private static int mergedMode(int mode) {
+		return mode == MODE_TRIANGLE_FAN ? MODE_TRIANGLES : mode;
+	}
+
+	private static MergedMesh build(String name, ArrayList<TriMesh> batch,
+			ArrayList<Integer> batchIndex, float[] matrices, int mode) {
+		int nVertices = 0;
+		int nIndices = 0;
+		boolean hasNormals = false;
+		boolean hasTexcoords = false;
+		boolean hasColors = false;
+		int len = batch.size();
+		TriMesh mesh;
+		for(int i = 0; i < len; i++) {
+			mesh = batch.get(i);
+			nVertices += mesh.vertexCount;
+			nIndices += indexCount(mesh, mode, nIndices);
+			hasNormals |= mesh.normals != null;
+			hasTexcoords |= mesh.texcoords != null;
+			hasColors |= mesh.colors != null;
+		}
+
+		float[] vertices = new float[nVertices * 3];
+		float[] normals = hasNormals ? new float[nVertices * 3] : null;
+		float[] texcoords = hasTexcoords ? new float[nVertices * 2] : null;
+		byte[] colors = hasColors ? new byte[nVertices * 4] : null;
+		int[] indices = new int[nIndices];
+
+		MergedMesh merged = new MergedMesh(name);
+		AABBox bound = merged.modelBound;
+		int vOffset = 0;
+		int iOffset = 0;
+		boolean pickable = false;
+		float x, y, z, nx, ny, nz, length;
+		int o;
+		for(int i = 0; i < len; i++) {
+			mesh = batch.get(i);
+			o = batchIndex.get(i) * 16;
+			int firstIndex = iOffset;
+			iOffset = writeIndices(mesh, mode, indices, iOffset, vOffset);
+			SourceRange range = new SourceRange(mesh, vOffset, mesh.vertexCount,
+					firstIndex, iOffset - firstIndex);
+			merged.ranges.add(range);
+
+			// positions and bounds
+			for(int v = 0; v < mesh.vertexCount; v++) {
+				x = mesh.vertices.get(v*3);
+				y = mesh.vertices.get(v*3+1);
+				z = mesh.vertices.get(v*3+2);
+				nx = matrices[o]*x + matrices[o+4]*y + matrices[o+8]*z + matrices[o+12];
+				ny = matrices[o+1]*x + matrices[o+5]*y + matrices[o+9]*z + matrices[o+13];
+				nz = matrices[o+2]*x + matrices[o+6]*y + matrices[o+10]*z + matrices[o+14];
+				vertices[(vOffset+v)*3] = nx;
+				vertices[(vOffset+v)*3+1] = ny;
+				vertices[(vOffset+v)*3+2] = nz;
+				include(range.modelBound, nx, ny, nz, v == 0);
+				include(bound, nx, ny, nz, vOffset == 0 && v == 0);
+			}
+
+			if(hasNormals) {
+				for(int v = 0; v < mesh.vertexCount; v++) {
+					if(mesh.normals != null) {
+						x = mesh.normals.get(v*3);
+						y = mesh.normals.get(v*3+1);
+						z = mesh.normals.get(v*3+2);
+					} else {
+						x = 0;
+						y = 0;
+						z = 1;
+					}
+					nx = matrices[o]*x + matrices[o+4]*y + matrices[o+8]*z;
+					ny = matrices[o+1]*x + matrices[o+5]*y + matrices[o+9]*z;
+					nz = matrices[o+2]*x + matrices[o+6]*y + matrices[o+10]*z;
+					length = (float) Math.sqrt(nx*nx + ny*ny + nz*nz);
+					if(length > 0) {
+						length = 1 / length;
+					}
+					normals[(vOffset+v)*3] = nx * length;
+					normals[(vOffset+v)*3+1] = ny * length;
+					normals[(vOffset+v)*3+2] = nz * length;
+				}
+			}
+			if(hasTexcoords && mesh.texcoords != null) {
+				for(int t = 0; t < mesh.vertexCount * 2; t++) {
+					texcoords[vOffset*2 + t] = mesh.texcoords.get(t);
+				}
+			}
+			if(hasColors) {
+				for(int c = 0; c < mesh.vertexCount * 4; c++) {
+					// opaque white where the mesh has no colors
+					colors[vOffset*4 + c] = mesh.colors != null ? mesh.colors.get(c) : (byte) 255;
+				}
+			}
+
+			pickable |= mesh.isPickable();
+			vOffset += mesh.vertexCount;
+		}
+
+		merged.drawMode = mode;
+		merged.vertexCount = nVertices;
+		merged.vertices = toBuffer(vertices);
+		// 32-bit only if the vertices do not fit 16-bit indices
+		merged.setIndices(indices);
+		if(hasNormals) {
+			merged.normals = toBuffer(normals);
+		}
+		if(hasTexcoords) {
+			merged.texcoords = toBuffer(texcoords);
+		}
+		if(hasColors) {
+			merged.colors = BufferUtils.createByteBuffer(colors.length);
+			merged.colors.put(colors);
+			merged.colors.rewind();
+		}
+		merged.hasDirtyModelBound = false;
+		merged.setPickable(pickable);
+		return merged;
+	}
+
+	// number of indices the mesh adds to a merged mesh in the given mode,
+	// after `current` indices have been written
+	private static int indexCount(TriMesh mesh, int mode, int current) {
+		int n = mesh.getIndexCount();
+		if(mesh.drawMode == MODE_TRIANGLE_FAN) {
+			return Math.max(n - 2, 0) * 3;
+		}
+		if(mode == MODE_TRIANGLE_STRIP && current > 0) {
+			// two degenerate indices, and one more to keep the winding
+			return n + 2 + (current % 2);
+		}
+		return n;
+	}
+
+	private static int writeIndices(TriMesh mesh, int mode, int[] dst, int pos, int offset) {
+		int n = mesh.getIndexCount();
+		if(mesh.drawMode == MODE_TRIANGLE_FAN) {
+			for(int i = 1; i + 1 < n; i++) {
+				dst[pos++] = mesh.getIndex(0) + offset;
+				dst[pos++] = mesh.getIndex(i) + offset;
+				dst[pos++] = mesh.getIndex(i+1) + offset;
+			}
+			return pos;
+		}
+		if(mode == MODE_TRIANGLE_STRIP && pos > 0) {
+			boolean odd = pos % 2 == 1;
+			dst[pos] = dst[pos-1];
+			pos++;
+			dst[pos++] = mesh.getIndex(0) + offset;
+			if(odd) {
+				dst[pos++] = mesh.getIndex(0) + offset;
+			}
+		}
+		for(int i = 0; i < n; i++) {
+			dst[pos++] = mesh.getIndex(i) + offset;
+		}
+		return pos;
+	}
+
+	private static void include(AABBox box, float x, float y, float z, boolean first) {
+		if(first) {
+			box.minX = box.maxX = x;
+			box.minY = box.maxY = y;
+			box.minZ = box.maxZ = z;
+			return;
+		}
+		if(x < box.minX) box.minX = x;
+		if(y < box.minY) box.minY = y;
+		if(z < box.minZ) box.minZ = z;
+		if(x > box.maxX) box.maxX = x;
+		if(y > box.maxY) box.maxY = y;
+		if(z > box.maxZ) box.maxZ = z;
+	}
+
+	private static FloatBuffer toBuffer(float[] data) {
+		FloatBuffer buf = BufferUtils.createFloatBuffer(data.length);
+		buf.put(data);
+		buf.rewind();
+		return buf;
+	}
+}
@@ -0,0 +1,324 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import se.ltu.android.demo.util.ModLoader;
+
+import android.content.res.Resources;
+import android.util.Log;
+
+/**
+ * A cache of models keyed by resource identifier or file path. Each model
+ * is loaded once into a canonical TriMesh that is never attached to the
+ * scene; <code>acquire</code> hands out clones of it, so every user
+ * shares its buffers and VBOs (the VBOs are reference counted by the
+ * clones, see <code>TriMesh.freeHardwareBuffers</code>).<br><br>
+ * Models with 32-bit indices are split into sub-meshes with 16-bit
+ * indices when they are loaded, unless the GL context is known to
+ * support 32-bit indices, see <code>MeshSplitter.splitIfNeeded</code>.
+ * Their clones are then Nodes of cloned sub-meshes.<br><br>
+ * A model is referenced until all its clones have been released. Models
+ * that are not referenced stay in the cache until the data of all cached
+ * models exceeds the byte budget, and are then evicted least recently
+ * used first.<br><br>
+ * Models can be acquired from any thread, a model is then loaded at most
+ * once even if several threads ask for it at the same time. Clones are
+ * released on the game thread, and their VBOs are freed on the GL thread
+ * with <code>freeReleased</code> once no frame that is drawn holds them.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class MeshCache {
+	private final static String TAG = "MeshCache";
+	private final long budget;
+	private final RenderQueueBuffer queues;
+	// in least recently used order
+	private final LinkedHashMap<String, Entry> entries =
+		new LinkedHashMap<String, Entry>(16, 0.75f, true);
+	// the entry of each clone that has been handed out
+	private final IdentityHashMap<TriMesh, Entry> clones =
+		new IdentityHashMap<TriMesh, Entry>();
+	// clones released by the game thread, waiting for the GL thread
+	private final ConcurrentLinkedQueue<Release> released =
+		new ConcurrentLinkedQueue<Release>();
+	private boolean quantized = false;
+	private long resident = 0;
+	private int hits = 0;
+	private int misses = 0;
+	private int evictions = 0;
+
+	// a cached model, locked while it is loaded
+	private static class Entry {
+		final String key;
+		// the canonical mesh, or a Node of the canonical sub-meshes if it
+		// was split, null until loaded
+		Spatial model;
+		// number of meshes in a clone, each is referenced and released
+		int parts = 1;
+		int refs = 0;
+		int bytes = 0;
+
+		Entry(String key) {
+			this.key = key;
+		}
+	}
+
+	// a released clone and the number of frames published before it
+	private static class Release {
+		final TriMesh mesh;
+		final long frame;
+
+		Release(TriMesh mesh, long frame) {
+			this.mesh = mesh;
+			this.frame = frame;
+		}
+	}
+
+	/**
+	 * Creates an empty cache.
+	 * @param budget number of bytes of model data to keep before models
+	 * that are not referenced are evicted
+	 * @param queues the render queues that released clones may still be
+	 * drawn from
+	 */
+	public MeshCache(long budget, RenderQueueBuffer queues) {
+		this.budget = budget;
+		this.queues = queues;
+	}
+
+	/**
+	 * Sets if models are quantized when they are loaded, see
+	 * <code>TriMesh.setQuantized</code>. Models that are already cached
+	 * are not changed.
+	 * @param value true to quantize models
+	 */
+	public synchronized void setQuantized(boolean value) {
+		quantized = value;
+	}
+
+	/**
+	 * Returns a clone of a model in a raw resource, loading the model if
+	 * it is not cached. Release the clone with <code>release</code> when
+	 * it is no longer used.
+	 * @param name name of the clone
+	 * @param res resources to load from
+	 * @param id resource identifier (like R.raw.whatever)
+	 * @return the clone, a TriMesh or a Node of sub-meshes if the model
+	 * was split
+	 * @throws IOException if the model could not be loaded
+	 */
+	public Spatial acquire(String name, Resources res, int id) throws IOException {
+		return acquire("raw:"+id, name, res, id, null);
+	}
+
+	/**
+	 * Returns a clone of a model in a file, loading the model if it is not
+	 * cached. Release the clone with <code>release</code> when it is no
+	 * longer used.
+	 * @param name name of the clone
+	 * @param file model file
+	 * @return the clone, a TriMesh or a Node of sub-meshes if the model
+	 * was split
+	 * @throws IOException if the model could not be loaded
+	 */
+	public Spatial acquire(String name, File file) throws IOException {
+		return acquire(file.getPath(), name, null, 0, file);
+	}
+
+	private Spatial acquire(String key, String name, Resources res, int id, File file)
+			throws IOException {
+		Entry entry;
+		boolean quantize;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry == null) {
+				entry = new Entry(key);
+				entries.put(key, entry);
+				misses++;
+			} else {
+				hits++;
+			}
+			entry.refs++;
+			quantize = quantized;
+		}
+		// other threads asking for the same model wait here while it loads
+		synchronized(entry) {
+			if(entry.model == null) {
+				TriMesh mesh;
+				try {
+					ModLoader loader = new ModLoader();
+					if(file != null) {
+						mesh = loader.loadModel(key, file);
+					} else {
+						mesh = loader.loadModel(key, res, id);
+					}
+				} catch (IOException e) {
+					synchronized(this) {
+						if(--entry.refs == 0 && entries.get(key) == entry) {
+							entries.remove(key);
+						}
+					}
+					throw e;
+				}
+				Spatial model = MeshSplitter.splitIfNeeded(mesh);
+				int bytes = 0;
+				if(model instanceof Node) {
+					ArrayList<Spatial> parts = ((Node) model).getChildren();
+					for(int i = 0; i < parts.size(); i++) {
+						bytes += prepare((TriMesh) parts.get(i), quantize);
+					}
+					entry.parts = parts.size();
+				} else {
+					bytes = prepare(mesh, quantize);
+				}
+				entry.model = model;
+				synchronized(this) {
+					entry.bytes = bytes;
+					resident += entry.bytes;
+					evict();
+				}
+			}
+			Spatial clone = MeshSplitter.cloneModel(entry.model, name);
+			synchronized(this) {
+				// one reference was taken above, the others are for the
+				// rest of the sub-meshes
+				entry.refs += entry.parts - 1;
+				if(clone instanceof Node) {
+					ArrayList<Spatial> parts = ((Node) clone).getChildren();
+					for(int i = 0; i < parts.size(); i++) {
+						clones.put((TriMesh) parts.get(i), entry);
+					}
+				} else {
+					clones.put((TriMesh) clone, entry);
+				}
+			}
+			return clone;
+		}
+	}
+	
+	// quantizes a canonical mesh if asked to, returns its size in bytes
+	private static int prepare(TriMesh mesh, boolean quantize) {
+		if(quantize) {
+			mesh.setQuantized(true);
+		}
+		return mesh.getDataSize();
+	}
+
+	/**
+	 * Releases clones handed out by <code>acquire</code>: the spatial if it
+	 * is one, or every clone under it if it is a Node. The clones must not
+	 * be drawn after this. Called from the game thread, after the clones
+	 * have been detached from the scene, or from any thread for clones
+	 * that were never attached (like the levels of a load that failed).
+	 * @param spatial clone or node to release
+	 */
+	public void release(Spatial spatial) {
+		if(spatial instanceof Node) {
+			ArrayList<Spatial> children = ((Node) spatial).getChildren();
+			int len = children.size();
+			for(int i = 0; i < len; i++) {
+				release(children.get(i));
+			}
+			return;
+		}
+		if(!(spatial instanceof TriMesh)) {
+			return;
+		}
+		TriMesh mesh = (TriMesh) spatial;
+		synchronized(this) {
+			Entry entry = clones.remove(mesh);
+			if(entry == null) {
+				Log.w(TAG, mesh.getName()+" was not handed out by this cache or is already released");
+				return;
+			}
+			entry.refs--;
+			evict();
+		}
+		// frames published after this do not hold the clone
+		released.add(new Release(mesh, queues == null ? 0 : queues.getPublished()));
+	}
+
+	/**
+	 * Frees the hardware buffers of released clones that can not be
+	 * drawn anymore. Called from the GL thread with the render queue about
+	 * to be drawn.
+	 * @param gl the GL context
+	 * @param drawn the render queue that is drawn next
+	 * @return number of clones whose buffers were freed
+	 */
+	public int freeReleased(GL10 gl, RenderQueue drawn) {
+		int freed = 0;
+		Release release;
+		while((release = released.peek()) != null && release.frame < drawn.sequence) {
+			released.poll();
+			release.mesh.released = true;
+			release.mesh.freeHardwareBuffers(gl);
+			freed++;
+		}
+		return freed;
+	}
+
+	// evicts models that are not referenced, least recently used first,
+	// until the cached data fits the budget
+	private void evict() {
+		if(resident <= budget) {
+			return;
+		}
+		Iterator<Entry> it = entries.values().iterator();
+		Entry entry;
+		while(resident > budget && it.hasNext()) {
+			entry = it.next();
+			if(entry.refs == 0 && entry.model != null) {
+				it.remove();
+				resident -= entry.bytes;
+				evictions++;
+				Log.d(TAG, "Evicted "+entry.key+" ("+entry.bytes+" bytes)");
+			}
+		}
+	}
+
+	/**
+	 * @return number of acquired clones whose model was cached
+	 */
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	/**
+	 * @return number of acquired clones whose model had to be loaded
+	 */
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * @return number of models evicted
+	 */
+	public synchronized int getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return number of bytes of model data in the cache
+	 */
+	public synchronized long getResidentBytes() {
+		return resident;
+	}
+
+	/**
+	 * @return number of models in the cache
+	 */
+	public synchronized int size() {
+		return entries.size();
+	}
+}
@@ -0,0 +1,547 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import se.ltu.android.demo.util.ModLoader;
+
+import android.util.Log;
+
+/**
+ * Offline optimization of mesh index and vertex order, meant to be run
+ * when models are converted (see <code>DemoGameThread.convertModel</code>
+ * or <code>main</code>) rather than when they are loaded.<br><br>
+ *
+ * Degenerate triangles are removed and the rest are reordered for the post-transform vertex cache with Tom
+ * Forsyth's linear-speed algorithm, the clusters that algorithm produces
+ * are then sorted so that outward facing parts are drawn first (to reduce
+ * overdraw), and finally the vertices are renumbered in the order they are
+ * first used, for fetch locality. The result can optionally be turned into
+ * a single triangle strip.<br><br>
+ *
+ * The quality of the triangle order is measured as ACMR, the average
+ * number of cache misses per triangle, with a simulated FIFO cache.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public abstract class MeshOptimizer {
+	private final static String TAG = "MeshOptimizer";
+	/**
+	 * Size of the simulated FIFO cache ACMR is reported for
+	 */
+	public static final int FIFO_SIZE = 16;
+	// the LRU cache the triangle order is optimized for
+	private static final int CACHE_SIZE = 32;
+	private static final float CACHE_DECAY_POWER = 1.5f;
+	private static final float LAST_TRI_SCORE = 0.75f;
+	private static final float VALENCE_BOOST_SCALE = 2.0f;
+	private static final float VALENCE_BOOST_POWER = 0.5f;
+
+	/**
+	 * Runs all optimizations on a mesh and replaces its indices and
+	 * vertex data. Call this before the mesh is drawn or cloned.
+	 * @param mesh mesh to optimize
+	 * @param strip true to draw the result as one triangle strip
+	 */
+	public static void optimize(TriMesh mesh, boolean strip) {
+		if(mesh.vertices == null || !mesh.hasIndices()) {
+			Log.e(TAG, "Can not optimize a TriMesh with no vertices or indices");
+			return;
+		}
+		float before = acmr(mesh, FIFO_SIZE);
+		int[] triangles = removeDegenerates(MeshSplitter.toTriangles(mesh));
+		triangles = optimizeVertexCache(triangles, mesh.vertexCount);
+		float[] positions = new float[mesh.vertexCount * 3];
+		mesh.vertices.rewind();
+		mesh.vertices.get(positions);
+		mesh.vertices.rewind();
+		triangles = optimizeOverdraw(triangles, positions, FIFO_SIZE);
+		optimizeVertexFetch(mesh, triangles);
+		// unused vertices may be gone, and exported models keep their bound
+		mesh.updateModelBound();
+		if(strip) {
+			mesh.setIndices(toStrip(triangles));
+			mesh.drawMode = TriMesh.MODE_TRIANGLE_STRIP;
+		} else {
+			mesh.setIndices(triangles);
+			mesh.drawMode = TriMesh.MODE_TRIANGLES;
+		}
+		Log.d(TAG, mesh.getName()+": ACMR "+before+" -> "+acmr(mesh, FIFO_SIZE)
+				+" ("+mesh.getIndexCount()+" indices)");
+	}
+
+	/**
+	 * @param triangles triangle list
+	 * @return the triangles that use three different vertices
+	 */
+	public static int[] removeDegenerates(int[] triangles) {
+		int len = 0;
+		int a, b, c;
+		for(int t = 0; t + 2 < triangles.length; t += 3) {
+			a = triangles[t];
+			b = triangles[t+1];
+			c = triangles[t+2];
+			if(a != b && b != c && a != c) {
+				triangles[len++] = a;
+				triangles[len++] = b;
+				triangles[len++] = c;
+			}
+		}
+		int[] result = new int[len];
+		System.arraycopy(triangles, 0, result, 0, len);
+		return result;
+	}
+
+	/**
+	 * Reorders triangles for a post-transform vertex cache, see Tom
+	 * Forsyth, "Linear-Speed Vertex Cache Optimisation".
+	 * @param triangles triangle list, three indices per triangle
+	 * @param vertexCount number of vertices
+	 * @return the reordered triangle list
+	 */
+	public static int[] optimizeVertexCache(int[] triangles, int vertexCount) {
+		int nTriangles = triangles.length / 3;
+		// triangles using each vertex, the ones not yet emitted first
+		int[] offsets = new int[vertexCount + 1];
+		int[] valence = new int[vertexCount];
+		for(int i = 0; i < nTriangles * 3; i++) {
+			valence[triangles[i]]++;
+		}
+		for(int v = 0; v < vertexCount; v++) {
+			offsets[v+1] = offsets[v] + valence[v];
+		}
+		int[] adjacency = new int[nTriangles * 3];
+		int[] fill = new int[vertexCount];
+		int v;
+		for(int t = 0; t < nTriangles; t++) {
+			for(int k = 0; k < 3; k++) {
+				v = triangles[t*3+k];
+				adjacency[offsets[v] + fill[v]++] = t;
+			}
+		}
+
+		int[] cachePos = new int[vertexCount];
+		float[] vertexScore = new float[vertexCount];
+		for(v = 0; v < vertexCount; v++) {
+			cachePos[v] = -1;
+			vertexScore[v] = vertexScore(-1, valence[v]);
+		}
+		float[] triangleScore = new float[nTriangles];
+		boolean[] emitted = new boolean[nTriangles];
+		for(int t = 0; t < nTriangles; t++) {
+			triangleScore[t] = vertexScore[triangles[t*3]] + vertexScore[triangles[t*3+1]]
+					+ vertexScore[triangles[t*3+2]];
+		}
+
+		int[] cache = new int[CACHE_SIZE + 3];
+		int[] newCache = new int[CACHE_SIZE + 3];
+		int cacheLen = 0;
+		int[] result = new int[nTriangles * 3];
+		int best = -1;
+		int cursor = 0;
+		for(int out = 0; out < nTriangles; out++) {
+			if(best < 0) {
+				// dead end, continue with the first remaining triangle
+				while(emitted[cursor]) {
+					cursor++;
+				}
+				best = cursor;
+			}
+			emitted[best] = true;
+			int newLen = 0;
+			for(int k = 0; k < 3; k++) {
+				v = triangles[best*3+k];
+				result[out*3+k] = v;
+				newCache[newLen++] = v;
+				// remove the triangle from the vertex's remaining triangles
+				int end = offsets[v] + valence[v] - 1;
+				for(int a = offsets[v]; a <= end; a++) {
+					if(adjacency[a] == best) {
+						adjacency[a] = adjacency[end];
+						adjacency[end] = best;
+						break;
+					}
+				}
+				valence[v]--;
+			}
+			for(int i = 0; i < cacheLen; i++) {
+				v = cache[i];
+				if(v != newCache[0] && v != newCache[1] && v != newCache[2]) {
+					newCache[newLen++] = v;
+				}
+			}
+			int[] swap = cache;
+			cache = newCache;
+			newCache = swap;
+			cacheLen = newLen;
+
+			// vertices pushed out of the cache lose their cache score
+			for(int i = CACHE_SIZE; i < cacheLen; i++) {
+				v = cache[i];
+				cachePos[v] = -1;
+				vertexScore[v] = vertexScore(-1, valence[v]);
+				updateTriangles(v, offsets, valence, adjacency, triangles, vertexScore, triangleScore);
+			}
+			cacheLen = Math.min(cacheLen, CACHE_SIZE);
+			for(int i = 0; i < cacheLen; i++) {
+				v = cache[i];
+				cachePos[v] = i;
+				vertexScore[v] = vertexScore(i, valence[v]);
+			}
+			best = -1;
+			float bestScore = -1;
+			for(int i = 0; i < cacheLen; i++) {
+				v = cache[i];
+				updateTriangles(v, offsets, valence, adjacency, triangles, vertexScore, triangleScore);
+				for(int a = offsets[v]; a < offsets[v] + valence[v]; a++) {
+					if(triangleScore[adjacency[a]] > bestScore) {
+						bestScore = triangleScore[adjacency[a]];
+						best = adjacency[a];
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	private static float vertexScore(int cachePos, int valence) {
+		if(valence == 0) {
+			// no triangles left to draw with this vertex
+			return -1;
+		}
+		float score = 0;
+		if(cachePos >= 0) {
+			if(cachePos < 3) {
+				// used by the last triangle, a fixed score so that it is
+				// not always the next triangle's first choice
+				score = LAST_TRI_SCORE;
+			} else {
+				float scaler = 1.0f / (CACHE_SIZE - 3);
+				score = (float) Math.pow(1.0f - (cachePos - 3) * scaler, CACHE_DECAY_POWER);
+			}
+		}
+		// bonus for vertices with few triangles left, so that they are
+		// finished before they become lone triangles
+		return score + VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+	}
+
+	// rescores the remaining triangles of a vertex
+	private static void updateTriangles(int v, int[] offsets, int[] valence, int[] adjacency,
+			int[] triangles, float[] vertexScore, float[] triangleScore) {
+		int t;
+		for(int a = offsets[v]; a < offsets[v] + valence[v]; a++) {
+			t = adjacency[a];
+			triangleScore[t] = vertexScore[triangles[t*3]] + vertexScore[triangles[t*3+1]]
+					+ vertexScore[triangles[t*3+2]];
+		}
+	}
+
+	/**
+	 * Sorts the clusters of a cache optimized triangle list so that
+	 * clusters facing away from the center of the mesh come first. Outer
+	 * surfaces then tend to be drawn before the surfaces they hide, from
+	 * any direction. A cluster ends where the simulated cache is flushed,
+	 * so the cache efficiency is kept.
+	 * @param triangles cache optimized triangle list
+	 * @param positions x, y and z of each vertex
+	 * @param cacheSize size of the simulated FIFO cache
+	 * @return the reordered triangle list
+	 */
+	public static int[] optimizeOverdraw(int[] triangles, float[] positions, int cacheSize) {
+		int nTriangles = triangles.length / 3;
+		int vertexCount = positions.length / 3;
+		// clusters start at triangles where all three vertices miss
+		int[] clusterStart = new int[nTriangles + 1];
+		int nClusters = 0;
+		int[] inserted = newFifo(vertexCount);
+		int misses = 0;
+		int missed;
+		for(int t = 0; t < nTriangles; t++) {
+			missed = 0;
+			for(int k = 0; k < 3; k++) {
+				if(fifoMiss(inserted, triangles[t*3+k], misses, cacheSize)) {
+					inserted[triangles[t*3+k]] = misses++;
+					missed++;
+				}
+			}
+			if(t == 0 || missed == 3) {
+				clusterStart[nClusters++] = t;
+			}
+		}
+		clusterStart[nClusters] = nTriangles;
+
+		float cx = 0, cy = 0, cz = 0;
+		for(int v = 0; v < vertexCount; v++) {
+			cx += positions[v*3];
+			cy += positions[v*3+1];
+			cz += positions[v*3+2];
+		}
+		if(vertexCount > 0) {
+			cx /= vertexCount;
+			cy /= vertexCount;
+			cz /= vertexCount;
+		}
+
+		// dot product of the cluster's area weighted normal and the
+		// direction from the mesh center to the cluster center
+		final float[] sortKey = new float[nClusters];
+		Integer[] order = new Integer[nClusters];
+		int a, b, c;
+		float ux, uy, uz, vx, vy, vz, nx, ny, nz, px, py, pz, area;
+		for(int i = 0; i < nClusters; i++) {
+			nx = ny = nz = px = py = pz = area = 0;
+			for(int t = clusterStart[i]; t < clusterStart[i+1]; t++) {
+				a = triangles[t*3] * 3;
+				b = triangles[t*3+1] * 3;
+				c = triangles[t*3+2] * 3;
+				ux = positions[b] - positions[a];
+				uy = positions[b+1] - positions[a+1];
+				uz = positions[b+2] - positions[a+2];
+				vx = positions[c] - positions[a];
+				vy = positions[c+1] - positions[a+1];
+				vz = positions[c+2] - positions[a+2];
+				float tx = uy*vz - uz*vy;
+				float ty = uz*vx - ux*vz;
+				float tz = ux*vy - uy*vx;
+				float tArea = (float) Math.sqrt(tx*tx + ty*ty + tz*tz);
+				nx += tx;
+				ny += ty;
+				nz += tz;
+				px += (positions[a] + positions[b] + positions[c]) * tArea;
+				py += (positions[a+1] + positions[b+1] + positions[c+1]) * tArea;
+				pz += (positions[a+2] + positions[b+2] + positions[c+2]) * tArea;
+				area += tArea;
+			}
+			if(area > 0) {
+				px = px / (3 * area) - cx;
+				py = py / (3 * area) - cy;
+				pz = pz / (3 * area) - cz;
+			}
+			sortKey[i] = nx*px + ny*py + nz*pz;
+			order[i] = i;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer x, Integer y) {
+				return Float.compare(sortKey[y], sortKey[x]);
+			}
+		});
+
+		int[] result = new int[nTriangles * 3];
+		int pos = 0;
+		for(int i = 0; i < nClusters; i++) {
+			int cluster = order[i];
+			int first = clusterStart[cluster] * 3;
+			int len = (clusterStart[cluster+1] - clusterStart[cluster]) * 3;
+			System.arraycopy(triangles, first, result, pos, len);
+			pos += len;
+		}
+		return result;
+	}
+
+	/**
+	 * Renumbers the vertices of a mesh in the order the triangles first
+	 * use them and rewrites the triangle list to match. Vertices that no
+	 * triangle uses are removed.
+	 * @param mesh mesh whose vertex data is reordered
+	 * @param triangles triangle list of the mesh, rewritten in place
+	 * @return the new number of vertices
+	 */
+	public static int optimizeVertexFetch(TriMesh mesh, int[] triangles) {
+		int[] remap = new int[mesh.vertexCount];
+		Arrays.fill(remap, -1);
+		int[] order = new int[mesh.vertexCount];
+		int nUsed = 0;
+		int v;
+		for(int i = 0; i < triangles.length; i++) {
+			v = triangles[i];
+			if(remap[v] < 0) {
+				remap[v] = nUsed;
+				order[nUsed++] = v;
+			}
+			triangles[i] = remap[v];
+		}
+
+		float[] vertices = permute(mesh.vertices, 3, order, nUsed);
+		float[] normals = mesh.normals != null ? permute(mesh.normals, 3, order, nUsed) : null;
+		float[] texcoords = mesh.texcoords != null ? permute(mesh.texcoords, 2, order, nUsed) : null;
+		byte[] colors = null;
+		if(mesh.colors != null) {
+			colors = new byte[nUsed * 4];
+			for(int i = 0; i < nUsed; i++) {
+				for(int k = 0; k < 4; k++) {
+					colors[i*4+k] = mesh.colors.get(order[i]*4+k);
+				}
+			}
+		}
+		mesh.setVertices(vertices);
+		if(normals != null) {
+			mesh.setNormals(normals);
+		}
+		if(texcoords != null) {
+			mesh.setTexCoords(texcoords);
+		}
+		if(colors != null) {
+			mesh.setColors(colors);
+		}
+		return nUsed;
+	}
+
+	private static float[] permute(FloatBuffer src, int size, int[] order, int count) {
+		float[] result = new float[count * size];
+		for(int i = 0; i < count; i++) {
+			for(int k = 0; k < size; k++) {
+				result[i*size+k] = src.get(order[i]*size+k);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Turns a triangle list into a single triangle strip, keeping the
+	 * order of the triangles. A triangle that continues the strip adds one
+	 * index; other triangles are joined with degenerate triangles.
+	 * @param triangles triangle list
+	 * @return strip indices
+	 */
+	public static int[] toStrip(int[] triangles) {
+		// at most six indices per triangle: two to join, one for the
+		// winding and three for the triangle itself
+		int[] strip = new int[triangles.length * 2];
+		int len = 0;
+		int a, b, c;
+		for(int t = 0; t + 2 < triangles.length; t += 3) {
+			a = triangles[t];
+			b = triangles[t+1];
+			c = triangles[t+2];
+			if(len >= 2) {
+				int p = strip[len-2];
+				int q = strip[len-1];
+				// odd strip triangles have their first two indices swapped
+				boolean odd = (len - 2) % 2 == 1;
+				int next = -1;
+				for(int r = 0; r < 3 && next < 0; r++) {
+					if(odd ? (a == q && b == p) : (a == p && b == q)) {
+						next = c;
+					}
+					int tmp = a;
+					a = b;
+					b = c;
+					c = tmp;
+				}
+				if(next >= 0) {
+					strip[len++] = next;
+					continue;
+				}
+				strip[len++] = q;
+				strip[len++] = a;
+				if(len % 2 == 1) {
+					strip[len++] = a;
+				}
+			}
+			strip[len++] = a;
+			strip[len++] = b;
+			strip[len++] = c;
+		}
+		int[] result = new int[len];
+		System.arraycopy(strip, 0, result, 0, len);
+		return result;
+	}
+
+	/**
+	 * @param mesh mesh to measure
+	 * @param cacheSize size of the simulated FIFO cache
+	 * @return the average number of cache misses per (non-degenerate)
+	 * triangle when drawing the mesh. Fans are measured as strips.
+	 */
+	public static float acmr(TriMesh mesh, int cacheSize) {
+		int n = mesh.getIndexCount();
+		int[] inserted = newFifo(mesh.vertexCount);
+		int misses = 0;
+		int triangles = 0;
+		int v;
+		boolean list = mesh.drawMode == TriMesh.MODE_TRIANGLES;
+		for(int i = 0; i < n; i++) {
+			v = mesh.getIndex(i);
+			if(fifoMiss(inserted, v, misses, cacheSize)) {
+				inserted[v] = misses++;
+			}
+			if(i >= 2 && (!list || i % 3 == 2) && v != mesh.getIndex(i-1)
+					&& v != mesh.getIndex(i-2) && mesh.getIndex(i-1) != mesh.getIndex(i-2)) {
+				triangles++;
+			}
+		}
+		return triangles > 0 ? (float) misses / triangles : 0;
+	}
+
+	// the miss number each vertex was inserted at, in a FIFO cache
+	// simulated by counting misses
+	private static int[] newFifo(int vertexCount) {
+		int[] inserted = new int[vertexCount];
+		Arrays.fill(inserted, Integer.MIN_VALUE / 2);
+		return inserted;
+	}
+
+	private static boolean fifoMiss(int[] inserted, int v, int misses, int cacheSize) {
+		return misses - inserted[v] > cacheSize;
+	}
+
+	/**
+	 * Optimizes model files from the command line.<br>
+	 * Usage: <code>MeshOptimizer [-strip] [-mapped] input.mod output.mod ...</code><br>
+	 * Models in either of our formats are read and written in the stream
+	 * format, or the mappable format with <code>-mapped</code>.
+	 * @param args options followed by pairs of input and output files
+	 * @throws IOException if a model could not be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		boolean strip = false;
+		boolean mapped = false;
+		int i = 0;
+		for(; i < args.length && args[i].startsWith("-"); i++) {
+			if(args[i].equals("-strip")) {
+				strip = true;
+			} else if(args[i].equals("-mapped")) {
+				mapped = true;
+			} else {
+				System.err.println("Unknown option: "+args[i]);
+				return;
+			}
+		}
+		if(i == args.length || (args.length - i) % 2 != 0) {
+			System.err.println("Usage: MeshOptimizer [-strip] [-mapped] input.mod output.mod ...");
+			return;
+		}
+		ModLoader loader = new ModLoader();
+		for(; i < args.length; i += 2) {
+			File input = new File(args[i]);
+			TriMesh mesh = loader.loadModel(input.getName(), new FileInputStream(input));
+			float before = acmr(mesh, FIFO_SIZE);
+			optimize(mesh, strip);
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(args[i+1]), 8192);
+			try {
+				if(mapped) {
+					mesh.exportMappedModel(out, ByteOrder.LITTLE_ENDIAN);
+				} else {
+					DataOutputStream dos = new DataOutputStream(out);
+					mesh.exportModel(dos);
+					dos.flush();
+				}
+			} finally {
+				out.close();
+			}
+			System.out.println(args[i]+": ACMR "+before+" -> "+acmr(mesh, FIFO_SIZE)
+					+" ("+mesh.getIndexCount()+" indices) -> "+args[i+1]);
+		}
+	}
+}
@@ -0,0 +1,548 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+import se.ltu.android.demo.util.ModLoader;
+
+import android.util.Log;
+
+/**
+ * Offline mesh simplification by edge collapses ordered by quadric error
+ * (Garland and Heckbert, "Surface Simplification Using Quadric Error
+ * Metrics"), for generating levels of detail (see <code>LodNode</code>).
+ * <br><br>
+ * Vertices at the same position are treated as one, so seams between
+ * normals or texture coordinates stay closed. An edge is collapsed by
+ * moving one end onto the other, which keeps the vertex data of the
+ * surviving end; the vertices of the removed end are replaced by the
+ * vertex of the surviving end with the closest normal. Collapses that
+ * would flip a triangle are skipped, and open borders are held in place
+ * by extra planes.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public abstract class MeshSimplifier {
+	private final static String TAG = "MeshSimplifier";
+	// weight of the planes that keep open borders in place
+	private static final double BORDER_WEIGHT = 1000;
+	// smallest cosine between a triangle's normal before and after a collapse
+	private static final double MIN_NORMAL_DOT = 0.2;
+
+	/**
+	 * Simplifies a mesh to a fraction of its triangles.
+	 * @param mesh mesh to simplify, not changed
+	 * @param name name of the new mesh
+	 * @param ratio fraction of the triangles to keep, between 0 and 1
+	 * @return the simplified mesh, drawn as triangles and optimized with
+	 * <code>MeshOptimizer</code>
+	 */
+	public static TriMesh simplify(TriMesh mesh, String name, float ratio) {
+		return simplify(mesh, name, (int) (mesh.getTriangleCount() * ratio));
+	}
+
+	/**
+	 * Simplifies a mesh until it has at most the given number of
+	 * triangles, or until no more edges can be collapsed.
+	 * @param mesh mesh to simplify, not changed
+	 * @param name name of the new mesh
+	 * @param targetTriangles number of triangles to keep
+	 * @return the simplified mesh, drawn as triangles and optimized with
+	 * <code>MeshOptimizer</code>
+	 */
+	public static TriMesh simplify(TriMesh mesh, String name, int targetTriangles) {
+		if(mesh.vertices == null || !mesh.hasIndices()) {
+			Log.e(TAG, "Can not simplify a TriMesh with no vertices or indices");
+			return null;
+		}
+		long start = System.nanoTime();
+		Simplification s = new Simplification(mesh);
+		int before = s.live;
+		s.run(targetTriangles);
+		TriMesh result = s.createMesh(name);
+		MeshOptimizer.optimize(result, false);
+		result.setMaterial(mesh.getMaterial());
+		Log.d(TAG, mesh.getName()+": "+before+" -> "+s.live+" triangles in "
+				+(System.nanoTime() - start) / 1000000+" ms");
+		return result;
+	}
+
+	// a collapse of the position from onto the position to
+	private static class Collapse {
+		final double cost;
+		final int from;
+		final int to;
+		final int fromVersion;
+		final int toVersion;
+
+		Collapse(double cost, int from, int to, int fromVersion, int toVersion) {
+			this.cost = cost;
+			this.from = from;
+			this.to = to;
+			this.fromVersion = fromVersion;
+			this.toVersion = toVersion;
+		}
+	}
+
+	// the state of one simplification
+	private static class Simplification {
+		final TriMesh mesh;
+		// vertex triples of the triangles, vertices are resolved through
+		// vertexRemap after their positions are collapsed
+		final int[] triangles;
+		final boolean[] dead;
+		int live;
+		final int[] vertexRemap;
+		// position of each vertex, and the coordinates and quadric of
+		// each position
+		final int[] positionOf;
+		final double[] coords;
+		final double[] quadrics;
+		final boolean[] removed;
+		final int[] version;
+		// vertices and (live or dead) triangles at each position
+		final int[][] vertexLists;
+		final int[] vertexListLen;
+		int[][] triangleLists;
+		int[] triangleListLen;
+		final PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>(64,
+				new Comparator<Collapse>() {
+			public int compare(Collapse a, Collapse b) {
+				return Double.compare(a.cost, b.cost);
+			}
+		});
+		final double[] q = new double[10];
+
+		Simplification(TriMesh mesh) {
+			this.mesh = mesh;
+			triangles = MeshOptimizer.removeDegenerates(MeshSplitter.toTriangles(mesh));
+			int nTriangles = triangles.length / 3;
+			dead = new boolean[nTriangles];
+			int nVertices = mesh.vertexCount;
+			vertexRemap = new int[nVertices];
+			for(int i = 0; i < nVertices; i++) {
+				vertexRemap[i] = i;
+			}
+
+			// vertices with exactly the same position share a position
+			Integer[] sorted = new Integer[nVertices];
+			for(int i = 0; i < nVertices; i++) {
+				sorted[i] = i;
+			}
+			Arrays.sort(sorted, new Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					for(int c = 0; c < 3; c++) {
+						int cmp = Float.compare(Simplification.this.mesh.vertices.get(a*3+c),
+								Simplification.this.mesh.vertices.get(b*3+c));
+						if(cmp != 0) {
+							return cmp;
+						}
+					}
+					return 0;
+				}
+			});
+			positionOf = new int[nVertices];
+			int nPositions = 0;
+			for(int i = 0; i < nVertices; i++) {
+				int v = sorted[i];
+				if(i > 0 && samePosition(v, sorted[i-1])) {
+					positionOf[v] = positionOf[sorted[i-1]];
+				} else {
+					positionOf[v] = nPositions++;
+				}
+			}
+			coords = new double[nPositions * 3];
+			for(int v = 0; v < nVertices; v++) {
+				for(int c = 0; c < 3; c++) {
+					coords[positionOf[v]*3+c] = mesh.vertices.get(v*3+c);
+				}
+			}
+			quadrics = new double[nPositions * 10];
+			removed = new boolean[nPositions];
+			version = new int[nPositions];
+			vertexLists = new int[nPositions][];
+			vertexListLen = new int[nPositions];
+			triangleLists = new int[nPositions][];
+			triangleListLen = new int[nPositions];
+			for(int v = 0; v < nVertices; v++) {
+				add(vertexLists, vertexListLen, positionOf[v], v);
+			}
+
+			live = 0;
+			HashMap<Long, Integer> edgeUse = new HashMap<Long, Integer>();
+			for(int t = 0; t < nTriangles; t++) {
+				int a = position(t, 0);
+				int b = position(t, 1);
+				int c = position(t, 2);
+				if(a == b || b == c || a == c) {
+					// degenerate once vertices are welded
+					dead[t] = true;
+					continue;
+				}
+				live++;
+				add(triangleLists, triangleListLen, a, t);
+				add(triangleLists, triangleListLen, b, t);
+				add(triangleLists, triangleListLen, c, t);
+				addPlaneQuadric(a, b, c);
+				countEdge(edgeUse, a, b);
+				countEdge(edgeUse, b, c);
+				countEdge(edgeUse, c, a);
+			}
+			for(int t = 0; t < nTriangles; t++) {
+				if(dead[t]) {
+					continue;
+				}
+				for(int k = 0; k < 3; k++) {
+					int a = position(t, k);
+					int b = position(t, (k+1) % 3);
+					if(edgeUse.get(edgeKey(a, b)) == 1) {
+						addBorderQuadric(a, b, position(t, (k+2) % 3));
+					}
+				}
+			}
+			for(int t = 0; t < nTriangles; t++) {
+				if(!dead[t]) {
+					for(int k = 0; k < 3; k++) {
+						addCandidates(position(t, k), position(t, (k+1) % 3));
+					}
+				}
+			}
+		}
+
+		private boolean samePosition(int a, int b) {
+			return mesh.vertices.get(a*3) == mesh.vertices.get(b*3)
+				&& mesh.vertices.get(a*3+1) == mesh.vertices.get(b*3+1)
+				&& mesh.vertices.get(a*3+2) == mesh.vertices.get(b*3+2);
+		}
+
+		// collapses edges until the target is reached
+		void run(int targetTriangles) {
+			Collapse c;
+			while(live > targetTriangles && (c = queue.poll()) != null) {
+				if(removed[c.from] || removed[c.to] || version[c.from] != c.fromVersion
+						|| version[c.to] != c.toVersion || flips(c.from, c.to)) {
+					continue;
+				}
+				collapse(c.from, c.to);
+			}
+		}
+
+		// true if moving from onto to turns any remaining triangle around
+		private boolean flips(int from, int to) {
+			int[] list = triangleLists[from];
+			for(int i = 0; i < triangleListLen[from]; i++) {
+				int t = list[i];
+				if(dead[t]) {
+					continue;
+				}
+				int k = 0;
+				while(position(t, k) != from) {
+					k++;
+				}
+				int b = position(t, (k+1) % 3);
+				int c = position(t, (k+2) % 3);
+				if(b == to || c == to) {
+					// removed by the collapse
+					continue;
+				}
+				double[] n0 = normal(from, b, c);
+				double[] n1 = normal(to, b, c);
+				double l0 = Math.sqrt(n0[0]*n0[0] + n0[1]*n0[1] + n0[2]*n0[2]);
+				double l1 = Math.sqrt(n1[0]*n1[0] + n1[1]*n1[1] + n1[2]*n1[2]);
+				if(l1 == 0 || (n0[0]*n1[0] + n0[1]*n1[1] + n0[2]*n1[2]) < MIN_NORMAL_DOT * l0 * l1) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private void collapse(int from, int to) {
+			// the vertices at from are replaced by vertices at to
+			int[] vertices = vertexLists[from];
+			for(int i = 0; i < vertexListLen[from]; i++) {
+				vertexRemap[vertices[i]] = closestVertex(vertices[i], to);
+			}
+			int[] list = triangleLists[from];
+			for(int i = 0; i < triangleListLen[from]; i++) {
+				int t = list[i];
+				if(dead[t]) {
+					continue;
+				}
+				int a = position(t, 0);
+				int b = position(t, 1);
+				int c = position(t, 2);
+				if(a == b || b == c || a == c) {
+					dead[t] = true;
+					live--;
+				} else {
+					add(triangleLists, triangleListLen, to, t);
+				}
+			}
+			removed[from] = true;
+			for(int i = 0; i < 10; i++) {
+				quadrics[to*10+i] += quadrics[from*10+i];
+			}
+			version[to]++;
+			list = triangleLists[to];
+			for(int i = 0; i < triangleListLen[to]; i++) {
+				int t = list[i];
+				if(dead[t]) {
+					continue;
+				}
+				for(int k = 0; k < 3; k++) {
+					int p = position(t, k);
+					if(p != to) {
+						version[p]++;
+					}
+				}
+			}
+			for(int i = 0; i < triangleListLen[to]; i++) {
+				int t = list[i];
+				if(dead[t]) {
+					continue;
+				}
+				for(int k = 0; k < 3; k++) {
+					int p = position(t, k);
+					if(p != to) {
+						addCandidates(to, p);
+					}
+				}
+			}
+		}
+
+		// the vertex at the given position whose normal is closest to the
+		// normal of the given vertex
+		private int closestVertex(int vertex, int position) {
+			int[] list = vertexLists[position];
+			int best = resolve(list[0]);
+			if(mesh.normals == null) {
+				return best;
+			}
+			double bestDot = -2;
+			for(int i = 0; i < vertexListLen[position]; i++) {
+				int v = resolve(list[i]);
+				double dot = 0;
+				for(int c = 0; c < 3; c++) {
+					dot += mesh.normals.get(vertex*3+c) * mesh.normals.get(v*3+c);
+				}
+				if(dot > bestDot) {
+					bestDot = dot;
+					best = v;
+				}
+			}
+			return best;
+		}
+
+		private int resolve(int vertex) {
+			int v = vertex;
+			while(vertexRemap[v] != v) {
+				v = vertexRemap[v];
+			}
+			vertexRemap[vertex] = v;
+			return v;
+		}
+
+		private int position(int t, int k) {
+			return positionOf[resolve(triangles[t*3+k])];
+		}
+
+		private void addCandidates(int a, int b) {
+			queue.add(new Collapse(cost(a, b), a, b, version[a], version[b]));
+			queue.add(new Collapse(cost(b, a), b, a, version[b], version[a]));
+		}
+
+		// the error of moving from onto to
+		private double cost(int from, int to) {
+			for(int i = 0; i < 10; i++) {
+				q[i] = quadrics[from*10+i] + quadrics[to*10+i];
+			}
+			double x = coords[to*3];
+			double y = coords[to*3+1];
+			double z = coords[to*3+2];
+			return q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x
+				+ q[4]*y*y + 2*q[5]*y*z + 2*q[6]*y
+				+ q[7]*z*z + 2*q[8]*z
+				+ q[9];
+		}
+
+		private double[] normal(int a, int b, int c) {
+			double ux = coords[b*3] - coords[a*3];
+			double uy = coords[b*3+1] - coords[a*3+1];
+			double uz = coords[b*3+2] - coords[a*3+2];
+			double vx = coords[c*3] - coords[a*3];
+			double vy = coords[c*3+1] - coords[a*3+1];
+			double vz = coords[c*3+2] - coords[a*3+2];
+			return new double[] { uy*vz - uz*vy, uz*vx - ux*vz, ux*vy - uy*vx };
+		}
+
+		// adds the plane of a triangle, weighted by its area
+		private void addPlaneQuadric(int a, int b, int c) {
+			double[] n = normal(a, b, c);
+			double length = Math.sqrt(n[0]*n[0] + n[1]*n[1] + n[2]*n[2]);
+			if(length == 0) {
+				return;
+			}
+			double area = length / 2;
+			for(int i = 0; i < 3; i++) {
+				n[i] /= length;
+			}
+			double d = -(n[0]*coords[a*3] + n[1]*coords[a*3+1] + n[2]*coords[a*3+2]);
+			addQuadric(a, n, d, area);
+			addQuadric(b, n, d, area);
+			addQuadric(c, n, d, area);
+		}
+
+		// adds a plane through the border edge a-b, perpendicular to the
+		// triangle a-b-c
+		private void addBorderQuadric(int a, int b, int c) {
+			double[] n = normal(a, b, c);
+			double ex = coords[b*3] - coords[a*3];
+			double ey = coords[b*3+1] - coords[a*3+1];
+			double ez = coords[b*3+2] - coords[a*3+2];
+			double[] m = { ey*n[2] - ez*n[1], ez*n[0] - ex*n[2], ex*n[1] - ey*n[0] };
+			double length = Math.sqrt(m[0]*m[0] + m[1]*m[1] + m[2]*m[2]);
+			if(length == 0) {
+				return;
+			}
+			for(int i = 0; i < 3; i++) {
+				m[i] /= length;
+			}
+			double d = -(m[0]*coords[a*3] + m[1]*coords[a*3+1] + m[2]*coords[a*3+2]);
+			double weight = BORDER_WEIGHT * (ex*ex + ey*ey + ez*ez);
+			addQuadric(a, m, d, weight);
+			addQuadric(b, m, d, weight);
+		}
+
+		private void addQuadric(int p, double[] n, double d, double w) {
+			int o = p * 10;
+			quadrics[o] += w * n[0]*n[0];
+			quadrics[o+1] += w * n[0]*n[1];
+			quadrics[o+2] += w * n[0]*n[2];
+			quadrics[o+3] += w * n[0]*d;
+			quadrics[o+4] += w * n[1]*n[1];
+			quadrics[o+5] += w * n[1]*n[2];
+			quadrics[o+6] += w * n[1]*d;
+			quadrics[o+7] += w * n[2]*n[2];
+			quadrics[o+8] += w * n[2]*d;
+			quadrics[o+9] += w * d*d;
+		}
+
+		private static long edgeKey(int a, int b) {
+			return a < b ? ((long) a << 32) | b : ((long) b << 32) | a;
+		}
+
+		private static void countEdge(HashMap<Long, Integer> edgeUse, int a, int b) {
+			Long key = edgeKey(a, b);
+			Integer count = edgeUse.get(key);
+			edgeUse.put(key, count == null ? 1 : count + 1);
+		}
+
+		private static void add(int[][] lists, int[] lengths, int list, int value) {
+			int[] values = lists[list];
+			if(values == null) {
+				values = lists[list] = new int[4];
+			} else if(lengths[list] == values.length) {
+				int[] bigger = new int[values.length * 2];
+				System.arraycopy(values, 0, bigger, 0, values.length);
+				values = lists[list] = bigger;
+			}
+			values[lengths[list]++] = value;
+		}
+
+		// a new mesh with the remaining triangles and the vertices they use
+		TriMesh createMesh(String name) {
+			int[] indices = new int[live * 3];
+			int n = 0;
+			for(int t = 0; t < dead.length; t++) {
+				if(!dead[t]) {
+					for(int k = 0; k < 3; k++) {
+						indices[n++] = resolve(triangles[t*3+k]);
+					}
+				}
+			}
+			int[] newIndex = new int[mesh.vertexCount];
+			Arrays.fill(newIndex, -1);
+			int[] order = new int[mesh.vertexCount];
+			int nVertices = 0;
+			for(int i = 0; i < n; i++) {
+				int v = indices[i];
+				if(newIndex[v] < 0) {
+					newIndex[v] = nVertices;
+					order[nVertices++] = v;
+				}
+				indices[i] = newIndex[v];
+			}
+			TriMesh result = new TriMesh(name);
+			result.setVertices(copy(mesh.vertices, 3, order, nVertices));
+			if(mesh.normals != null) {
+				result.setNormals(copy(mesh.normals, 3, order, nVertices));
+			}
+			if(mesh.texcoords != null) {
+				result.setTexCoords(copy(mesh.texcoords, 2, order, nVertices));
+			}
+			if(mesh.colors != null) {
+				byte[] colors = new byte[nVertices * 4];
+				for(int i = 0; i < nVertices; i++) {
+					for(int c = 0; c < 4; c++) {
+						colors[i*4+c] = mesh.colors.get(order[i]*4+c);
+					}
+				}
+				result.setColors(colors);
+			}
+			result.setIndices(indices);
+			return result;
+		}
+
+		private static float[] copy(FloatBuffer src, int size, int[] order, int count) {
+			float[] result = new float[count * size];
+			for(int i = 0; i < count; i++) {
+				for(int c = 0; c < size; c++) {
+					result[i*size+c] = src.get(order[i]*size+c);
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Generates levels of detail from the command line.<br>
+	 * Usage: <code>MeshSimplifier input.mod ratio output.mod [ratio output.mod ...]</code><br>
+	 * Each output is simplified from the input to the given fraction of its
+	 * triangles and written in the stream format.
+	 * @param args input file followed by pairs of ratios and output files
+	 * @throws IOException if a model could not be read or written
+	 */
+	public static void main(String[] args) throws IOException {
+		if(args.length < 3 || (args.length - 1) % 2 != 0) {
+			System.err.println("Usage: MeshSimplifier input.mod ratio output.mod [ratio output.mod ...]");
+			return;
+		}
+		File input = new File(args[0]);
+		TriMesh mesh = new ModLoader().loadModel(input.getName(), new FileInputStream(input));
+		for(int i = 1; i < args.length; i += 2) {
+			float ratio = Float.parseFloat(args[i]);
+			TriMesh level = simplify(mesh, new File(args[i+1]).getName(), ratio);
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(args[i+1]), 8192));
+			try {
+				level.exportModel(out);
+				out.flush();
+			} finally {
+				out.close();
+			}
+			System.out.println(args[0]+": "+mesh.getTriangleCount()+" -> "
+					+level.getTriangleCount()+" triangles -> "+args[i+1]);
+		}
+	}
+}
@@ -0,0 +1,220 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+
+import se.ltu.android.demo.util.BufferUtils;
+
+import android.util.Log;
+
+/**
+ * Splits meshes that are too large for 16-bit indices into sub-meshes
+ * under a Node, for GL contexts without 32-bit index support
+ * (OES_element_index_uint). Triangles are kept in their original order
+ * and each sub-mesh gets the vertices its triangles use, so vertices
+ * along the seams are duplicated.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public abstract class MeshSplitter {
+	private final static String TAG = "MeshSplitter";
+	/**
+	 * The largest number of vertices in a sub-mesh with 16-bit indices
+	 */
+	public static final int MAX_VERTICES = 65536;
+
+	/**
+	 * Returns the mesh as it is if it can be drawn by the current GL
+	 * context, or a Node of sub-meshes with 16-bit indices if it can not.
+	 * Models are loaded before the first GL context has been created, 
+	 * when it is not known whether 32-bit indices are supported; the mesh
+	 * is then split, since the sub-meshes can be drawn by any context.
+	 * @param mesh mesh to check
+	 * @return the mesh or a Node replacing it
+	 */
+	public static Spatial splitIfNeeded(TriMesh mesh) {
+		if(mesh.intIndices == null || TriMesh.isIntIndicesSupported()) {
+			return mesh;
+		}
+		return split(mesh, MAX_VERTICES);
+	}
+
+	/**
+	 * Creates a clone of a mesh, or of a Node of sub-meshes returned by
+	 * <code>split</code>, that shares their data, see 
+	 * <code>TriMesh.cloneMesh</code>. The sub-meshes of a cloned Node are
+	 * named after the clone.
+	 * @param model the mesh or Node to clone
+	 * @param name name of the clone
+	 * @return the clone, a TriMesh or a Node of sub-meshes like the model
+	 */
+	public static Spatial cloneModel(Spatial model, String name) {
+		if(!(model instanceof Node)) {
+			return ((TriMesh) model).cloneMesh(name);
+		}
+		Node node = new Node(name);
+		node.setLocalTranslation(model.getLocalTranslation());
+		node.setLocalRotation(model.getLocalRotation());
+		node.setLocalScale(model.getLocalScale());
+		ArrayList<Spatial> parts = ((Node) model).getChildren();
+		int len = parts.size();
+		for(int i = 0; i < len; i++) {
+			node.attachChild(((TriMesh) parts.get(i)).cloneMesh(name+"_"+i));
+		}
+		return node;
+	}
+
+	/**
+	 * Splits a mesh into sub-meshes with at most maxVertices vertices
+	 * each. The sub-meshes are drawn as triangles and share the material,
+	 * picking flags and local transformation of the mesh, which is moved
+	 * to the returned Node.
+	 * @param mesh mesh to split, not attached to the scene
+	 * @param maxVertices largest number of vertices per sub-mesh, at
+	 * least 3 and at most MAX_VERTICES
+	 * @return a Node with the sub-meshes, named after the mesh
+	 */
+	public static Node split(TriMesh mesh, int maxVertices) {
+		if(maxVertices < 3 || maxVertices > MAX_VERTICES) {
+			throw new IllegalArgumentException("Invalid vertex limit: "+maxVertices);
+		}
+		Node node = new Node(mesh.getName());
+		node.setLocalTranslation(mesh.getLocalTranslation());
+		node.setLocalRotation(mesh.getLocalRotation());
+		node.setLocalScale(mesh.getLocalScale());
+		if(mesh.vertices == null || !mesh.hasIndices()) {
+			Log.e(TAG, "Can not split a TriMesh with no vertices or indices");
+			return node;
+		}
+
+		int[] triangles = toTriangles(mesh);
+		// local index of each source vertex in the current part, valid
+		// only where stamp holds the number of the current part
+		int[] remap = new int[mesh.vertexCount];
+		int[] stamp = new int[mesh.vertexCount];
+		int[] used = new int[maxVertices];
+		char[] partIndices = new char[triangles.length];
+		int part = 1;
+		int nUsed = 0;
+		int nIndices = 0;
+		int added, v;
+		for(int t = 0; t < triangles.length; t += 3) {
+			added = 0;
+			for(int k = 0; k < 3; k++) {
+				v = triangles[t+k];
+				if(stamp[v] != part && (k < 1 || triangles[t+k-1] != v)
+						&& (k < 2 || triangles[t] != v)) {
+					added++;
+				}
+			}
+			if(nUsed + added > maxVertices) {
+				node.attachChild(createPart(mesh, node.getName()+"_"+(part-1),
+						used, nUsed, partIndices, nIndices));
+				part++;
+				nUsed = 0;
+				nIndices = 0;
+			}
+			for(int k = 0; k < 3; k++) {
+				v = triangles[t+k];
+				if(stamp[v] != part) {
+					stamp[v] = part;
+					remap[v] = nUsed;
+					used[nUsed++] = v;
+				}
+				partIndices[nIndices++] = (char) remap[v];
+			}
+		}
+		if(nIndices > 0) {
+			node.attachChild(createPart(mesh, node.getName()+"_"+(part-1),
+					used, nUsed, partIndices, nIndices));
+		}
+		Log.d(TAG, "Split "+mesh.getName()+" ("+mesh.vertexCount+" vertices) into "
+				+node.getChildren().size()+" meshes");
+		return node;
+	}
+
+	// the indices of the mesh as a triangle list
+	static int[] toTriangles(TriMesh mesh) {
+		int n = mesh.getIndexCount();
+		if(mesh.drawMode == TriMesh.MODE_TRIANGLES) {
+			int[] result = new int[n - n % 3];
+			for(int i = 0; i < result.length; i++) {
+				result[i] = mesh.getIndex(i);
+			}
+			return result;
+		}
+		int[] result = new int[Math.max(n - 2, 0) * 3];
+		int pos = 0;
+		for(int i = 0; i + 2 < n; i++) {
+			if(mesh.drawMode == TriMesh.MODE_TRIANGLE_FAN) {
+				result[pos++] = mesh.getIndex(0);
+				result[pos++] = mesh.getIndex(i+1);
+				result[pos++] = mesh.getIndex(i+2);
+			} else if(i % 2 == 0) {
+				result[pos++] = mesh.getIndex(i);
+				result[pos++] = mesh.getIndex(i+1);
+				result[pos++] = mesh.getIndex(i+2);
+			} else {
+				// every other strip triangle has its winding flipped
+				result[pos++] = mesh.getIndex(i+1);
+				result[pos++] = mesh.getIndex(i);
+				result[pos++] = mesh.getIndex(i+2);
+			}
+		}
+		return result;
+	}
+
+	private static TriMesh createPart(TriMesh mesh, String name, int[] used, int nUsed,
+			char[] partIndices, int nIndices) {
+		TriMesh part = new TriMesh(name);
+		float[] data = new float[nUsed * 3];
+		int v;
+		for(int i = 0; i < nUsed; i++) {
+			v = used[i] * 3;
+			data[i*3] = mesh.vertices.get(v);
+			data[i*3+1] = mesh.vertices.get(v+1);
+			data[i*3+2] = mesh.vertices.get(v+2);
+		}
+		part.setVertices(data);
+		if(mesh.normals != null) {
+			for(int i = 0; i < nUsed; i++) {
+				v = used[i] * 3;
+				data[i*3] = mesh.normals.get(v);
+				data[i*3+1] = mesh.normals.get(v+1);
+				data[i*3+2] = mesh.normals.get(v+2);
+			}
+			part.setNormals(data);
+		}
+		if(mesh.texcoords != null) {
+			float[] tex = new float[nUsed * 2];
+			for(int i = 0; i < nUsed; i++) {
+				v = used[i] * 2;
+				tex[i*2] = mesh.texcoords.get(v);
+				tex[i*2+1] = mesh.texcoords.get(v+1);
+			}
+			part.setTexCoords(tex);
+		}
+		if(mesh.colors != null) {
+			byte[] colors = new byte[nUsed * 4];
+			for(int i = 0; i < nUsed; i++) {
+				v = used[i] * 4;
+				colors[i*4] = mesh.colors.get(v);
+				colors[i*4+1] = mesh.colors.get(v+1);
+				colors[i*4+2] = mesh.colors.get(v+2);
+				colors[i*4+3] = mesh.colors.get(v+3);
+			}
+			part.setColors(colors);
+		}
+		CharBuffer indices = BufferUtils.createCharBuffer(nIndices);
+		indices.put(partIndices, 0, nIndices);
+		indices.rewind();
+		part.indices = indices;
+		part.setMaterial(mesh.getMaterial());
+		part.setPickable(mesh.isPickable());
+		part.setExactPicking(mesh.isExactPicking());
+		part.setInterleaved(mesh.isInterleaved());
+		return part;
+	}
+}
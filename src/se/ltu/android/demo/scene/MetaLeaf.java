@@ -29,6 +29,12 @@ public abstract class MetaLeaf extends Spatial {
 	@Override
 	public void draw(GL10 gl) {
 	}
+	
+	/**
+	 * Empty implementation. Does nothing on this object.
+	 */
+	@Override
+	public void queue(RenderQueue queue) {}
 
 	/**
 	 * Empty implementation. Does nothing on this object.
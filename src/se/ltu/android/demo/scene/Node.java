@@ -23,6 +23,9 @@ import se.ltu.android.demo.scene.state.Material;
 public class Node extends Spatial {
 	private final static String TAG = "Node";
 	protected ArrayList<Spatial> children = new ArrayList<Spatial>();
+	// children that changed, or have changed descendants, since the last
+	// updateGeometricState
+	ArrayList<Spatial> dirtyChildren = new ArrayList<Spatial>();
 	
 	public Node(String name) {
 		super(name);
@@ -30,13 +33,22 @@ public class Node extends Spatial {
 
 	@Override
 	public void draw(GL10 gl) {
-		synchronized(children) {
-			int len = children.size();
-			Spatial child;
-			for (int i = 0; i < len; i++) {
-				child = children.get(i);
-				child.draw(gl);
-			}
+		int len = children.size();
+		Spatial child;
+		for (int i = 0; i < len; i++) {
+			child = children.get(i);
+			child.draw(gl);
+		}
+	}
+
+	@Override
+	public void queue(RenderQueue queue) {
+		if(queue.cull(worldBound)) {
+			return;
+		}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).queue(queue);
 		}
 	}
 
@@ -45,13 +57,12 @@ public class Node extends Spatial {
 	 * @param child child to add
 	 */
 	public void attachChild(Spatial child) {
-		synchronized(children) {
-			children.add(child);
-		}
+		children.add(child);
 		if(child.hasParent()) {
 			child.detachFromParent();
 		}
 		child.parent = this;
+		child.markTransformDirty();
 	}
 	
 	/**
@@ -59,28 +70,95 @@ public class Node extends Spatial {
 	 * @param child child to remove
 	 */
 	public void detachChild(Spatial child) {
-		synchronized(children) {
-			children.remove(child);
+		children.remove(child);
+		if(child.inDirtyList) {
+			dirtyChildren.remove(child);
+			child.inDirtyList = false;
 		}
 		child.parent = null;
+		child.dirtyTransform = true;
+		markBoundDirty();
+	}
+	
+	/**
+	 * Merges the meshes directly attached to this node into as few meshes
+	 * as possible, with 16-bit indices, see 
+	 * <code>mergeChildren(String, boolean)</code>.
+	 * @param name base name of the merged meshes, a number is appended
+	 * @return the merged meshes, empty if there were no meshes to merge
+	 */
+	public ArrayList<MergedMesh> mergeChildren(String name) {
+		return mergeChildren(name, false);
+	}
+	
+	/**
+	 * Merges the meshes directly attached to this node into as few meshes
+	 * as possible, to save draw calls for static geometry. Meshes are
+	 * grouped by material and draw mode. Unless 32-bit indices are 
+	 * allowed, a group is split when it would not fit 16-bit indices, and
+	 * meshes that do not fit 16-bit indices themselves are left as they
+	 * are. Meshes with 32-bit indices are merged like any other. The local
+	 * transformation of each mesh is baked into the vertices, so the
+	 * merged meshes are attached with an identity transformation. The
+	 * original meshes are detached but are still reported by picking, see
+	 * <code>MergedMesh</code>.<br>
+	 * Child nodes and other spatials are left untouched.
+	 * @param name base name of the merged meshes, a number is appended
+	 * @param allowIntIndices true to merge groups past 65536 vertices into
+	 * meshes with 32-bit indices, which are only drawn if the GL context
+	 * supports them (see <code>TriMesh.isIntIndicesSupported</code>)
+	 * @return the merged meshes, empty if there were no meshes to merge
+	 */
+	public ArrayList<MergedMesh> mergeChildren(String name, boolean allowIntIndices) {
+		ArrayList<TriMesh> meshes = new ArrayList<TriMesh>();
+		int len = children.size();
+		Spatial child;
+		TriMesh mesh;
+		for(int i = 0; i < len; i++) {
+			child = children.get(i);
+			if(!(child instanceof TriMesh)) {
+				continue;
+			}
+			mesh = (TriMesh) child;
+			if(mesh.vertices == null || !mesh.hasIndices()) {
+				Log.w(TAG, "Not merging "+mesh.getName()+", it has no vertices or indices");
+			} else if(!allowIntIndices && mesh.vertexCount > MergedMesh.MAX_VERTICES) {
+				Log.w(TAG, "Not merging "+mesh.getName()+", its "+mesh.vertexCount
+						+" vertices do not fit 16-bit indices");
+			} else {
+				meshes.add(mesh);
+			}
+		}
+		if(meshes.isEmpty()) {
+			return new ArrayList<MergedMesh>();
+		}
+		float[] matrices = new float[meshes.size() * 16];
+		for(int i = 0; i < meshes.size(); i++) {
+			meshes.get(i).getLocalTransform(matrices, i * 16);
+		}
+		ArrayList<MergedMesh> merged = MergedMesh.merge(name, meshes, matrices, allowIntIndices);
+		for(int i = 0; i < meshes.size(); i++) {
+			detachChild(meshes.get(i));
+		}
+		for(int i = 0; i < merged.size(); i++) {
+			attachChild(merged.get(i));
+		}
+		Log.d(TAG, "Merged "+meshes.size()+" meshes into "+merged.size()+" in "+getName());
+		return merged;
 	}
 	
 	/**
 	 * @return true if this node has at least one child
 	 */
 	public boolean hasChildren() {
-		synchronized(children) {
-			return children.size() > 0;
-		}
+		return children.size() > 0;
 	}
 	
 	/**
 	 * @return the list of children attached to this node
 	 */
 	public ArrayList<Spatial> getChildren() {
-		synchronized(children) {
-			return children;
-		}
+		return children;
 	}
 	
 	/**
@@ -88,11 +166,9 @@ public class Node extends Spatial {
 	 */
 	@Override
 	public void updateModelBound() {
-		synchronized(children) {
-			int len = children.size();	
-			for(int i = 0; i < len; i++) {
-				children.get(i).updateModelBound();;
-			}
+		int len = children.size();	
+		for(int i = 0; i < len; i++) {
+			children.get(i).updateModelBound();;
 		}
 	}
 	
@@ -103,48 +179,93 @@ public class Node extends Spatial {
 	 */
 	@Override
 	public void updateWorldBound(boolean propagate) {
-		synchronized(children) {
-			int len = children.size();
-			Spatial child;
-			AABBox cBound;
-			
-			worldBound.minX = worldBound.maxX = 0;
-			worldBound.minY = worldBound.maxY = 0;
-			worldBound.minZ = worldBound.maxZ = 0;
+		int len = children.size();
+		for(int i = 0; i < len; i++) {
+			children.get(i).updateWorldBound(false);
+		}
+		refitWorldBound();
+		//worldBound.transform(transM);
+		
+		if(propagate && parent != null) {
+			parent.updateWorldBound(this);
+		}
+	}
+	
+	/**
+	 * Sets the world bound of this node to enclose the current world
+	 * bounds of its children, without updating the children.
+	 */
+	protected void refitWorldBound() {
+		int len = children.size();
+		AABBox cBound;
+		
+		worldBound.minX = worldBound.maxX = 0;
+		worldBound.minY = worldBound.maxY = 0;
+		worldBound.minZ = worldBound.maxZ = 0;
+		
+		for(int i = 0; i < len; i++) {
+			cBound = children.get(i).getWorldBound();
 			
-			for(int i = 0; i < len; i++) {
-				child = children.get(i);
-				child.updateWorldBound(false);
-				cBound = child.getWorldBound();
-				
-				if(i == 0) {
+			if(i == 0) {
+				worldBound.minX = cBound.minX;
+				worldBound.minY = cBound.minY;
+				worldBound.minZ = cBound.minZ;
+				worldBound.maxX = cBound.maxX;
+				worldBound.maxY = cBound.maxY;
+				worldBound.maxZ = cBound.maxZ;
+			} else {
+				if(cBound.minX < worldBound.minX)
 					worldBound.minX = cBound.minX;
+				if(cBound.minY < worldBound.minY)
 					worldBound.minY = cBound.minY;
+				if(cBound.minZ < worldBound.minZ)
 					worldBound.minZ = cBound.minZ;
+				if(cBound.maxX > worldBound.maxX)
 					worldBound.maxX = cBound.maxX;
+				if(cBound.maxY > worldBound.maxY)
 					worldBound.maxY = cBound.maxY;
+				if(cBound.maxZ > worldBound.maxZ)
 					worldBound.maxZ = cBound.maxZ;
-				} else {
-					if(cBound.minX < worldBound.minX)
-						worldBound.minX = cBound.minX;
-					if(cBound.minY < worldBound.minY)
-						worldBound.minY = cBound.minY;
-					if(cBound.minZ < worldBound.minY)
-						worldBound.minZ = cBound.minZ;
-					if(cBound.maxX > worldBound.maxX)
-						worldBound.maxX = cBound.maxX;
-					if(cBound.maxY > worldBound.maxY)
-						worldBound.maxY = cBound.maxY;
-					if(cBound.maxZ > worldBound.maxZ)
-						worldBound.maxZ = cBound.maxZ;
-				}
 			}
 		}
-		//worldBound.transform(transM);
-		
-		if(propagate && parent != null) {
-			parent.updateWorldBound(this);
+	}
+	
+	/**
+	 * Updates this node and either all children, if the transformation
+	 * of this node changed, or only the children marked as dirty. The
+	 * bound is then refitted to the children.
+	 */
+	@Override
+	protected int updateGeometricState(boolean parentChanged) {
+		boolean changed = parentChanged || dirtyTransform;
+		int updated = 0;
+		if(changed) {
+			updateWorldTransform();
+			dirtyTransform = false;
+		}
+		int len;
+		if(changed) {
+			len = children.size();
+			for (int i = 0; i < len; i++) {
+				updated += children.get(i).updateGeometricState(true);
+			}
+		} else {
+			len = dirtyChildren.size();
+			for (int i = 0; i < len; i++) {
+				updated += dirtyChildren.get(i).updateGeometricState(false);
+			}
+		}
+		len = dirtyChildren.size();
+		for (int i = 0; i < len; i++) {
+			dirtyChildren.get(i).inDirtyList = false;
+		}
+		if(changed || dirtyBound || len > 0) {
+			dirtyChildren.clear();
+			refitWorldBound();
+			dirtyBound = false;
+			updated++;
 		}
+		return updated;
 	}
 	
 	/**
@@ -159,7 +280,7 @@ public class Node extends Spatial {
 			worldBound.minX = cBound.minX;
 		if(cBound.minY < worldBound.minY)
 			worldBound.minY = cBound.minY;
-		if(cBound.minZ < worldBound.minY)
+		if(cBound.minZ < worldBound.minZ)
 			worldBound.minZ = cBound.minZ;
 		if(cBound.maxX > worldBound.maxX)
 			worldBound.maxX = cBound.maxX;
@@ -180,11 +301,9 @@ public class Node extends Spatial {
 	public void updateTransform() {
 		super.updateTransform();
 		
-		synchronized (children) {
-			int len = children.size();
-			for (int i = 0; i < len; i++) {
-				children.get(i).updateTransform();
-			}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).updateTransform();
 		}
 	}
 
@@ -196,12 +315,10 @@ public class Node extends Spatial {
 		}
 		
 		if(ray.intersects(worldBound)) {
-			synchronized (children) {
-				int len = children.size();
-				if(pickable) {
-					for(int i = 0; i < len; i++) {
-						children.get(i).calculatePick(ray, result);
-					}
+			int len = children.size();
+			if(pickable) {
+				for(int i = 0; i < len; i++) {
+					children.get(i).calculatePick(ray, result);
 				}
 			}
 		}
@@ -210,42 +327,34 @@ public class Node extends Spatial {
 	@Override
 	public void update(long tpf) {
 		super.update(tpf);
-		synchronized (children) {
-			int len = children.size();
-			for (int i = 0; i < len; i++) {
-				children.get(i).update(tpf);
-			}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).update(tpf);
 		}
 	}
 
 	@Override
 	public void freeHardwareBuffers(GL10 gl) {
-		synchronized (children) {
-			int len = children.size();
-			for (int i = 0; i < len; i++) {
-				children.get(i).freeHardwareBuffers(gl);
-			}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).freeHardwareBuffers(gl);
 		}
 	}
 	
 
 	@Override
 	public void forgetHardwareBuffers() {
-		synchronized (children) {
-			int len = children.size();
-			for (int i = 0; i < len; i++) {
-				children.get(i).forgetHardwareBuffers();
-			}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).forgetHardwareBuffers();
 		}
 	}
 
 	@Override
 	public void generateHardwareBuffers(GL10 gl) {
-		synchronized (children) {
-			int len = children.size();
-			for (int i = 0; i < len; i++) {
-				children.get(i).generateHardwareBuffers(gl);
-			}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).generateHardwareBuffers(gl);
 		}
 	}
 
@@ -255,11 +364,9 @@ public class Node extends Spatial {
 	 */
 	@Override
 	public void setMaterial(Material material) {
-		synchronized (children) {
-			int len = children.size();
-			for (int i = 0; i < len; i++) {
-				children.get(i).setMaterial(material);
-			}
+		int len = children.size();
+		for (int i = 0; i < len; i++) {
+			children.get(i).setMaterial(material);
 		}
 	}
 }
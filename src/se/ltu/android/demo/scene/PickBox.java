@@ -30,6 +30,7 @@ public class PickBox extends MetaLeaf {
 	 */
 	public void setModelBound(AABBox bound) {
 		modelBound = bound;
+		markBoundDirty();
 	}
 
 	/**
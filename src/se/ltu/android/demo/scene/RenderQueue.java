@@ -0,0 +1,496 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.util.ArrayList;
+
+import javax.microedition.khronos.opengles.GL10;
+
+import se.ltu.android.demo.scene.intersection.AABBox;
+import se.ltu.android.demo.scene.intersection.Frustum;
+import se.ltu.android.demo.scene.state.Light;
+import se.ltu.android.demo.scene.state.Material;
+
+/**
+ * Collects the visible meshes of a scene once per frame and draws them sorted by
+ * material, then by vertex arrays and then front to back. Consecutive
+ * meshes sharing a material or arrays are drawn without setting that
+ * state again. Lights found while collecting are enabled before any mesh
+ * is drawn.<br>
+ * Spatials whose world bound is outside the view frustum are culled while
+ * collecting, see <code>cull</code>.<br>
+ * After sorting, <code>buildBatches</code> packs runs of meshes from a
+ * family with instancing enabled into instance batches that are drawn with
+ * one call each, see <code>TriMesh.setInstancing</code>.<br>
+ * The queue is a snapshot of a frame: it copies the camera matrix and the
+ * transformation and material of every mesh when they are added, so it
+ * can be filled and sorted on the game thread and drawn on the GL thread
+ * while the scene changes (see <code>RenderQueueBuffer</code>). The vertex
+ * data of the meshes is not copied and must not be replaced while queued.<br>
+ * The queue keeps counters of the state changes and draw calls issued by
+ * the last call to <code>draw</code> and of the spatials culled since the
+ * last call to <code>clear</code>.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class RenderQueue {
+	// number of meshes insertion sorted before merging
+	private final static int SORT_RUN = 8;
+	private TriMesh[] meshes = new TriMesh[32];
+	private Material[] materials = new Material[32];
+	// world transformation of each mesh, 16 floats per mesh
+	private float[] transforms = new float[32 * 16];
+	// distance from the camera to the center of each mesh
+	private float[] depths = new float[32];
+	// sort keys, material id and array key of each mesh
+	private int[] materialKeys = new int[32];
+	private int[] arrayKeys = new int[32];
+	// indices into the arrays above in drawing order
+	private int[] order = new int[32];
+	// the other half of the merge sort, swapped with order while sorting
+	private int[] sortBuffer = new int[32];
+	// index of the instance batch starting at each position in order, or -1
+	private int[] batchAt = new int[32];
+	private boolean batched = false;
+	private ArrayList<InstanceBatch> batches = new ArrayList<InstanceBatch>();
+	private int batchCount = 0;
+	private int plannedDrawCalls = 0;
+	private int size = 0;
+	private Light[] lights = new Light[Light.MAX_LIGHTS];
+	private int lightCount = 0;
+	private final float[] viewM = new float[16];
+	// cot(fovy/2) of the projection, for projected sizes
+	private float focal = 1;
+	// fraction of the step from the previous to the current transformations
+	private float alpha = 1;
+	// set by RenderQueueBuffer when published
+	long sequence = 0;
+	private Frustum frustum = new Frustum();
+	private boolean culling = true;
+	private int culled;
+	private int triangles;
+
+	private int drawCalls;
+	private int materialChanges;
+	private int arrayBinds;
+
+	/**
+	 * Empties the queue for a new frame.
+	 * @param projM the projection matrix of the frame
+	 * @param viewM the camera (view) matrix of the frame
+	 */
+	public void clear(float[] projM, float[] viewM) {
+		System.arraycopy(viewM, 0, this.viewM, 0, 16);
+		frustum.set(projM, viewM);
+		focal = projM[5];
+		culled = 0;
+		triangles = 0;
+		alpha = 1;
+		for(int i = 0; i < size; i++) {
+			meshes[i] = null;
+			materials[i] = null;
+		}
+		for(int i = 0; i < lightCount; i++) {
+			lights[i] = null;
+		}
+		size = 0;
+		lightCount = 0;
+		batched = false;
+	}
+
+	/**
+	 * Tests a world bound against the view frustum of this frame. 
+	 * Spatials should call this before adding themselves or their 
+	 * children to the queue.
+	 * @param bound world bound to test
+	 * @return true if the bound is outside the view and should be skipped
+	 */
+	public boolean cull(AABBox bound) {
+		if(culling && frustum.isOutside(bound)) {
+			culled++;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Estimates how large a world bound appears on screen this frame, as
+	 * the projected diameter of its bounding sphere relative to the
+	 * height of the viewport.
+	 * @param bound world bound to measure
+	 * @return projected size, larger than 1 if the bound fills the view
+	 * vertically and Float.MAX_VALUE if the camera is inside it
+	 */
+	public float getScreenSize(AABBox bound) {
+		float dx = bound.maxX - bound.minX;
+		float dy = bound.maxY - bound.minY;
+		float dz = bound.maxZ - bound.minZ;
+		float radius = (float) Math.sqrt(dx*dx + dy*dy + dz*dz) * 0.5f;
+		float distance = depth(bound);
+		if(distance <= radius) {
+			return Float.MAX_VALUE;
+		}
+		return radius * focal / distance;
+	}
+
+	/**
+	 * Sets where between the previous and the current state of the scene
+	 * this frame is, when the scene is updated in fixed steps and frames
+	 * fall between them. Meshes added after this get their transformation
+	 * interpolated, see <code>Spatial.getPreviousTransform</code>. Reset to
+	 * 1 (the current state) by <code>clear</code>.
+	 * @param alpha fraction of the last step, from 0 to 1
+	 */
+	public void setInterpolation(float alpha) {
+		this.alpha = Math.max(0, Math.min(alpha, 1));
+	}
+	
+	/**
+	 * @return where between the previous and the current state of the
+	 * scene this frame is, 1 if it is at the current state
+	 */
+	public float getInterpolation() {
+		return alpha;
+	}
+	
+	/**
+	 * Enable or disable frustum culling, enabled by default.
+	 * @param value true to cull spatials outside the view
+	 */
+	public void setCulling(boolean value) {
+		culling = value;
+	}
+
+	/**
+	 * Adds a mesh to the queue
+	 * @param mesh mesh to add
+	 */
+	public void add(TriMesh mesh) {
+		if(size == meshes.length) {
+			grow();
+		}
+		Material material = mesh.getMaterial();
+		meshes[size] = mesh;
+		materials[size] = material;
+		float[] current = mesh.getTransform();
+		float[] previous = mesh.getPreviousTransform();
+		if(alpha < 1 && previous != current) {
+			// a linear blend of the matrices is close enough to the rotation
+			// in between for the short time of a step
+			int offset = size * 16;
+			for(int i = 0; i < 16; i++) {
+				transforms[offset + i] = previous[i] + (current[i] - previous[i]) * alpha;
+			}
+		} else {
+			System.arraycopy(current, 0, transforms, size * 16, 16);
+		}
+		depths[size] = depth(mesh.getWorldBound());
+		materialKeys[size] = material == null ? -1 : material.getId();
+		arrayKeys[size] = mesh.getArrayKey();
+		order[size] = size;
+		size++;
+		triangles += mesh.getTriangleCount();
+	}
+	
+	private void grow() {
+		int length = size * 2;
+		TriMesh[] newMeshes = new TriMesh[length];
+		System.arraycopy(meshes, 0, newMeshes, 0, size);
+		meshes = newMeshes;
+		Material[] newMaterials = new Material[length];
+		System.arraycopy(materials, 0, newMaterials, 0, size);
+		materials = newMaterials;
+		float[] newTransforms = new float[length * 16];
+		System.arraycopy(transforms, 0, newTransforms, 0, size * 16);
+		transforms = newTransforms;
+		float[] newDepths = new float[length];
+		System.arraycopy(depths, 0, newDepths, 0, size);
+		depths = newDepths;
+		int[] newKeys = new int[length];
+		System.arraycopy(materialKeys, 0, newKeys, 0, size);
+		materialKeys = newKeys;
+		newKeys = new int[length];
+		System.arraycopy(arrayKeys, 0, newKeys, 0, size);
+		arrayKeys = newKeys;
+		newKeys = new int[length];
+		System.arraycopy(order, 0, newKeys, 0, size);
+		order = newKeys;
+		sortBuffer = new int[length];
+		batchAt = new int[length];
+	}
+
+	/**
+	 * Adds a light to the queue
+	 * @param light light to add
+	 */
+	public void add(Light light) {
+		if(light == null || lightCount == lights.length) {
+			return;
+		}
+		for(int i = 0; i < lightCount; i++) {
+			if(lights[i] == light) {
+				return;
+			}
+		}
+		lights[lightCount++] = light;
+	}
+
+	/**
+	 * Sorts the queue by material, arrays and depth. The meshes are added
+	 * in scene order, which has nothing to do with the sort keys, so this
+	 * is a merge sort: runs of a few meshes are insertion sorted and then
+	 * merged bottom up, back and forth between the order and a buffer of
+	 * the same size. It is stable, takes O(n log n) time and does not 
+	 * allocate.
+	 */
+	public void sort() {
+		batched = false;
+		int entry;
+		int j;
+		for(int lo = 0; lo < size; lo += SORT_RUN) {
+			int hi = Math.min(lo + SORT_RUN, size);
+			for(int i = lo + 1; i < hi; i++) {
+				entry = order[i];
+				j = i - 1;
+				while(j >= lo && compare(entry, order[j]) < 0) {
+					order[j+1] = order[j];
+					j--;
+				}
+				order[j+1] = entry;
+			}
+		}
+		int[] src = order;
+		int[] dst = sortBuffer;
+		int[] swap;
+		for(int width = SORT_RUN; width < size; width *= 2) {
+			for(int lo = 0; lo < size; lo += width * 2) {
+				merge(src, dst, lo, Math.min(lo + width, size), Math.min(lo + width * 2, size));
+			}
+			swap = src;
+			src = dst;
+			dst = swap;
+		}
+		order = src;
+		sortBuffer = dst;
+	}
+	
+	// merges the sorted ranges lo..mid and mid..hi of src into dst, taking
+	// from the first range on ties
+	private void merge(int[] src, int[] dst, int lo, int mid, int hi) {
+		int i = lo;
+		int j = mid;
+		int k = lo;
+		while(i < mid && j < hi) {
+			dst[k++] = compare(src[j], src[i]) < 0 ? src[j++] : src[i++];
+		}
+		while(i < mid) {
+			dst[k++] = src[i++];
+		}
+		while(j < hi) {
+			dst[k++] = src[j++];
+		}
+	}
+	
+	/**
+	 * Packs runs of sorted meshes that belong to the same instanced family
+	 * and share a material into instance batches. Call after 
+	 * <code>sort</code>, on the thread that fills the queue.
+	 */
+	public void buildBatches() {
+		batchCount = 0;
+		plannedDrawCalls = 0;
+		int i = 0;
+		int entry, run, max;
+		TriMesh mesh;
+		InstanceBatch batch;
+		while(i < size) {
+			entry = order[i];
+			mesh = meshes[entry];
+			run = 1;
+			if(mesh.isInstancing()) {
+				max = InstanceBatch.MAX_VERTICES / Math.max(mesh.vertexCount, 1);
+				while(i + run < size && run < max && sameBatch(entry, order[i+run])) {
+					run++;
+				}
+			}
+			if(run > 1) {
+				if(batchCount == batches.size()) {
+					batches.add(new InstanceBatch());
+				}
+				batch = batches.get(batchCount);
+				batch.build(mesh.prepareInstancing(), transforms, order, i, run);
+				batchAt[i] = batchCount++;
+			} else {
+				batchAt[i] = -1;
+			}
+			plannedDrawCalls++;
+			i += run;
+		}
+		batched = true;
+	}
+	
+	// true if entry b can be drawn in the same instance batch as entry a
+	private boolean sameBatch(int a, int b) {
+		return materialKeys[a] == materialKeys[b]
+			&& arrayKeys[a] == arrayKeys[b]
+			&& meshes[b].isInstancing();
+	}
+	
+	/**
+	 * @return the camera matrix of this frame
+	 */
+	public float[] getViewM() {
+		return viewM;
+	}
+	
+	/**
+	 * @param i index of a mesh in adding order
+	 * @return the mesh
+	 */
+	public TriMesh getMesh(int i) {
+		return meshes[i];
+	}
+
+	/**
+	 * Draws the queue in its current order. The modelview matrix should
+	 * hold the camera matrix and the vertex array should be enabled.
+	 * @param gl
+	 */
+	public void draw(GL10 gl) {
+		drawCalls = 0;
+		materialChanges = 0;
+		arrayBinds = 0;
+
+		for(int i = 0; i < lightCount; i++) {
+			lights[i].enable(gl);
+		}
+
+		TriMesh mesh;
+		TriMesh bound = null;
+		Material material;
+		Material current = null;
+		int entry;
+		InstanceBatch batch;
+		for(int i = 0; i < size; i++) {
+			entry = order[i];
+			mesh = meshes[entry];
+			material = materials[entry];
+			if(i == 0 || material != current) {
+				if(material != null) {
+					material.applyState(gl);
+				} else {
+					Material.removeState(gl);
+				}
+				current = material;
+				materialChanges++;
+			}
+			if(batched && batchAt[i] >= 0) {
+				if(bound != null) {
+					bound.unbindArrays(gl);
+					bound = null;
+				}
+				batch = batches.get(batchAt[i]);
+				batch.draw(gl);
+				arrayBinds++;
+				drawCalls++;
+				// skip the instances drawn by the batch
+				i += batch.instances - 1;
+				continue;
+			}
+			if(bound == null || !mesh.sharesArrays(bound)) {
+				if(bound != null) {
+					bound.unbindArrays(gl);
+				}
+				mesh.bindArrays(gl);
+				bound = mesh;
+				arrayBinds++;
+			}
+			mesh.drawElements(gl, transforms, entry * 16);
+			drawCalls++;
+		}
+		if(bound != null) {
+			bound.unbindArrays(gl);
+		}
+	}
+
+	/**
+	 * @return number of meshes in the queue
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return number of triangles in the queued meshes
+	 */
+	public int getTriangles() {
+		return triangles;
+	}
+
+	/**
+	 * @return number of spatials (nodes or meshes) culled this frame
+	 */
+	public int getCulled() {
+		return culled;
+	}
+
+	/**
+	 * @return number of draw calls <code>draw</code> will issue for this
+	 * queue, as counted by <code>buildBatches</code>
+	 */
+	public int getPlannedDrawCalls() {
+		return plannedDrawCalls;
+	}
+
+	/**
+	 * @return number of draw calls issued by the last draw
+	 */
+	public int getDrawCalls() {
+		return drawCalls;
+	}
+
+	/**
+	 * @return number of materials applied by the last draw
+	 */
+	public int getMaterialChanges() {
+		return materialChanges;
+	}
+
+	/**
+	 * @return number of times vertex arrays were bound by the last draw
+	 */
+	public int getArrayBinds() {
+		return arrayBinds;
+	}
+
+	/**
+	 * @return total number of state changes (materials and arrays)
+	 * issued by the last draw
+	 */
+	public int getStateChanges() {
+		return materialChanges + arrayBinds;
+	}
+
+	// negative if entry a should be drawn before entry b
+	private int compare(int a, int b) {
+		if(materialKeys[a] != materialKeys[b]) {
+			return materialKeys[a] < materialKeys[b] ? -1 : 1;
+		}
+		if(arrayKeys[a] != arrayKeys[b]) {
+			return arrayKeys[a] < arrayKeys[b] ? -1 : 1;
+		}
+		if(depths[a] != depths[b]) {
+			return depths[a] < depths[b] ? -1 : 1;
+		}
+		return 0;
+	}
+
+	// distance along the view direction to the center of a bound
+	private float depth(AABBox bound) {
+		float x = (bound.minX + bound.maxX) * 0.5f;
+		float y = (bound.minY + bound.maxY) * 0.5f;
+		float z = (bound.minZ + bound.maxZ) * 0.5f;
+		// the camera looks down the negative z-axis
+		return -(viewM[2]*x + viewM[6]*y + viewM[10]*z + viewM[14]);
+	}
+}
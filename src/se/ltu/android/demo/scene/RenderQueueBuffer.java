@@ -0,0 +1,105 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A triple buffer of render queues that hands frames from the game thread
+ * to the GL thread without locks. The game thread fills the back queue and
+ * publishes it with <code>publish</code>, the GL thread takes the newest
+ * published queue with <code>acquire</code>. Each side owns one queue at
+ * a time and the third is swapped between them with one atomic operation,
+ * so neither side ever waits for the other.<br>
+ * Since the queue holds copies of the transformations, the scene graph
+ * itself is only touched by the game thread.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class RenderQueueBuffer {
+	// owned by the game thread
+	private RenderQueue back = new RenderQueue();
+	private long published = 0;
+	private long publishNanos = 0;
+	// owned by the GL thread
+	private RenderQueue front = new RenderQueue();
+	private long acquired = 0;
+	private long stale = 0;
+	private long acquireNanos = 0;
+	// the newest published queue, or the GL thread's previous queue
+	private final AtomicReference<RenderQueue> ready =
+		new AtomicReference<RenderQueue>(new RenderQueue());
+
+	/**
+	 * Called from the game thread.
+	 * @return the queue to fill with the next frame
+	 */
+	public RenderQueue getBack() {
+		return back;
+	}
+
+	/**
+	 * Publishes the back queue to the GL thread and takes a free queue
+	 * as the new back queue. Called from the game thread.
+	 */
+	public void publish() {
+		long start = System.nanoTime();
+		back.sequence = ++published;
+		back = ready.getAndSet(back);
+		publishNanos += System.nanoTime() - start;
+	}
+
+	/**
+	 * Takes the newest published queue if there is one that has not been
+	 * acquired before, otherwise keeps the current one. Called from the
+	 * GL thread.
+	 * @return the queue to draw
+	 */
+	public RenderQueue acquire() {
+		long start = System.nanoTime();
+		if(ready.get().sequence > front.sequence) {
+			front = ready.getAndSet(front);
+			acquired++;
+		} else {
+			stale++;
+		}
+		acquireNanos += System.nanoTime() - start;
+		return front;
+	}
+
+	/**
+	 * @return number of frames published by the game thread
+	 */
+	public long getPublished() {
+		return published;
+	}
+
+	/**
+	 * @return number of frames acquired by the GL thread
+	 */
+	public long getAcquired() {
+		return acquired;
+	}
+
+	/**
+	 * @return number of times the GL thread found no new frame and
+	 * redrew the previous one
+	 */
+	public long getStale() {
+		return stale;
+	}
+
+	/**
+	 * @return total time in nanoseconds the game thread spent publishing
+	 */
+	public long getPublishNanos() {
+		return publishNanos;
+	}
+
+	/**
+	 * @return total time in nanoseconds the GL thread spent acquiring
+	 */
+	public long getAcquireNanos() {
+		return acquireNanos;
+	}
+}
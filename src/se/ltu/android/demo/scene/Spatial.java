@@ -34,6 +34,27 @@ public abstract class Spatial {
 	protected float[] locTranslation = null;
 	protected float[] locRotation = null;
 	protected float[] locScale = null;
+	// scratch distance for picking, which is only done on the game thread
+	protected static final float[] pickDistance = new float[1];
+	
+	/**
+	 * True if the local transformation has changed since the world
+	 * transformation was last computed by <code>updateGeometricState</code>
+	 */
+	protected boolean dirtyTransform = true;
+	/**
+	 * True if the world bound must be recomputed even though the
+	 * transformation has not changed
+	 */
+	protected boolean dirtyBound = true;
+	// true while this spatial is in its parent's list of dirty children
+	boolean inDirtyList = false;
+	// world transformation before the last change, null until the first
+	// change, and the step of that change
+	private float[] prevTransM = null;
+	private int changedStep = -1;
+	// calls to updateGeometricState on a root, only made on the game thread
+	private static int step = 0;
 	
 	private Object dataObject;
 		
@@ -49,6 +70,13 @@ public abstract class Spatial {
 	 */
 	public abstract void draw(GL10 gl);
 	
+	/**
+	 * Add the geometries of this spatial, or of its children if it's not
+	 * a geometry, to a render queue
+	 * @param queue queue to add to
+	 */
+	public abstract void queue(RenderQueue queue);
+	
 	public String getName() {
 		return name;
 	}
@@ -77,6 +105,17 @@ public abstract class Spatial {
 		return transM;
 	}
 	
+	/**
+	 * Returns the world transformation this spatial had before the last
+	 * call to <code>updateGeometricState</code>, so that frames between
+	 * two updates can be interpolated.
+	 * @return the previous world transformation, the same as 
+	 * <code>getTransform</code> if the last update did not change it
+	 */
+	public float[] getPreviousTransform() {
+		return changedStep == step ? prevTransM : transM;
+	}
+	
 	public void setLocalTranslation(float x, float y, float z) {
 		if(locTranslation == null) {
 			locTranslation = new float[3];
@@ -84,6 +123,7 @@ public abstract class Spatial {
 		locTranslation[0] = x;
 		locTranslation[1] = y;
 		locTranslation[2] = z;
+		markTransformDirty();
 	}
 	
 	public void setLocalTranslation(float[] translation) {
@@ -94,6 +134,7 @@ public abstract class Spatial {
 			locTranslation[0] = translation[0];
 			locTranslation[1] = translation[1];
 			locTranslation[2] = translation[2];
+			markTransformDirty();
 		}
 	}
 	
@@ -105,6 +146,7 @@ public abstract class Spatial {
 		locRotation[1] = x;
 		locRotation[2] = y;
 		locRotation[3] = z;
+		markTransformDirty();
 	}
 	
 	public void setLocalRotation(float[] rotation) {
@@ -115,6 +157,8 @@ public abstract class Spatial {
 			locRotation[0] = rotation[0];
 			locRotation[1] = rotation[1];
 			locRotation[2] = rotation[2];
+			locRotation[3] = rotation[3];
+			markTransformDirty();
 		}
 	}
 	
@@ -126,6 +170,7 @@ public abstract class Spatial {
 			locScale[0] = scale[0];
 			locScale[1] = scale[1];
 			locScale[2] = scale[2];
+			markTransformDirty();
 		}
 	}
 	
@@ -136,6 +181,7 @@ public abstract class Spatial {
 		locScale[0] = x;
 		locScale[1] = y;
 		locScale[2] = z;
+		markTransformDirty();
 	}
 	
 	public void setTransform(float[] transM) {
@@ -145,6 +191,80 @@ public abstract class Spatial {
 		for(int i = 0; i < 16; i++) {
 			this.transM[i] = transM[i];
 		}
+		markBoundDirty();
+	}
+	
+	/**
+	 * Marks the local transformation of this spatial as changed so the
+	 * next <code>updateGeometricState</code> recomputes the world 
+	 * transformation and bound of this spatial and its children.
+	 */
+	protected void markTransformDirty() {
+		dirtyTransform = true;
+		markDirty();
+	}
+	
+	/**
+	 * Marks the world bound of this spatial as changed so the next
+	 * <code>updateGeometricState</code> recomputes it and refits the
+	 * bounds of its parents.
+	 */
+	protected void markBoundDirty() {
+		dirtyBound = true;
+		markDirty();
+	}
+	
+	// registers this spatial with its parent as a dirty child, and the
+	// parent with its parent and so on. Stops at the first spatial that is 
+	// already registered since its parents are registered too.
+	private void markDirty() {
+		Spatial s = this;
+		while(s.parent != null && !s.inDirtyList) {
+			s.inDirtyList = true;
+			s.parent.dirtyChildren.add(s);
+			s = s.parent;
+		}
+	}
+	
+	/**
+	 * Updates world transformations and bounds of the spatials that
+	 * changed since the last call, and refits the bounds of their parents.
+	 * Call this once per frame on the root, after the local 
+	 * transformations have been set. Unlike <code>updateTransform</code> and
+	 * <code>updateWorldBound</code>, the cost depends on the number of
+	 * changed spatials rather than on the size of the graph.
+	 * @return number of spatials that were updated
+	 */
+	public int updateGeometricState() {
+		step++;
+		return updateGeometricState(false);
+	}
+	
+	/**
+	 * @param parentChanged true if the world transformation of the
+	 * parent has changed
+	 * @return number of spatials that were updated
+	 */
+	protected int updateGeometricState(boolean parentChanged) {
+		boolean changed = parentChanged || dirtyTransform;
+		if(changed) {
+			if(prevTransM == null) {
+				// nothing to interpolate from before the first update
+				prevTransM = new float[16];
+				updateWorldTransform();
+			} else {
+				System.arraycopy(transM, 0, prevTransM, 0, 16);
+				updateWorldTransform();
+				changedStep = step;
+			}
+			dirtyTransform = false;
+		}
+		if(changed || dirtyBound) {
+			updateWorldBound(false);
+			dirtyBound = false;
+			return 1;
+		}
+		return 0;
 	}
 
 	/**
@@ -190,6 +310,14 @@ public abstract class Spatial {
 	 * Updates the world transformation matrix for this spatial
 	 */
 	public void updateTransform() {
+		updateWorldTransform();
+	}
+	
+	/**
+	 * Computes the world transformation matrix for this spatial only,
+	 * from the parents world transformation and the local transformation
+	 */
+	protected void updateWorldTransform() {
 		if(parent != null) {
 			for(int i = 0; i < 16; i++) {
 				transM[i] = parent.transM[i];
@@ -209,6 +337,25 @@ public abstract class Spatial {
 		}
 	}
 	
+	/**
+	 * Computes the local transformation matrix of this spatial, the
+	 * transformation relative to its parent
+	 * @param m array to store the matrix in
+	 * @param offset index of the first element of the matrix in m
+	 */
+	public void getLocalTransform(float[] m, int offset) {
+		Matrix.setIdentityM(m, offset);
+		if (locTranslation != null) {
+			Matrix.translateM(m, offset, locTranslation[0], locTranslation[1], locTranslation[2]);
+		}
+		if (locRotation != null) {
+			Matrix.rotateM(m, offset, locRotation[0], locRotation[1], locRotation[2], locRotation[3]);
+		}
+		if (locScale != null) {
+			Matrix.scaleM(m, offset, locScale[0], locScale[1], locScale[2]);
+		}
+	}
+	
 	/**
 	 * @return the world bound
 	 */
@@ -229,11 +376,8 @@ public abstract class Spatial {
 			return;
 		}
 		
-		if(pickable) {
-			float[] distance = new float[1];
-			if(ray.intersects(worldBound, distance)) {
-				result.add(this, distance[0]);
-			}
+		if(pickable && ray.intersects(worldBound, pickDistance)) {
+			result.add(this, pickDistance[0]);
 		}
 	}
 	
@@ -4,14 +4,21 @@ package se.ltu.android.demo.scene;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.CharBuffer;
 import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.microedition.khronos.opengles.GL10;
 import javax.microedition.khronos.opengles.GL11;
 
 import se.ltu.android.demo.scene.intersection.AABBox;
+import se.ltu.android.demo.scene.intersection.PickResult;
+import se.ltu.android.demo.scene.intersection.Ray;
 import se.ltu.android.demo.scene.state.Material;
 import se.ltu.android.demo.util.BufferUtils;
 
@@ -30,6 +37,31 @@ public class TriMesh extends Spatial {
 	public static final int MODE_TRIANGLE_STRIP = GL10.GL_TRIANGLE_STRIP;
 	public static final int MODE_TRIANGLE_FAN = GL10.GL_TRIANGLE_FAN;
 	
+	/**
+	 * Version of the mappable model format, see <code>exportMappedModel</code>.
+	 */
+	public static final int MOD_VERSION = 2;
+	// written in the file's byte order, used to detect a foreign byte order
+	private static final int MOD_ORDER_MARK = 0x01020304;
+	// fixed part of the header, the section table follows directly after
+	private static final int MOD_HEADER_SIZE = 64;
+	// every section starts on this boundary
+	private static final int MOD_ALIGNMENT = 16;
+	private static final int MOD_FLAG_CENTER = 1;
+	private static final int MOD_FLAG_BOUND = 2;
+	private static final int MOD_SECTION_INDICES = 1;
+	private static final int MOD_SECTION_VERTICES = 2;
+	private static final int MOD_SECTION_TEXCOORDS = 3;
+	private static final int MOD_SECTION_NORMALS = 4;
+	private static final int MOD_SECTION_COLORS = 5;
+	private static final int MOD_SECTION_INTERLEAVED = 6;
+	private static final int MOD_SECTION_INDICES32 = 7;
+	private static final int MOD_SECTION_QUANTIZED = 8;
+	// stride and attribute offsets stored in front of the interleaved data
+	private static final int MOD_INTERLEAVED_LAYOUT = 16;
+	// size of the layout and dequantization header of a quantized section
+	private static final int MOD_QUANTIZED_LAYOUT = 48;
+	
 	protected AABBox modelBound;
 	protected int drawMode = MODE_TRIANGLES;
 	protected int vertexCount = 0;
@@ -45,12 +77,39 @@ public class TriMesh extends Spatial {
 	protected FloatBuffer vertices;
 	// char instead of short, since char is unsigned
 	protected CharBuffer indices;
+	/**
+	 * 32-bit indices, used instead of indices by meshes with more than
+	 * 65536 vertices. Only one of indices and intIndices is set.
+	 */
+	protected IntBuffer intIndices;
 	protected FloatBuffer normals;
 	protected ByteBuffer colors;
 	protected FloatBuffer texcoords;
 	protected boolean hasDirtyModelBound = true;
 	protected TriMesh cloneTarget = null;
 	
+	/**
+	 * Vertex data packed per vertex as position, normal, texture coordinates
+	 * and color (the last three only if present). Built from the separate
+	 * buffers when interleaving is enabled.
+	 */
+	protected ByteBuffer interleaved;
+	protected boolean useInterleaved = false;
+	// size in bytes of one interleaved vertex and attribute offsets within it
+	protected int stride;
+	protected int normalOffset = -1;
+	protected int texcoordOffset = -1;
+	protected int colorOffset = -1;
+	/**
+	 * True if the interleaved buffer holds quantized attributes: positions
+	 * as shorts scaled by quantScale around quantOffset, normals as bytes
+	 * and texture coordinates as shorts scaled by texcoordScale.
+	 */
+	protected boolean quantized = false;
+	protected float[] quantOffset = new float[3];
+	protected float quantScale = 1;
+	protected float texcoordScale = 1;
+	
 	// VBO buffer pointers
 	private int mVertBufferIndex;
 	private int mIndexBufferIndex;
@@ -58,7 +117,43 @@ public class TriMesh extends Spatial {
 	private int mNormalBufferIndex;
 	private int mTexCoordsBufferIndex;
 	private int mIndexCount;
+	private int mIndexType;
+	// true if the VBO at mVertBufferIndex holds interleaved data
+	private boolean mInterleavedBuffers;
+	// true if this mesh holds a reference to the VBOs of its family
+	private boolean mBufferRef;
+	// number of meshes holding a reference to the VBOs, kept on the family
+	// root. The VBOs are deleted when the last reference is freed
+	private int mBufferRefs;
+	// set on the GL thread when this clone has been released to its
+	// MeshCache, after which it never takes a reference again
+	boolean released = false;
+	
+	// set on the root of a mesh family (the mesh the others are cloned
+	// from) when its visible instances should be batched, see setInstancing
+	private boolean instancing = false;
+	// copies of the vertex data used to build instance batches, only kept
+	// on the family root and rebuilt when instVertices is null
+	float[] instVertices;
+	float[] instNormals;
+	float[] instTexcoords;
+	byte[] instColors;
+	char[] instIndices;
 	private Material material;
+	// identifies the arrays of a mesh, shared with its clones. Meshes
+	// are created on loading threads too, see AsyncLoader
+	private int arrayId = nextArrayId.getAndIncrement();
+	private static final AtomicInteger nextArrayId = new AtomicInteger(1);
+	private boolean exactPicking = false;
+	// scratch data for picking, which is only done on the game thread
+	private static final Ray pickRay = new Ray(0, 0, 0, 0, 0, 1);
+	private static final float[] pickM = new float[16];
+	private static final float[] triDistance = new float[1];
+	// GL_UNSIGNED_INT, which GL10 lacks
+	private static final int GL_UNSIGNED_INT = 0x1405;
+	// true if the GL context has OES_element_index_uint
+	private static boolean intIndicesSupported = false;
+	private boolean intIndicesWarned = false;
 
         /**
          * Creates a new empty instance
@@ -87,6 +182,19 @@ public class TriMesh extends Spatial {
 		this.indices = indices;
 	}
 
+	/**
+	 * Creates a new instance with the supplied vertices and 32-bit indices.
+	 * The mesh can only be drawn if 32-bit indices are supported, 
+	 * see <code>setIntIndicesSupported</code>. 
+	 * @param name name of the object, for identifying purposes
+	 * @param vertices vertices to set
+	 * @param indices indices to set
+	 */
+	public TriMesh(String name, FloatBuffer vertices, IntBuffer indices) {
+		this(name, vertices, (CharBuffer) null);
+		intIndices = indices;
+	}
+
 	/**
 	 * Creates a clone of this mesh. 
 	 * The clone shares vertices, indices etc
@@ -109,18 +217,23 @@ public class TriMesh extends Spatial {
 	 * @return the cloned TriMesh
 	 */
 	public TriMesh cloneMesh(String name) {
-		if(vertices == null || indices == null) {
+		if(vertices == null || !hasIndices()) {
 			Log.e(TAG, "Can not clone a TriMesh with no vertices or indices");
 			return null;
 		}
 		
 		TriMesh clone = new TriMesh(name);
 		clone.cloneTarget = this;
+		clone.arrayId = arrayId;
 		clone.modelBound = modelBound;
 		clone.drawMode = drawMode;
 		clone.vertexCount = vertexCount;
 		clone.vertices = vertices.asReadOnlyBuffer();
-		clone.indices = indices.asReadOnlyBuffer();
+		if(indices != null) {
+			clone.indices = indices.asReadOnlyBuffer();
+		} else {
+			clone.intIndices = intIndices.asReadOnlyBuffer();
+		}
 		if(normals != null) {
 			clone.normals = normals.asReadOnlyBuffer();
 		}
@@ -130,8 +243,22 @@ public class TriMesh extends Spatial {
 		if(texcoords != null) {
 			clone.texcoords = texcoords.asReadOnlyBuffer();
 		}
+		if(useInterleaved) {
+			buildInterleaved();
+			clone.useInterleaved = true;
+			clone.interleaved = interleaved.asReadOnlyBuffer();
+			clone.stride = stride;
+			clone.normalOffset = normalOffset;
+			clone.texcoordOffset = texcoordOffset;
+			clone.colorOffset = colorOffset;
+			clone.quantized = quantized;
+			clone.quantOffset = quantOffset;
+			clone.quantScale = quantScale;
+			clone.texcoordScale = texcoordScale;
+		}
 		
 		clone.material = material;
+		clone.exactPicking = exactPicking;
 		
 		clone.setLocalTranslation(locTranslation);
 		clone.setLocalRotation(locRotation);
@@ -141,26 +268,71 @@ public class TriMesh extends Spatial {
 	
 	@Override
 	public void draw(GL10 gl) {
-		// test for null first so we can return without manipulating the stack
-		if(vertices == null) {
-			Log.e(TAG, "Vertices are null in: "+name);
+		if(!isDrawable()) {
 			return;
 		}
-		if(indices == null) {
+		applyMaterial(gl);
+		bindArrays(gl);
+		drawElements(gl);
+		unbindArrays(gl);
+	}
+	
+	@Override
+	public void queue(RenderQueue queue) {
+		if(isDrawable() && !queue.cull(worldBound)) {
+			queue.add(this);
+		}
+	}
+	
+	// true if this mesh has the buffers needed for drawing
+	boolean isDrawable() {
+		if(vertices == null) {
 			Log.e(TAG, "Vertices are null in: "+name);
-			return;
+			return false;
 		}
-		gl.glPushMatrix();
-		gl.glMultMatrixf(transM, 0);
-
+		if(!hasIndices()) {
+			Log.e(TAG, "Indices are null in: "+name);
+			return false;
+		}
+		if(intIndices != null && !intIndicesSupported) {
+			if(!intIndicesWarned) {
+				Log.e(TAG, "32-bit indices are not supported, split "+name
+						+" with MeshSplitter");
+				intIndicesWarned = true;
+			}
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Applies the material of this mesh, or the default material if
+	 * this mesh has none.
+	 * @param gl
+	 */
+	void applyMaterial(GL10 gl) {
 		if(material != null) {
 			material.applyState(gl);
 		} else {
 			Material.removeState(gl);
 		}
+	}
+	
+	/**
+	 * Sets up the vertex arrays of this mesh, from client side buffers or
+	 * VBOs, and enables the optional arrays it uses. Meshes that share
+	 * arrays (see <code>sharesArrays</code>) can be drawn with 
+	 * <code>drawElements</code> between one bind and one unbind.
+	 * @param gl
+	 */
+	void bindArrays(GL10 gl) {
+		if(useInterleaved && interleaved == null) {
+			buildInterleaved();
+		}
 		
-		if (mVertBufferIndex == 0) {
-			
+		if (mVertBufferIndex == 0 && interleaved != null) {
+			bindInterleavedArrays(gl);
+		} else if (mVertBufferIndex == 0) {
 			vertices.rewind();
 			gl.glVertexPointer(3, GL10.GL_FLOAT, 0, vertices);
 			
@@ -175,19 +347,8 @@ public class TriMesh extends Spatial {
 				gl.glEnableClientState(GL10.GL_NORMAL_ARRAY);
 				gl.glNormalPointer(GL10.GL_FLOAT, 0, normals);
 			}
-			
-			// do the drawing
-			indices.rewind();
-	    	gl.glDrawElements(drawMode, indices.limit(), GL10.GL_UNSIGNED_SHORT, indices);
-	    	
-	    	// disable non-mandatory arrays
-	    	if(colors != null) {
-	    		gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
-	    	}
-	    	if(normals != null) {
-	    		gl.glDisableClientState(GL10.GL_NORMAL_ARRAY);
-	    	}
-    	
+		} else if (mInterleavedBuffers) {
+			bindInterleavedBuffers((GL11)gl);
 		} else { // use VBO's
             GL11 gl11 = (GL11)gl;
             
@@ -212,12 +373,101 @@ public class TriMesh extends Spatial {
 			}
             
             gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferIndex);
-            gl11.glDrawElements(drawMode, mIndexCount,
-                    GL11.GL_UNSIGNED_SHORT, 0);
-            
+        }
+	}
+	
+	/**
+	 * Draws this mesh with its own transformation from the arrays
+	 * set up by <code>bindArrays</code>.
+	 * @param gl
+	 */
+	void drawElements(GL10 gl) {
+		drawElements(gl, transM, 0);
+	}
+	
+	/**
+	 * Draws this mesh with the given transformation from the arrays
+	 * set up by <code>bindArrays</code>.
+	 * @param gl
+	 * @param matrix column-major world transformation
+	 * @param offset offset of the transformation in matrix
+	 */
+	void drawElements(GL10 gl, float[] matrix, int offset) {
+		gl.glPushMatrix();
+		gl.glMultMatrixf(matrix, offset);
+		if(quantized) {
+			beginQuantized(gl);
+		}
+		
+		if (mVertBufferIndex != 0) {
+			((GL11)gl).glDrawElements(drawMode, mIndexCount, mIndexType, 0);
+		} else if (intIndices != null) {
+			intIndices.rewind();
+			gl.glDrawElements(drawMode, intIndices.limit(), GL_UNSIGNED_INT, intIndices);
+		} else {
+			indices.rewind();
+			gl.glDrawElements(drawMode, indices.limit(), GL10.GL_UNSIGNED_SHORT, indices);
+		}
+		
+		if(quantized) {
+			endQuantized(gl);
+		}
+		gl.glPopMatrix();
+	}
+	
+	// dequantizes positions with the modelview matrix and texture
+	// coordinates with the texture matrix
+	private void beginQuantized(GL10 gl) {
+		gl.glTranslatef(quantOffset[0], quantOffset[1], quantOffset[2]);
+		gl.glScalef(quantScale, quantScale, quantScale);
+		if(normalOffset >= 0) {
+			// the scale is uniform, so rescaling is enough
+			gl.glEnable(GL10.GL_RESCALE_NORMAL);
+		}
+		if(texcoordOffset >= 0) {
+			gl.glMatrixMode(GL10.GL_TEXTURE);
+			gl.glPushMatrix();
+			gl.glScalef(texcoordScale, texcoordScale, 1);
+			gl.glMatrixMode(GL10.GL_MODELVIEW);
+		}
+	}
+	
+	private void endQuantized(GL10 gl) {
+		if(normalOffset >= 0) {
+			gl.glDisable(GL10.GL_RESCALE_NORMAL);
+		}
+		if(texcoordOffset >= 0) {
+			gl.glMatrixMode(GL10.GL_TEXTURE);
+			gl.glPopMatrix();
+			gl.glMatrixMode(GL10.GL_MODELVIEW);
+		}
+	}
+
+	
+	/**
+	 * Disables the optional arrays enabled by <code>bindArrays</code> and
+	 * unbinds any VBOs.
+	 * @param gl
+	 */
+	void unbindArrays(GL10 gl) {
+		if (mVertBufferIndex == 0 && interleaved != null) {
+			disableInterleavedArrays(gl);
+		} else if (mVertBufferIndex == 0) {
+	    	if(colors != null) {
+	    		gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
+	    	}
+	    	if(normals != null) {
+	    		gl.glDisableClientState(GL10.GL_NORMAL_ARRAY);
+	    	}
+		} else {
+			GL11 gl11 = (GL11)gl;
             gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, 0);
             gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, 0);
             
+            if(mInterleavedBuffers) {
+            	disableInterleavedArrays(gl11);
+            	return;
+            }
             if(mColorBufferIndex != 0) {
 				gl11.glDisableClientState(GL11.GL_COLOR_ARRAY);
 			}
@@ -227,9 +477,306 @@ public class TriMesh extends Spatial {
 			if(mTexCoordsBufferIndex != 0) {
 				gl11.glDisableClientState(GL11.GL_TEXTURE_COORD_ARRAY);				
 			}
-        }
+		}
+	}
+	
+	/**
+	 * @param other mesh to compare with
+	 * @return true if the arrays bound for the other mesh can be used to
+	 * draw this mesh
+	 */
+	boolean sharesArrays(TriMesh other) {
+		if(mVertBufferIndex != 0) {
+			return other.mVertBufferIndex == mVertBufferIndex
+				&& other.mIndexBufferIndex == mIndexBufferIndex
+				&& other.mInterleavedBuffers == mInterleavedBuffers;
+		}
+		return other.mVertBufferIndex == 0
+			&& other.arrayId == arrayId
+			&& other.useInterleaved == useInterleaved
+			&& other.quantized == quantized;
+	}
+	
+	/**
+	 * @return a key that is equal for meshes drawn from the same arrays,
+	 * used to sort meshes sharing arrays next to each other
+	 */
+	int getArrayKey() {
+		return arrayId;
+	}
+	
+	/**
+	 * @return true if this mesh holds a reference to hardware buffers (VBOs)
+	 */
+	public boolean hasHardwareBuffers() {
+		return mBufferRef;
+	}
+	
+	// sets up pointers into the interleaved client side buffer
+	private void bindInterleavedArrays(GL10 gl) {
+		interleaved.position(0);
+		gl.glVertexPointer(3, quantized ? GL10.GL_SHORT : GL10.GL_FLOAT, stride, interleaved);
+		if(normalOffset >= 0) {
+			interleaved.position(normalOffset);
+			gl.glEnableClientState(GL10.GL_NORMAL_ARRAY);
+			gl.glNormalPointer(quantized ? GL10.GL_BYTE : GL10.GL_FLOAT, stride, interleaved);
+		}
+		if(texcoordOffset >= 0) {
+			interleaved.position(texcoordOffset);
+			gl.glEnableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+			gl.glTexCoordPointer(2, quantized ? GL10.GL_SHORT : GL10.GL_FLOAT, stride, interleaved);
+		}
+		if(colorOffset >= 0) {
+			interleaved.position(colorOffset);
+			gl.glEnableClientState(GL10.GL_COLOR_ARRAY);
+			gl.glColorPointer(4, GL10.GL_UNSIGNED_BYTE, stride, interleaved);
+		}
+		interleaved.position(0);
+	}
+	
+	// sets up pointers into a single interleaved VBO
+	private void bindInterleavedBuffers(GL11 gl11) {
+		gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, mVertBufferIndex);
+		gl11.glVertexPointer(3, quantized ? GL11.GL_SHORT : GL11.GL_FLOAT, stride, 0);
+		if(normalOffset >= 0) {
+			gl11.glEnableClientState(GL11.GL_NORMAL_ARRAY);
+			gl11.glNormalPointer(quantized ? GL11.GL_BYTE : GL11.GL_FLOAT, stride, normalOffset);
+		}
+		if(texcoordOffset >= 0) {
+			gl11.glEnableClientState(GL11.GL_TEXTURE_COORD_ARRAY);
+			gl11.glTexCoordPointer(2, quantized ? GL11.GL_SHORT : GL11.GL_FLOAT, stride, texcoordOffset);
+		}
+		if(colorOffset >= 0) {
+			gl11.glEnableClientState(GL11.GL_COLOR_ARRAY);
+			gl11.glColorPointer(4, GL11.GL_UNSIGNED_BYTE, stride, colorOffset);
+		}
+		gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, mIndexBufferIndex);
+	}
+	
+	private void disableInterleavedArrays(GL10 gl) {
+		if(normalOffset >= 0) {
+			gl.glDisableClientState(GL10.GL_NORMAL_ARRAY);
+		}
+		if(texcoordOffset >= 0) {
+			gl.glDisableClientState(GL10.GL_TEXTURE_COORD_ARRAY);
+		}
+		if(colorOffset >= 0) {
+			gl.glDisableClientState(GL10.GL_COLOR_ARRAY);
+		}
+	}
+	
+	/**
+	 * Enable or disable the interleaved vertex layout. When enabled, positions,
+	 * normals, texture coordinates and colors are packed per vertex into
+	 * one buffer which is drawn from (and uploaded as) a single array.
+	 * The separate buffers are kept for picking and bounds.
+	 * @param value true to draw from an interleaved buffer
+	 */
+	public void setInterleaved(boolean value) {
+		useInterleaved = value;
+		if(value) {
+			buildInterleaved();
+		} else {
+			interleaved = null;
+		}
+	}
+	
+	/**
+	 * @return true if this mesh draws from an interleaved buffer
+	 */
+	public boolean isInterleaved() {
+		return useInterleaved;
+	}
+	
+	/**
+	 * Enable or disable quantized vertex data. Quantized meshes draw from an
+	 * interleaved buffer (see <code>setInterleaved</code>) holding positions
+	 * as shorts relative to the center of the mesh, normals as bytes and
+	 * texture coordinates as shorts, which is dequantized by the modelview
+	 * and texture matrices. The float buffers are kept for picking and 
+	 * bounds. Set this before the mesh is cloned or drawn.
+	 * @param value true to draw quantized vertex data
+	 */
+	public void setQuantized(boolean value) {
+		if(value != quantized) {
+			quantized = value;
+			interleaved = null;
+		}
+		setInterleaved(value || useInterleaved);
+	}
+	
+	/**
+	 * @return true if this mesh draws quantized vertex data
+	 */
+	public boolean isQuantized() {
+		return quantized;
+	}
+	
+	/**
+	 * @return bytes per vertex of the arrays this mesh is drawn from
+	 */
+	public int getVertexSize() {
+		if(useInterleaved) {
+			buildInterleaved();
+			return stride;
+		}
+		int size = 12;
+		if(normals != null) {
+			size += 12;
+		}
+		if(texcoords != null) {
+			size += 8;
+		}
+		if(colors != null) {
+			size += 4;
+		}
+		return size;
+	}
+	
+	/**
+	 * Enable or disable instanced drawing for the family of this mesh, i.e.
+	 * the mesh it was cloned from and all clones of that mesh. Visible
+	 * instances of the family that share a material are then drawn with
+	 * one draw call. OpenGL ES 1.x has no instanced draw calls, so the
+	 * instances are transformed to world coordinates on the CPU and packed
+	 * in one set of arrays each frame. This pays off for many instances of
+	 * small meshes, while large meshes are better drawn one by one from VBOs.
+	 * Only meshes drawn with MODE_TRIANGLES are batched.
+	 * @param value true to batch instances of this family
+	 */
+	public void setInstancing(boolean value) {
+		TriMesh root = getFamilyRoot();
+		root.instancing = value;
+		if(!value) {
+			root.instVertices = null;
+		}
+	}
+	
+	/**
+	 * @return true if instances of this mesh family are batched
+	 */
+	public boolean isInstancing() {
+		return drawMode == MODE_TRIANGLES && intIndices == null && getFamilyRoot().instancing;
+	}
+	
+	/**
+	 * @return the mesh this mesh was (directly or indirectly) cloned from,
+	 * or this mesh if it is not a clone
+	 */
+	TriMesh getFamilyRoot() {
+		TriMesh root = this;
+		while(root.cloneTarget != null) {
+			root = root.cloneTarget;
+		}
+		return root;
+	}
+	
+	/**
+	 * Makes sure the family root has copies of its vertex data for
+	 * building instance batches.
+	 * @return the family root
+	 */
+	TriMesh prepareInstancing() {
+		TriMesh root = getFamilyRoot();
+		if(root.instVertices != null) {
+			return root;
+		}
+		CharBuffer indexSrc = root.indices.duplicate();
+		indexSrc.rewind();
+		root.instIndices = new char[indexSrc.limit()];
+		indexSrc.get(root.instIndices);
+		root.instNormals = null;
+		root.instTexcoords = null;
+		root.instColors = null;
+		FloatBuffer src;
+		if(root.normals != null) {
+			src = root.normals.duplicate();
+			src.rewind();
+			root.instNormals = new float[root.vertexCount * 3];
+			src.get(root.instNormals);
+		}
+		if(root.texcoords != null) {
+			src = root.texcoords.duplicate();
+			src.rewind();
+			root.instTexcoords = new float[root.vertexCount * 2];
+			src.get(root.instTexcoords);
+		}
+		if(root.colors != null) {
+			ByteBuffer colorSrc = root.colors.duplicate();
+			colorSrc.rewind();
+			root.instColors = new byte[root.vertexCount * 4];
+			colorSrc.get(root.instColors);
+		}
+		src = root.vertices.duplicate();
+		src.rewind();
+		float[] verts = new float[root.vertexCount * 3];
+		src.get(verts);
+		root.instVertices = verts;
+		return root;
+	}
+	
+	/**
+	 * Builds the interleaved buffer from the separate buffers, if it
+	 * has not already been built.
+	 */
+	protected void buildInterleaved() {
+		if(interleaved != null || vertices == null) {
+			return;
+		}
+		if(quantized) {
+			computeQuantization();
+		}
+		// quantized positions and normals are padded to keep the
+		// following attributes aligned
+		int offset = quantized ? 8 : 12;
+		normalOffset = texcoordOffset = colorOffset = -1;
+		if(normals != null) {
+			normalOffset = offset;
+			offset += quantized ? 4 : 12;
+		}
+		if(texcoords != null) {
+			texcoordOffset = offset;
+			offset += quantized ? 4 : 8;
+		}
+		if(colors != null) {
+			colorOffset = offset;
+			offset += 4;
+		}
+		stride = offset;
 		
-		gl.glPopMatrix();
+		ByteBuffer buf = BufferUtils.createByteBuffer(vertexCount * stride);
+		writeInterleaved(buf);
+		interleaved = buf;
+	}
+	
+	// picks the dequantization parameters from the current vertex data
+	private void computeQuantization() {
+		float minX = 0, minY = 0, minZ = 0, maxX = 0, maxY = 0, maxZ = 0;
+		float x, y, z;
+		for(int i = 0; i < vertexCount; i++) {
+			x = vertices.get(i*3);
+			y = vertices.get(i*3+1);
+			z = vertices.get(i*3+2);
+			if(i == 0 || x < minX) minX = x;
+			if(i == 0 || y < minY) minY = y;
+			if(i == 0 || z < minZ) minZ = z;
+			if(i == 0 || x > maxX) maxX = x;
+			if(i == 0 || y > maxY) maxY = y;
+			if(i == 0 || z > maxZ) maxZ = z;
+		}
+		quantOffset[0] = (minX + maxX) / 2;
+		quantOffset[1] = (minY + maxY) / 2;
+		quantOffset[2] = (minZ + maxZ) / 2;
+		// one scale for all axes, so that normals only need rescaling
+		float extent = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ)) / 2;
+		quantScale = extent > 0 ? extent / Short.MAX_VALUE : 1;
+		float maxTexcoord = 0;
+		if(texcoords != null) {
+			for(int i = 0; i < vertexCount * 2; i++) {
+				maxTexcoord = Math.max(maxTexcoord, Math.abs(texcoords.get(i)));
+			}
+		}
+		texcoordScale = maxTexcoord > 0 ? maxTexcoord / Short.MAX_VALUE : 1;
 	}
 	
 	/**
@@ -247,6 +794,8 @@ public class TriMesh extends Spatial {
 		}
 		colors.clear();
 		colors.put(colorArray);
+		interleaved = null;
+		instVertices = null;
 		return;
 	}
 
@@ -274,8 +823,45 @@ public class TriMesh extends Spatial {
 		}
 		indices.clear();
 		indices.put(indexArray);
+		intIndices = null;
+		instVertices = null;
 		return;
 	}
+
+	/**
+	 * Sets the indices, as 16-bit indices if every index fits and as 
+	 * 32-bit indices otherwise.
+	 * @param indexArray indices to set
+	 */
+	public void setIndices(int[] indexArray) {
+		int size = indexArray.length;
+		int max = 0;
+		for(int i = 0; i < size; i++) {
+			if(indexArray[i] > max) {
+				max = indexArray[i];
+			}
+		}
+		if(max > 0xFFFF) {
+			if(intIndices == null || intIndices.capacity() != size) {
+				intIndices = BufferUtils.createIntBuffer(size);
+			}
+			intIndices.clear();
+			intIndices.put(indexArray);
+			intIndices.rewind();
+			indices = null;
+		} else {
+			if(indices == null || indices.capacity() != size) {
+				indices = BufferUtils.createCharBuffer(size);
+			}
+			indices.clear();
+			for(int i = 0; i < size; i++) {
+				indices.put((char) indexArray[i]);
+			}
+			indices.rewind();
+			intIndices = null;
+		}
+		instVertices = null;
+	}
 	
 	/**
 	 * Sets the bounding volume.
@@ -284,6 +870,7 @@ public class TriMesh extends Spatial {
 	public void setModelBound(AABBox bound) {
 		modelBound = bound;
 		hasDirtyModelBound = false;
+		markBoundDirty();
 	}
 	
 	/**
@@ -301,6 +888,8 @@ public class TriMesh extends Spatial {
 		}
 		normals.clear();
 		normals.put(normalArray);
+		interleaved = null;
+		instVertices = null;
 		return;
 	}
 
@@ -309,6 +898,8 @@ public class TriMesh extends Spatial {
          */
 	public void setNormals(FloatBuffer normals) {
 		this.normals = normals;
+		interleaved = null;
+		instVertices = null;
 	}
 	
 	/**
@@ -349,6 +940,8 @@ public class TriMesh extends Spatial {
 		for(int i = 0; i < vertexCount; i++) {
 			colors.put(color4b);
 		}
+		interleaved = null;
+		instVertices = null;
 		return;
 	}
 
@@ -367,6 +960,8 @@ public class TriMesh extends Spatial {
 		}
 		texcoords.clear();
 		texcoords.put(texcoordsArray);
+		interleaved = null;
+		instVertices = null;
 	}
 
         /**
@@ -374,6 +969,8 @@ public class TriMesh extends Spatial {
          */
 	public void setTexCoords(FloatBuffer texcoords) {
 		this.texcoords = texcoords;
+		interleaved = null;
+		instVertices = null;
 	}
 	
 	/**
@@ -397,6 +994,9 @@ public class TriMesh extends Spatial {
 		vertices.clear();
 		vertices.put(vertexArray);
 		hasDirtyModelBound = true;
+		markBoundDirty();
+		interleaved = null;
+		instVertices = null;
 		return;
 	}
 	
@@ -419,6 +1019,122 @@ public class TriMesh extends Spatial {
 		}
 		return null;
 	}
+
+	/**
+	 * @return 32-bit indices, or null if this mesh has 16-bit indices
+	 */
+	public IntBuffer getIntIndices() {
+		if(intIndices != null) {
+			return intIndices.asReadOnlyBuffer();
+		}
+		return null;
+	}
+
+	/**
+	 * @return true if this mesh has 16-bit or 32-bit indices
+	 */
+	public boolean hasIndices() {
+		return indices != null || intIndices != null;
+	}
+
+	/**
+	 * @return true if this mesh has 32-bit indices
+	 */
+	public boolean hasIntIndices() {
+		return intIndices != null;
+	}
+
+	/**
+	 * @return number of indices, whatever their width
+	 */
+	public int getIndexCount() {
+		if(indices != null) {
+			return indices.limit();
+		}
+		if(intIndices != null) {
+			return intIndices.limit();
+		}
+		return 0;
+	}
+
+	/**
+	 * @return number of triangles drawn for this mesh, including 
+	 * degenerate ones
+	 */
+	public int getTriangleCount() {
+		int n = getIndexCount();
+		if(drawMode == MODE_TRIANGLES) {
+			return n / 3;
+		}
+		return Math.max(n - 2, 0);
+	}
+	
+	/**
+	 * @return number of bytes generateHardwareBuffers would upload, 0 if
+	 * the family of this mesh already has hardware buffers
+	 */
+	int getUploadSize() {
+		TriMesh root = getFamilyRoot();
+		if(root.mVertBufferIndex != 0) {
+			return 0;
+		}
+		return root.vertexCount * root.getVertexSize()
+			+ root.getIndexCount() * (root.intIndices != null ? 4 : 2);
+	}
+	
+	/**
+	 * @return number of bytes in the vertex and index buffers of this
+	 * mesh, which clones share
+	 */
+	public int getDataSize() {
+		int size = 0;
+		if(vertices != null) {
+			size += vertices.capacity() * 4;
+		}
+		if(normals != null) {
+			size += normals.capacity() * 4;
+		}
+		if(texcoords != null) {
+			size += texcoords.capacity() * 4;
+		}
+		if(colors != null) {
+			size += colors.capacity();
+		}
+		if(interleaved != null) {
+			size += interleaved.capacity();
+		}
+		if(indices != null) {
+			size += indices.capacity() * 2;
+		} else if(intIndices != null) {
+			size += intIndices.capacity() * 4;
+		}
+		return size;
+	}
+
+	/**
+	 * @param i position of the index
+	 * @return the index at the given position, whatever its width
+	 */
+	int getIndex(int i) {
+		return indices != null ? indices.get(i) : intIndices.get(i);
+	}
+
+	/**
+	 * Tells meshes whether the GL context supports 32-bit indices 
+	 * (OES_element_index_uint). Meshes with 32-bit indices are not 
+	 * drawn unless it does.
+	 * @param value true if 32-bit indices are supported
+	 */
+	public static void setIntIndicesSupported(boolean value) {
+		intIndicesSupported = value;
+	}
+
+	/**
+	 * @return true if the GL context supports 32-bit indices
+	 */
+	public static boolean isIntIndicesSupported() {
+		return intIndicesSupported;
+	}
 	
 	/**
 	 * Updates the bounding volume for this mesh
@@ -481,27 +1197,49 @@ public class TriMesh extends Spatial {
 		}
 	}
 	
+	/**
+	 * Forgets the hardware buffers of this mesh and its family without
+	 * deleting them. Call this on every mesh with hardware buffers when
+	 * the GL context has been lost, since the buffers went with it.
+	 */
+	@Override
+	public void forgetHardwareBuffers() {
+		TriMesh root = getFamilyRoot();
+		root.mBufferRefs = 0;
+		root.clearBufferIndices();
+		mBufferRef = false;
+		clearBufferIndices();
+	}
+	
+	private void clearBufferIndices() {
+		mVertBufferIndex = 0;
+		mIndexBufferIndex = 0;
+		mNormalBufferIndex = 0;
+		mTexCoordsBufferIndex = 0;
+		mColorBufferIndex = 0;
+	}
+	
+	/**
+	 * Frees the reference of this mesh to the hardware buffers of its
+	 * family. The buffers are deleted when no mesh in the family holds a
+	 * reference, so clones can free their buffers independently.
+	 */
 	@Override
-        public void forgetHardwareBuffers() {
-		if(cloneTarget != null) {
-			cloneTarget.forgetHardwareBuffers();
+	public void freeHardwareBuffers(GL10 gl) {
+		if(!mBufferRef) {
 			return;
 		}
-        mVertBufferIndex = 0;
-        mIndexBufferIndex = 0;
-        mNormalBufferIndex = 0;
-        mTexCoordsBufferIndex = 0;
-        mColorBufferIndex = 0;
-    }
-    
-    @Override
-    public void freeHardwareBuffers(GL10 gl) {
-    	if(cloneTarget != null) {
-    		cloneTarget.freeHardwareBuffers(gl);
-    		forgetHardwareBuffers();
-    		return;
-    	}
-    	
+		mBufferRef = false;
+		TriMesh root = getFamilyRoot();
+		if(--root.mBufferRefs == 0) {
+			root.deleteHardwareBuffers(gl);
+		}
+		if(root != this) {
+			clearBufferIndices();
+		}
+	}
+	
+	private void deleteHardwareBuffers(GL10 gl) {
         if (mVertBufferIndex != 0) {
             if (gl instanceof GL11) {
                 GL11 gl11 = (GL11)gl;
@@ -525,42 +1263,70 @@ public class TriMesh extends Spatial {
                 	gl11.glDeleteBuffers(1, buffer, 0);
                 }
             }
-            forgetHardwareBuffers();
+            clearBufferIndices();
         }
     }
     
+	/**
+	 * Takes a reference to the hardware buffers of the family of this
+	 * mesh, creating them if no mesh in the family has them.
+	 */
     @Override    
     public void generateHardwareBuffers(GL10 gl) {
-    	if(cloneTarget != null) {
-    		if (cloneTarget.mVertBufferIndex == 0) {
-    			cloneTarget.generateHardwareBuffers(gl);
-    		}
-    		mVertBufferIndex = cloneTarget.mVertBufferIndex;
-            mIndexBufferIndex = cloneTarget.mIndexBufferIndex;
-            mNormalBufferIndex = cloneTarget.mNormalBufferIndex;
-            mTexCoordsBufferIndex = cloneTarget.mTexCoordsBufferIndex;
-            mColorBufferIndex = cloneTarget.mColorBufferIndex;
-            mIndexCount = cloneTarget.mIndexCount;
-            return;
+    	if(mBufferRef || released) {
+    		return;
     	}
-    	
+    	TriMesh root = getFamilyRoot();
+    	root.createHardwareBuffers(gl);
+    	if(root.mVertBufferIndex == 0) {
+    		// no GL11
+    		return;
+    	}
+    	root.mBufferRefs++;
+    	mBufferRef = true;
+    	if(root != this) {
+    		mVertBufferIndex = root.mVertBufferIndex;
+            mIndexBufferIndex = root.mIndexBufferIndex;
+            mNormalBufferIndex = root.mNormalBufferIndex;
+            mTexCoordsBufferIndex = root.mTexCoordsBufferIndex;
+            mColorBufferIndex = root.mColorBufferIndex;
+            mIndexCount = root.mIndexCount;
+            mIndexType = root.mIndexType;
+            mInterleavedBuffers = root.mInterleavedBuffers;
+    	}
+    }
+    
+    private void createHardwareBuffers(GL10 gl) {
         if (mVertBufferIndex == 0) {
             if (gl instanceof GL11) {
                 GL11 gl11 = (GL11)gl;
                 int[] buffer = new int[1];
                 
                 vertices.rewind();
-                indices.rewind();
+                Buffer indexBuffer = intIndices != null ? intIndices : indices;
+                indexBuffer.rewind();
+                
+                if(useInterleaved) {
+                	buildInterleaved();
+                }
+                mInterleavedBuffers = (interleaved != null);
                 
                 // Allocate and fill the vertex buffer.
                 gl11.glGenBuffers(1, buffer, 0);
                 mVertBufferIndex = buffer[0];
                 gl11.glBindBuffer(GL11.GL_ARRAY_BUFFER, mVertBufferIndex);
-                final int vertexSize = vertices.capacity() * 4;
-                gl11.glBufferData(GL11.GL_ARRAY_BUFFER, vertexSize, 
-                        vertices, GL11.GL_STATIC_DRAW);
+                if(mInterleavedBuffers) {
+                	// everything but the indices goes in this one buffer
+                	interleaved.rewind();
+                	gl11.glBufferData(GL11.GL_ARRAY_BUFFER, interleaved.capacity(), 
+                			interleaved, GL11.GL_STATIC_DRAW);
+                } else {
+                	final int vertexSize = vertices.capacity() * 4;
+                	gl11.glBufferData(GL11.GL_ARRAY_BUFFER, vertexSize, 
+                			vertices, GL11.GL_STATIC_DRAW);
+                }
                 
-                if(normals != null) {
+                if(normals != null && !mInterleavedBuffers) {
                 	normals.rewind();
                 	gl11.glGenBuffers(1, buffer, 0);
                     mNormalBufferIndex = buffer[0];
@@ -569,7 +1335,7 @@ public class TriMesh extends Spatial {
                     gl11.glBufferData(GL11.GL_ARRAY_BUFFER, normalSize, 
                             normals, GL11.GL_STATIC_DRAW);
                 }
-                if(colors != null) {
+                if(colors != null && !mInterleavedBuffers) {
                 	colors.rewind();
                 	gl11.glGenBuffers(1, buffer, 0);
                     mColorBufferIndex = buffer[0];
@@ -578,7 +1344,7 @@ public class TriMesh extends Spatial {
                     gl11.glBufferData(GL11.GL_ARRAY_BUFFER, colorSize, 
                             colors, GL11.GL_STATIC_DRAW);
                 }
-                if(texcoords != null) {
+                if(texcoords != null && !mInterleavedBuffers) {
                 	texcoords.rewind();
                 	gl11.glGenBuffers(1, buffer, 0);
                     mTexCoordsBufferIndex = buffer[0];
@@ -596,14 +1362,15 @@ public class TriMesh extends Spatial {
                 mIndexBufferIndex = buffer[0];
                 gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, 
                         mIndexBufferIndex);
-                // A char is 2 bytes.
-                final int indexSize = indices.capacity() * 2;
-                gl11.glBufferData(GL11.GL_ELEMENT_ARRAY_BUFFER, indexSize, indices, GL11.GL_STATIC_DRAW);
+                // A char is 2 bytes, an int 4.
+                final int indexSize = indexBuffer.capacity() * (intIndices != null ? 4 : 2);
+                gl11.glBufferData(GL11.GL_ELEMENT_ARRAY_BUFFER, indexSize, indexBuffer, GL11.GL_STATIC_DRAW);
                 
                 // Unbind the element array buffer.
                 gl11.glBindBuffer(GL11.GL_ELEMENT_ARRAY_BUFFER, 0);
                 
-                mIndexCount = indices.limit();
+                mIndexCount = indexBuffer.limit();
+                mIndexType = intIndices != null ? GL_UNSIGNED_INT : GL11.GL_UNSIGNED_SHORT;
                 
                 // TODO are we safe so delete the java.nio.buffers now??
                 // Probably not... since we can lose context every now and then.
@@ -662,7 +1429,15 @@ public class TriMesh extends Spatial {
         	s.writeFloat(modelBound.maxY);
         	s.writeFloat(modelBound.maxZ);
         }
-        if (indices == null)
+        if (intIndices != null) {
+        	// a negative count marks 32-bit indices
+            s.writeInt(-intIndices.limit());
+            intIndices.rewind();
+            len = intIndices.limit();
+            for (int i = 0; i < len; i++) {
+                s.writeInt(intIndices.get(i));
+            }
+        } else if (indices == null)
             s.writeInt(0);
         else {
             s.writeInt(indices.limit());
@@ -737,8 +1512,16 @@ public class TriMesh extends Spatial {
         	hasDirtyModelBound = false;
         }
         
+        intIndices = null;
         if((len = s.readInt()) == 0) {
         	indices = null;
+        } else if(len < 0) {
+        	indices = null;
+        	IntBuffer buf = BufferUtils.createIntBuffer(-len);
+        	buf.clear();
+            for (int x = 0; x < -len; x++)
+                buf.put(s.readInt());
+            intIndices = buf;
         } else {
         	CharBuffer buf = BufferUtils.createCharBuffer(len);
         	buf.clear();
@@ -778,6 +1561,432 @@ public class TriMesh extends Spatial {
         }
     }
 
+    /**
+     * Writes the TriMesh's vertex data to a stream in the mappable model
+     * format (version 2). Every data section is aligned and stored in the
+     * given byte order so that <code>importMappedModel</code> can hand out
+     * slices of a memory mapped file without copying. Use the byte order of
+     * the target device, which is <code>ByteOrder.LITTLE_ENDIAN</code> on
+     * practically every Android device. 32-bit indices are stored in a
+     * section of their own, so files with 16-bit indices are unchanged.
+     * @param s stream to write to
+     * @param order byte order of the written data
+     * @throws IOException
+     */
+    public void exportMappedModel(OutputStream s, ByteOrder order) throws IOException {
+    	int[] types = new int[6];
+    	Buffer[] sections = new Buffer[6];
+    	int[] sizes = new int[6];
+    	int nSections = 0;
+    	if(indices != null) {
+    		types[nSections] = MOD_SECTION_INDICES;
+    		sizes[nSections] = 2;
+    		sections[nSections++] = indices;
+    	} else if(intIndices != null) {
+    		types[nSections] = MOD_SECTION_INDICES32;
+    		sizes[nSections] = 4;
+    		sections[nSections++] = intIndices;
+    	}
+    	if(vertices != null) {
+    		types[nSections] = MOD_SECTION_VERTICES;
+    		sizes[nSections] = 4;
+    		sections[nSections++] = vertices;
+    	}
+    	if(texcoords != null) {
+    		types[nSections] = MOD_SECTION_TEXCOORDS;
+    		sizes[nSections] = 4;
+    		sections[nSections++] = texcoords;
+    	}
+    	if(normals != null) {
+    		types[nSections] = MOD_SECTION_NORMALS;
+    		sizes[nSections] = 4;
+    		sections[nSections++] = normals;
+    	}
+    	if(colors != null) {
+    		types[nSections] = MOD_SECTION_COLORS;
+    		sizes[nSections] = 1;
+    		sections[nSections++] = colors;
+    	}
+    	if(useInterleaved) {
+    		buildInterleaved();
+    		types[nSections] = quantized ? MOD_SECTION_QUANTIZED : MOD_SECTION_INTERLEAVED;
+    		sizes[nSections] = 1;
+    		sections[nSections++] = interleaved;
+    	}
+    	
+    	// lay out the sections after the header and section table
+    	int[] offsets = new int[nSections];
+    	int size = align(MOD_HEADER_SIZE + 12 * nSections);
+    	for(int i = 0; i < nSections; i++) {
+    		offsets[i] = size;
+    		if(types[i] == MOD_SECTION_INTERLEAVED) {
+    			size += MOD_INTERLEAVED_LAYOUT;
+    		} else if(types[i] == MOD_SECTION_QUANTIZED) {
+    			size += MOD_QUANTIZED_LAYOUT;
+    		}
+    		size = align(size + sections[i].limit() * sizes[i]);
+    	}
+    	
+    	ByteBuffer buf = ByteBuffer.allocate(size);
+    	buf.order(order);
+    	// magic "MOD2" is independent of the byte order
+    	buf.put((byte)'M').put((byte)'O').put((byte)'D').put((byte)'2');
+    	buf.putInt(MOD_ORDER_MARK);
+    	buf.putInt(MOD_VERSION);
+    	int flags = 0;
+    	if(center != null) {
+    		flags |= MOD_FLAG_CENTER;
+    	}
+    	if(modelBound != null) {
+    		flags |= MOD_FLAG_BOUND;
+    	}
+    	buf.putInt(flags);
+    	buf.putInt(drawMode);
+    	buf.putInt(vertexCount);
+    	if(center != null) {
+    		buf.putFloat(center[0]).putFloat(center[1]).putFloat(center[2]);
+    	} else {
+    		buf.putFloat(0).putFloat(0).putFloat(0);
+    	}
+    	if(modelBound != null) {
+    		buf.putFloat(modelBound.minX).putFloat(modelBound.minY).putFloat(modelBound.minZ);
+    		buf.putFloat(modelBound.maxX).putFloat(modelBound.maxY).putFloat(modelBound.maxZ);
+    	} else {
+    		buf.putFloat(0).putFloat(0).putFloat(0).putFloat(0).putFloat(0).putFloat(0);
+    	}
+    	buf.putInt(nSections);
+    	
+    	// section table: type, element count, byte offset
+    	buf.position(MOD_HEADER_SIZE);
+    	for(int i = 0; i < nSections; i++) {
+    		buf.putInt(types[i]);
+    		buf.putInt(sections[i].limit());
+    		buf.putInt(offsets[i]);
+    	}
+    	
+    	for(int i = 0; i < nSections; i++) {
+    		buf.position(offsets[i]);
+    		switch(types[i]) {
+    		case MOD_SECTION_INDICES:
+    			CharBuffer cb = indices.duplicate();
+    			cb.rewind();
+    			buf.asCharBuffer().put(cb);
+    			break;
+    		case MOD_SECTION_INDICES32:
+    			IntBuffer ib = intIndices.duplicate();
+    			ib.rewind();
+    			buf.asIntBuffer().put(ib);
+    			break;
+    		case MOD_SECTION_COLORS:
+    			ByteBuffer bb = colors.duplicate();
+    			bb.rewind();
+    			buf.put(bb);
+    			break;
+    		case MOD_SECTION_INTERLEAVED:
+    			buf.putInt(stride);
+    			buf.putInt(normalOffset);
+    			buf.putInt(texcoordOffset);
+    			buf.putInt(colorOffset);
+    			writeInterleaved(buf);
+    			break;
+    		case MOD_SECTION_QUANTIZED:
+    			buf.putInt(stride);
+    			buf.putInt(normalOffset);
+    			buf.putInt(texcoordOffset);
+    			buf.putInt(colorOffset);
+    			buf.putFloat(quantOffset[0]);
+    			buf.putFloat(quantOffset[1]);
+    			buf.putFloat(quantOffset[2]);
+    			buf.putFloat(quantScale);
+    			buf.putFloat(texcoordScale);
+    			buf.position(offsets[i] + MOD_QUANTIZED_LAYOUT);
+    			writeInterleaved(buf);
+    			break;
+    		default:
+    			FloatBuffer fb = ((FloatBuffer)sections[i]).duplicate();
+    			fb.rewind();
+    			buf.asFloatBuffer().put(fb);
+    		}
+    	}
+    	s.write(buf.array(), 0, size);
+    }
+    
+    // writes the interleaved data in the byte order of the given buffer
+    private void writeInterleaved(ByteBuffer buf) {
+    	int start = buf.position();
+    	int base;
+    	if(quantized) {
+    		writeQuantized(buf);
+    		return;
+    	}
+    	for(int i = 0; i < vertexCount; i++) {
+    		base = start + i * stride;
+    		buf.putFloat(base, vertices.get(i*3));
+    		buf.putFloat(base+4, vertices.get(i*3+1));
+    		buf.putFloat(base+8, vertices.get(i*3+2));
+    		if(normalOffset >= 0) {
+    			buf.putFloat(base+normalOffset, normals.get(i*3));
+    			buf.putFloat(base+normalOffset+4, normals.get(i*3+1));
+    			buf.putFloat(base+normalOffset+8, normals.get(i*3+2));
+    		}
+    		if(texcoordOffset >= 0) {
+    			buf.putFloat(base+texcoordOffset, texcoords.get(i*2));
+    			buf.putFloat(base+texcoordOffset+4, texcoords.get(i*2+1));
+    		}
+    		if(colorOffset >= 0) {
+    			for(int c = 0; c < 4; c++) {
+    				buf.put(base+colorOffset+c, colors.get(i*4+c));
+    			}
+    		}
+    	}
+    }
+    
+    // writes quantized data in the byte order of the given buffer
+    private void writeQuantized(ByteBuffer buf) {
+    	int start = buf.position();
+    	int base;
+    	float inv = 1 / quantScale;
+    	float texInv = 1 / texcoordScale;
+    	for(int i = 0; i < vertexCount; i++) {
+    		base = start + i * stride;
+    		for(int c = 0; c < 3; c++) {
+    			buf.putShort(base+c*2, quantize((vertices.get(i*3+c) - quantOffset[c]) * inv, 
+    					Short.MAX_VALUE));
+    		}
+    		if(normalOffset >= 0) {
+    			for(int c = 0; c < 3; c++) {
+    				buf.put(base+normalOffset+c, (byte) quantize(normals.get(i*3+c) * Byte.MAX_VALUE,
+    						Byte.MAX_VALUE));
+    			}
+    		}
+    		if(texcoordOffset >= 0) {
+    			buf.putShort(base+texcoordOffset, quantize(texcoords.get(i*2) * texInv,
+    					Short.MAX_VALUE));
+    			buf.putShort(base+texcoordOffset+2, quantize(texcoords.get(i*2+1) * texInv, 
+    					Short.MAX_VALUE));
+    		}
+    		if(colorOffset >= 0) {
+    			for(int c = 0; c < 4; c++) {
+    				buf.put(base+colorOffset+c, colors.get(i*4+c));
+    			}
+    		}
+    	}
+    }
+    
+    private static short quantize(float value, int max) {
+    	int q = Math.round(value);
+    	return (short) (q > max ? max : q < -max ? -max : q);
+    }
+    
+    /**
+     * Sets the model content of a mappable model (version 2) on this TriMesh.
+     * The buffers of this TriMesh will be views into the given data, so
+     * if the data is a direct (or memory mapped) buffer in native byte order,
+     * nothing is copied. Data in a foreign byte order is copied into new
+     * native buffers.
+     * @param data the content of a model file, positioned at its start
+     * @throws IOException if the data is not a valid model
+     */
+    public void importMappedModel(ByteBuffer data) throws IOException {
+    	ByteBuffer buf = data.slice();
+    	if(buf.remaining() < MOD_HEADER_SIZE || !isMappedModel(buf)) {
+    		throw new IOException("Not a mappable model in "+name);
+    	}
+    	buf.order(ByteOrder.BIG_ENDIAN);
+    	if(buf.getInt(4) != MOD_ORDER_MARK) {
+    		buf.order(ByteOrder.LITTLE_ENDIAN);
+    	}
+    	if(buf.getInt(8) != MOD_VERSION) {
+    		throw new IOException("Unsupported model version "+buf.getInt(8)+" in "+name);
+    	}
+    	boolean copy = !buf.isDirect() || buf.order() != ByteOrder.nativeOrder();
+    	if(buf.order() != ByteOrder.nativeOrder()) {
+    		Log.w(TAG, "Model is not in native byte order, copying "+name);
+    	}
+    	
+    	int flags = buf.getInt(12);
+    	drawMode = buf.getInt(16);
+    	vertexCount = buf.getInt(20);
+    	center = new float[3];
+    	if((flags & MOD_FLAG_CENTER) != 0) {
+    		center[0] = buf.getFloat(24);
+    		center[1] = buf.getFloat(28);
+    		center[2] = buf.getFloat(32);
+    	}
+    	modelBound = new AABBox();
+    	if((flags & MOD_FLAG_BOUND) != 0) {
+    		modelBound.minX = buf.getFloat(36);
+    		modelBound.minY = buf.getFloat(40);
+    		modelBound.minZ = buf.getFloat(44);
+    		modelBound.maxX = buf.getFloat(48);
+    		modelBound.maxY = buf.getFloat(52);
+    		modelBound.maxZ = buf.getFloat(56);
+    		hasDirtyModelBound = false;
+    	} else {
+    		hasDirtyModelBound = true;
+    	}
+    	
+    	indices = null;
+    	intIndices = null;
+    	vertices = null;
+    	texcoords = null;
+    	normals = null;
+    	colors = null;
+    	interleaved = null;
+    	instVertices = null;
+    	useInterleaved = false;
+    	quantized = false;
+    	int nSections = buf.getInt(60);
+    	if(vertexCount < 0 || nSections < 0 
+    			|| MOD_HEADER_SIZE + 12L * nSections > buf.limit()) {
+    		throw new IOException("Invalid header in "+name);
+    	}
+    	int type, count, offset;
+    	for(int i = 0; i < nSections; i++) {
+    		type = buf.getInt(MOD_HEADER_SIZE + 12 * i);
+    		count = buf.getInt(MOD_HEADER_SIZE + 12 * i + 4);
+    		offset = buf.getInt(MOD_HEADER_SIZE + 12 * i + 8);
+    		checkSection(buf, type, count, offset);
+    		switch(type) {
+    		case MOD_SECTION_INDICES:
+    			indices = section(buf, offset, count, 2, copy).asCharBuffer();
+    			break;
+    		case MOD_SECTION_INDICES32:
+    			intIndices = section(buf, offset, count, 4, copy).asIntBuffer();
+    			break;
+    		case MOD_SECTION_VERTICES:
+    			vertices = section(buf, offset, count, 4, copy).asFloatBuffer();
+    			break;
+    		case MOD_SECTION_TEXCOORDS:
+    			texcoords = section(buf, offset, count, 4, copy).asFloatBuffer();
+    			break;
+    		case MOD_SECTION_NORMALS:
+    			normals = section(buf, offset, count, 4, copy).asFloatBuffer();
+    			break;
+    		case MOD_SECTION_COLORS:
+    			colors = section(buf, offset, count, 1, copy);
+    			break;
+    		case MOD_SECTION_INTERLEAVED:
+    			useInterleaved = true;
+    			if(buf.order() != ByteOrder.nativeOrder()) {
+    				// mixed element sizes, rebuild from the separate buffers instead
+    				break;
+    			}
+    			stride = buf.getInt(offset);
+    			normalOffset = buf.getInt(offset + 4);
+    			texcoordOffset = buf.getInt(offset + 8);
+    			colorOffset = buf.getInt(offset + 12);
+    			interleaved = section(buf, offset + MOD_INTERLEAVED_LAYOUT, count, 1, copy);
+    			break;
+    		case MOD_SECTION_QUANTIZED:
+    			useInterleaved = true;
+    			quantized = true;
+    			if(buf.order() != ByteOrder.nativeOrder()) {
+    				break;
+    			}
+    			stride = buf.getInt(offset);
+    			normalOffset = buf.getInt(offset + 4);
+    			texcoordOffset = buf.getInt(offset + 8);
+    			colorOffset = buf.getInt(offset + 12);
+    			quantOffset = new float[3];
+    			quantOffset[0] = buf.getFloat(offset + 16);
+    			quantOffset[1] = buf.getFloat(offset + 20);
+    			quantOffset[2] = buf.getFloat(offset + 24);
+    			quantScale = buf.getFloat(offset + 28);
+    			texcoordScale = buf.getFloat(offset + 32);
+    			interleaved = section(buf, offset + MOD_QUANTIZED_LAYOUT, count, 1, copy);
+    			break;
+    		default:
+    			Log.w(TAG, "Skipping unknown model section "+type+" in "+name);
+    		}
+    	}
+    	if(vertices != null && vertices.limit() != vertexCount * 3L) {
+    		throw new IOException("Invalid section "+MOD_SECTION_VERTICES+" in "+name
+    				+": "+vertices.limit()+" floats for "+vertexCount+" vertices");
+    	}
+    	if(interleaved != null && (stride <= 0 
+    			|| interleaved.limit() < (long) vertexCount * stride)) {
+    		throw new IOException("Invalid section "+(quantized ? MOD_SECTION_QUANTIZED 
+    				: MOD_SECTION_INTERLEAVED)+" in "+name+": "+interleaved.limit()
+    				+" bytes with stride "+stride+" for "+vertexCount+" vertices");
+    	}
+    }
+    
+    // throws if a section of a known type does not fit in the model file
+    private void checkSection(ByteBuffer buf, int type, int count, int offset) 
+    		throws IOException {
+    	long bytes;
+    	switch(type) {
+    	case MOD_SECTION_INDICES:
+    		bytes = count * 2L;
+    		break;
+    	case MOD_SECTION_INDICES32:
+    	case MOD_SECTION_VERTICES:
+    	case MOD_SECTION_TEXCOORDS:
+    	case MOD_SECTION_NORMALS:
+    		bytes = count * 4L;
+    		break;
+    	case MOD_SECTION_COLORS:
+    		bytes = count;
+    		break;
+    	case MOD_SECTION_INTERLEAVED:
+    		bytes = MOD_INTERLEAVED_LAYOUT + (long) count;
+    		break;
+    	case MOD_SECTION_QUANTIZED:
+    		bytes = MOD_QUANTIZED_LAYOUT + (long) count;
+    		break;
+    	default:
+    		return;
+    	}
+    	if(offset < 0 || count < 0 || offset + bytes > buf.limit()) {
+    		throw new IOException("Invalid section "+type+" in "+name+": "+count
+    				+" elements at offset "+offset+" of "+buf.limit()+" bytes");
+    	}
+    }
+    
+    /**
+     * Tells whether or not the given data starts with the header of a mappable
+     * model (version 2). The position of the buffer is not changed.
+     * @param data data to test
+     * @return true if the data is a mappable model
+     */
+    public static boolean isMappedModel(ByteBuffer data) {
+    	int pos = data.position();
+    	return data.remaining() >= 4 
+    		&& data.get(pos) == 'M' && data.get(pos+1) == 'O' 
+    		&& data.get(pos+2) == 'D' && data.get(pos+3) == '2';
+    }
+    
+    // returns a native ordered view (or copy) of a section in a model file
+    private static ByteBuffer section(ByteBuffer buf, int offset, int count, 
+    		int elementSize, boolean copy) {
+    	ByteBuffer view = buf.duplicate();
+    	view.limit(offset + count * elementSize);
+    	view.position(offset);
+    	if(!copy) {
+    		return view.slice().order(ByteOrder.nativeOrder());
+    	}
+    	view = view.slice().order(buf.order());
+    	ByteBuffer nativeBuf = BufferUtils.createByteBuffer(count * elementSize);
+    	// element wise copies swap the bytes if the orders differ
+    	switch(elementSize) {
+    	case 4:
+    		nativeBuf.asIntBuffer().put(view.asIntBuffer());
+    		break;
+    	case 2:
+    		nativeBuf.asShortBuffer().put(view.asShortBuffer());
+    		break;
+    	default:
+    		nativeBuf.put(view);
+    		nativeBuf.clear();
+    	}
+    	return nativeBuf;
+    }
+    
+    private static int align(int offset) {
+    	return (offset + MOD_ALIGNMENT - 1) & ~(MOD_ALIGNMENT - 1);
+    }
+
 	@Override
 	public void setMaterial(Material material) {
 		this.material = material;
@@ -789,5 +1998,80 @@ public class TriMesh extends Spatial {
 	public Material getMaterial() {
 		return material;
 	}
+	
+	/**
+	 * Enables or disables exact picking. With exact picking, a pick ray
+	 * that hits the bound of this mesh is also tested against each
+	 * triangle, so only rays that hit the surface of the mesh are
+	 * reported. Disabled by default.
+	 * @param exact true to test pick rays against the triangles
+	 */
+	public void setExactPicking(boolean exact) {
+		exactPicking = exact;
+	}
+	
+	/**
+	 * @return true if pick rays are tested against the triangles
+	 */
+	public boolean isExactPicking() {
+		return exactPicking;
+	}
+	
+	@Override
+	public void calculatePick(Ray ray, PickResult result) {
+		if(!exactPicking) {
+			super.calculatePick(ray, result);
+			return;
+		}
+		if(result == null) {
+			Log.w(TAG, "PickResult is null in "+name);
+			return;
+		}
+		if(pickable && ray.intersects(worldBound)
+				&& pickTriangles(ray, 0, getIndexCount(), pickDistance)) {
+			result.add(this, pickDistance[0]);
+		}
+	}
+	
+	/**
+	 * Tests a world space ray against a range of the triangles of this
+	 * mesh, as given by the draw mode.
+	 * @param ray ray in world coordinates
+	 * @param first first index of the range
+	 * @param count number of indices in the range
+	 * @param distance the distance to the closest hit, only valid if this 
+	 * method returns true
+	 * @return true if the ray hits at least one triangle
+	 */
+	boolean pickTriangles(Ray ray, int first, int count, float[] distance) {
+		if(vertices == null || !hasIndices() || !Matrix.invertM(pickM, 0, transM, 0)) {
+			return false;
+		}
+		// test in model coordinates instead of transforming each vertex
+		ray.transform(pickM, 0, pickRay);
+		boolean hit = false;
+		int end = first + count;
+		int step = drawMode == MODE_TRIANGLES ? 3 : 1;
+		int a, b, c;
+		for(int i = first; i + 2 < end; i += step) {
+			if(drawMode == MODE_TRIANGLE_FAN) {
+				a = getIndex(first) * 3;
+				b = getIndex(i+1) * 3;
+				c = getIndex(i+2) * 3;
+			} else {
+				a = getIndex(i) * 3;
+				b = getIndex(i+1) * 3;
+				c = getIndex(i+2) * 3;
+			}
+			if(pickRay.intersects(vertices.get(a), vertices.get(a+1), vertices.get(a+2),
+					vertices.get(b), vertices.get(b+1), vertices.get(b+2),
+					vertices.get(c), vertices.get(c+1), vertices.get(c+2), triDistance)
+					&& (!hit || triDistance[0] < distance[0])) {
+				distance[0] = triDistance[0];
+				hit = true;
+			}
+		}
+		return hit;
+	}
 
 }
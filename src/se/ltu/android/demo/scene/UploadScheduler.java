@@ -0,0 +1,193 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import javax.microedition.khronos.opengles.GL10;
+import javax.microedition.khronos.opengles.GL11;
+
+/**
+ * Spreads the creation of hardware buffers (VBOs) over several frames.
+ * Meshes are registered when they are added to the scene, and the GL
+ * thread uploads registered meshes each frame until a byte or time budget
+ * is spent, so that a new model or a lost GL context does not stall one
+ * frame with every upload at once. Meshes are drawn from their client
+ * side arrays until their upload is done.<br><br>
+ * The scheduler also keeps track of the meshes it has created hardware
+ * buffers for, to forget them when the GL context is lost (after which
+ * they are uploaded again, within the budget) and to free them on
+ * shutdown.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class UploadScheduler {
+	// meshes registered by the game thread
+	private final ConcurrentLinkedQueue<TriMesh> pending = new ConcurrentLinkedQueue<TriMesh>();
+	private volatile boolean enabled = true;
+	// owned by the GL thread
+	private final ArrayList<TriMesh> buffered = new ArrayList<TriMesh>();
+	private final int byteBudget;
+	private final long nanoBudget;
+	private long uploadedBytes = 0;
+	private int uploadedMeshes = 0;
+
+	/**
+	 * Creates a scheduler. At least one mesh is uploaded each frame,
+	 * whatever its size.
+	 * @param byteBudget number of bytes to upload per frame
+	 * @param nanoBudget time to spend on uploads per frame, in nanoseconds
+	 */
+	public UploadScheduler(int byteBudget, long nanoBudget) {
+		this.byteBudget = byteBudget;
+		this.nanoBudget = nanoBudget;
+	}
+
+	/**
+	 * Enables or disables hardware buffers. Meshes registered while
+	 * disabled are ignored. Enabled by default.
+	 * @param value true to create hardware buffers
+	 */
+	public void setEnabled(boolean value) {
+		enabled = value;
+	}
+
+	/**
+	 * Registers a mesh, or every mesh under a node, to get hardware
+	 * buffers. Meshes that already have buffers are skipped when their
+	 * turn comes. Called from the game thread when spatials are added to
+	 * the scene.
+	 * @param spatial mesh or node to register
+	 */
+	public void register(Spatial spatial) {
+		if(!enabled) {
+			return;
+		}
+		if(spatial instanceof Node) {
+			ArrayList<Spatial> children = ((Node) spatial).getChildren();
+			int len = children.size();
+			for(int i = 0; i < len; i++) {
+				register(children.get(i));
+			}
+		} else if(spatial instanceof TriMesh) {
+			pending.add((TriMesh) spatial);
+		}
+	}
+
+	/**
+	 * Creates hardware buffers for registered meshes, in the order they
+	 * were registered, until the budget of this frame is spent. A context
+	 * without hardware buffers (not GL11) drops the registered meshes
+	 * instead, they are drawn from their client side arrays. Called
+	 * from the GL thread before the frame is drawn.
+	 * @param gl the GL context
+	 * @return number of meshes that got hardware buffers
+	 */
+	public int upload(GL10 gl) {
+		if(!(gl instanceof GL11)) {
+			pending.clear();
+			return 0;
+		}
+		long start = System.nanoTime();
+		int bytes = 0;
+		int meshes = 0;
+		TriMesh mesh;
+		while((mesh = pending.poll()) != null) {
+			if(mesh.hasHardwareBuffers() || mesh.released) {
+				continue;
+			}
+			bytes += mesh.getUploadSize();
+			mesh.generateHardwareBuffers(gl);
+			if(mesh.hasHardwareBuffers()) {
+				buffered.add(mesh);
+				meshes++;
+			}
+			if(bytes >= byteBudget || System.nanoTime() - start >= nanoBudget) {
+				break;
+			}
+		}
+		uploadedBytes += bytes;
+		uploadedMeshes += meshes;
+		return meshes;
+	}
+
+	/**
+	 * @return true if there are registered meshes left to upload
+	 */
+	public boolean isPending() {
+		return !pending.isEmpty();
+	}
+
+	/**
+	 * Forgets the hardware buffers of every mesh that has them and
+	 * registers the meshes again. Called from the GL thread when the GL
+	 * context has been lost, since the buffers went with it.
+	 */
+	public void forgetHardwareBuffers() {
+		int len = buffered.size();
+		TriMesh mesh;
+		for(int i = 0; i < len; i++) {
+			mesh = buffered.get(i);
+			mesh.forgetHardwareBuffers();
+			pending.add(mesh);
+		}
+		buffered.clear();
+	}
+
+	/**
+	 * Drops the registered meshes that have not been uploaded. Called
+	 * from the GL thread.
+	 */
+	public void clearPending() {
+		pending.clear();
+	}
+
+	/**
+	 * Frees the hardware buffers of every mesh that has them. Called from
+	 * the GL thread before the GL context is destroyed.
+	 * @param gl the GL context
+	 */
+	public void freeHardwareBuffers(GL10 gl) {
+		int len = buffered.size();
+		for(int i = 0; i < len; i++) {
+			buffered.get(i).freeHardwareBuffers(gl);
+		}
+		buffered.clear();
+		pending.clear();
+	}
+
+	/**
+	 * Stops tracking meshes whose hardware buffers have been freed
+	 * elsewhere, like clones released to a <code>MeshCache</code>. Called
+	 * from the GL thread.
+	 */
+	public void removeFreed() {
+		for(int i = buffered.size() - 1; i >= 0; i--) {
+			if(!buffered.get(i).hasHardwareBuffers()) {
+				buffered.remove(i);
+			}
+		}
+	}
+
+	/**
+	 * @return number of meshes with hardware buffers
+	 */
+	public int getBuffered() {
+		return buffered.size();
+	}
+
+	/**
+	 * @return number of bytes uploaded in total
+	 */
+	public long getUploadedBytes() {
+		return uploadedBytes;
+	}
+
+	/**
+	 * @return number of meshes that have got hardware buffers in total
+	 */
+	public int getUploadedMeshes() {
+		return uploadedMeshes;
+	}
+}
@@ -188,11 +188,9 @@ public class KeyFrameAnimation {
 					* frameRatio;
 			tmpTrans[2] = curTrans[2] + (nextTrans[2] - curTrans[2])
 					* frameRatio;
-			synchronized (caller) {
-				caller.setLocalTranslation(tmpTrans);
-				caller.updateTransform();
-				caller.updateWorldBound(false);
-			}
+			// the world transformation and bound are updated by the
+			// next updateGeometricState on the scene
+			caller.setLocalTranslation(tmpTrans);
 		}
 	}
 
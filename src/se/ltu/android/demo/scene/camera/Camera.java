@@ -1,12 +1,15 @@
 /* SVN FILE: $Id$ */
 package se.ltu.android.demo.scene.camera;
 
+import se.ltu.android.demo.scene.intersection.PickContext;
 import se.ltu.android.demo.scene.intersection.Ray;
 import android.opengl.Matrix;
 
 /**
  * A class representing a camera. It's an abstract representation of
- * anything needed to create an OpenGL view.
+ * anything needed to create an OpenGL view.<br>
+ * A camera is only used from the game thread. The renderer gets the
+ * model view matrix as a copy in each published render queue.
  * @author Åke Svedin <ake.svedin@gmail.com>
  * @version $Revision$
  * @lastmodified $Date$
@@ -99,10 +102,8 @@ public class Camera {
 	 * @param m the model-view matrix to set
 	 */
 	public void setModelM(float[] m) {
-		synchronized(model) {
-			for(int i = 0; i < 16; i++) {
-				model[i] = m[i];
-			}
+		for(int i = 0; i < 16; i++) {
+			model[i] = m[i];
 		}
 	}
 	
@@ -113,21 +114,17 @@ public class Camera {
 	 * @param rotM rotation matrix to set
 	 */
 	public void setRotationM(float[] rotM) {
-		synchronized(model) {
-			for(int i = 0; i < 16; i++) {
-				model[i] = rotM[i];
-			}
-			Matrix.translateM(model, 0, -position[0], -position[1], -position[2]);
+		for(int i = 0; i < 16; i++) {
+			model[i] = rotM[i];
 		}
+		Matrix.translateM(model, 0, -position[0], -position[1], -position[2]);
 	}
 	
 	/**
 	 * @return the model view matrix
 	 */
 	public float[] getModelM() {
-		synchronized(model) {
-			return model;
-		}
+		return model;
 	}
 	
 	/**
@@ -203,31 +200,29 @@ public class Camera {
     		y[2] *= mag;
     	}
 
-    	synchronized(model) {
-	    	model[0] = x[0];
-	    	model[4] = x[1];
-	    	model[8] = x[2];
-	    	model[12] = 0.0f;
-	    	model[1] = y[0];
-	    	model[5] = y[1];
-	    	model[9] = y[2];
-	    	model[13] = 0.0f;
-	    	model[2] = z[0];
-	    	model[6] = z[1];
-	    	model[10] = z[2];
-	    	model[14] = 0.0f;
-	    	model[3] = 0.0f;
-	    	model[7] = 0.0f;
-	    	model[11] = 0.0f;
-	    	model[15] = 1.0f;
-	    	
-	    	//Matrix.multiplyMM(model, 0, m, 0, model, 0);
-	    	// Translate Eye to Origin 
-	    	position[0] = eyex;
-	    	position[1] = eyey;
-	    	position[2] = eyez;
-	    	Matrix.translateM(model, 0, -position[0], -position[1], -position[2]);
-    	}
+    	model[0] = x[0];
+    	model[4] = x[1];
+    	model[8] = x[2];
+    	model[12] = 0.0f;
+    	model[1] = y[0];
+    	model[5] = y[1];
+    	model[9] = y[2];
+    	model[13] = 0.0f;
+    	model[2] = z[0];
+    	model[6] = z[1];
+    	model[10] = z[2];
+    	model[14] = 0.0f;
+    	model[3] = 0.0f;
+    	model[7] = 0.0f;
+    	model[11] = 0.0f;
+    	model[15] = 1.0f;
+    	
+    	//Matrix.multiplyMM(model, 0, m, 0, model, 0);
+    	// Translate Eye to Origin 
+    	position[0] = eyex;
+    	position[1] = eyey;
+    	position[2] = eyez;
+    	Matrix.translateM(model, 0, -position[0], -position[1], -position[2]);
     }
 
 	/**
@@ -237,12 +232,10 @@ public class Camera {
 	 * @param z translation z coordinate
 	 */
 	public void translate(float x, float y, float z) {
-		synchronized(model) {
-			position[0] -= x;
-			position[1] -= y;
-			position[2] -= z;
-			Matrix.translateM(model, 0, -x, -y, -z);
-		}
+		position[0] -= x;
+		position[1] -= y;
+		position[2] -= z;
+		Matrix.translateM(model, 0, -x, -y, -z);
 	}
 	
 	/**
@@ -253,12 +246,10 @@ public class Camera {
 		if(vector3f == null || vector3f.length != 3) {
 			return;
 		}
-		synchronized(model) {
-			position[0] -= vector3f[0];
-			position[1] -= vector3f[1];
-			position[2] -= vector3f[2];
-			Matrix.translateM(model, 0, -vector3f[0], -vector3f[1], -vector3f[2]);
-		}
+		position[0] -= vector3f[0];
+		position[1] -= vector3f[1];
+		position[2] -= vector3f[2];
+		Matrix.translateM(model, 0, -vector3f[0], -vector3f[1], -vector3f[2]);
 	}
 	
 	/**
@@ -272,12 +263,10 @@ public class Camera {
 	 * Set the cameras model view matrix to the identity matrix
 	 */
 	public void setIdentity() {
-		synchronized(model) {
-			Matrix.setIdentityM(model, 0);
-			position[0] = 0;
-			position[1] = 0;
-			position[2] = 0;
-		}
+		Matrix.setIdentityM(model, 0);
+		position[0] = 0;
+		position[1] = 0;
+		position[2] = 0;
 	}
 	
 	/**
@@ -287,15 +276,13 @@ public class Camera {
 	 * @param z z coordinate
 	 */
 	public void setPosition(float x, float y, float z) {
-		synchronized(model) {
-			// revert last position
-			Matrix.translateM(model, 0, position[0], position[1], position[2]);
-			// set new position
-			position[0] = x;
-	    	position[1] = y;
-	    	position[2] = z;
-	    	Matrix.translateM(model, 0, -position[0], -position[1], -position[2]);
-		}
+		// revert last position
+		Matrix.translateM(model, 0, position[0], position[1], position[2]);
+		// set new position
+		position[0] = x;
+    	position[1] = y;
+    	position[2] = z;
+    	Matrix.translateM(model, 0, -position[0], -position[1], -position[2]);
 	}
 	
 	/**
@@ -306,26 +293,46 @@ public class Camera {
 	 * corner of the screen and the y-axis is reversed compared to the OpenGL y-axis. 
 	 * @param pickX screen x coordinate
 	 * @param pickY screen y coordinate
+	 * @return a new ray, see <code>calculatePickRay(float, float, PickContext)</code>
+	 * for a version that does not allocate
 	 */
     public Ray calculatePickRay(float pickX, float pickY) {
+    	return calculatePickRay(pickX, pickY, new PickContext());
+    }
+    
+	/**
+	 * Calculates a pick ray like <code>calculatePickRay(float, float)</code>
+	 * but stores it in the ray of a pick context, without allocating.
+	 * @param pickX screen x coordinate
+	 * @param pickY screen y coordinate
+	 * @param context context holding the ray to set
+	 * @return the ray of the context
+	 */
+    public Ray calculatePickRay(float pickX, float pickY, PickContext context) {
     	// coordinates centered on the screen
     	// -1 <= x <= 1 and -1 <= y <= 1
     	float unit_x = (pickX - half_width)/half_width;
     	float unit_y = ((height - pickY) - half_height)/half_height;
 		
-		float[] rayRawPos = {0.0f, 0.0f, 0.0f, 1.0f};
-		float[] rayRawDir = {unit_x * near_height * aspect, unit_y * near_height, -zNear, 0.0f};
-		float[] rayPos = new float[4];
-		float[] rayDir = new float[4];
+    	// raw position at 0, raw direction at 4, results at 8 and 12
+		float[] v = context.getScratch();
+		v[0] = 0.0f;
+		v[1] = 0.0f;
+		v[2] = 0.0f;
+		v[3] = 1.0f;
+		v[4] = unit_x * near_height * aspect;
+		v[5] = unit_y * near_height;
+		v[6] = -zNear;
+		v[7] = 0.0f;
 		
 		// multiply the position and vector with the inverse model matrix
 		// to get world coordinates
-		synchronized(model) {
-			Matrix.invertM(invModel, 0, model, 0);
-		}
-		Matrix.multiplyMV(rayPos, 0, invModel, 0, rayRawPos, 0);
-		Matrix.multiplyMV(rayDir, 0, invModel, 0, rayRawDir, 0);
+		Matrix.invertM(invModel, 0, model, 0);
+		Matrix.multiplyMV(v, 8, invModel, 0, v, 0);
+		Matrix.multiplyMV(v, 12, invModel, 0, v, 4);
 
-		return new Ray(rayPos[0], rayPos[1], rayPos[2], rayDir[0], rayDir[1], rayDir[2]);
+		Ray ray = context.getRay();
+		ray.set(v[8], v[9], v[10], v[12], v[13], v[14]);
+		return ray;
 	}
 }
@@ -80,8 +80,8 @@ public class AABBox {
 		for (col = 0; col < 3; col++) {
 			for (row = 0; row < 3; row++)
 			{
-				av = matrix[row+col*4] * oldMin[row];
-				bv = matrix[row+col*4] * oldMax[row];
+				av = matrix[col+row*4] * oldMin[row];
+				bv = matrix[col+row*4] * oldMax[row];
 				if (av < bv)
 				{
 					newMin[col] += av;
@@ -0,0 +1,423 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene.intersection;
+
+import java.util.ArrayList;
+
+import se.ltu.android.demo.scene.LodNode;
+import se.ltu.android.demo.scene.Node;
+import se.ltu.android.demo.scene.Spatial;
+
+/**
+ * A bounding volume hierarchy over the world bounds of the pickable
+ * spatials in a scene, used to find the spatials a pick ray might hit
+ * without testing every spatial. The tree is built with a binned surface
+ * area heuristic and stored in flat arrays.<br>
+ * When spatials move, <code>refit</code> updates the bounds of the
+ * affected branches without rebuilding the tree. Call <code>build</code>
+ * again when spatials are attached to or detached from the scene.<br>
+ * Each spatial reached by a ray is asked to test itself with
+ * <code>calculatePick</code>, so meshes with exact picking are still
+ * tested against their triangles.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class BVHTree {
+	private final static int BINS = 8;
+	private final static int MAX_LEAF_SIZE = 4;
+
+	private Spatial[] items = new Spatial[0];
+	private int itemCount;
+	// world bound of each item when last built or refitted, 6 floats each
+	private float[] itemBounds = new float[0];
+	private float[] centers = new float[0];
+	// items in leaf order, leaves hold ranges of this array
+	private int[] leafItems = new int[0];
+	// the leaf holding each item
+	private int[] leafOf = new int[0];
+
+	// bound of each node, 6 floats each
+	private float[] bounds = new float[0];
+	// leaf: first position in leafItems, inner node: index of left child
+	// (the right child follows it)
+	private int[] firsts = new int[0];
+	// leaf: number of items, inner node: 0
+	private int[] counts = new int[0];
+	private int[] parents = new int[0];
+	private int nodeCount;
+
+	// build scratch data
+	private int[] binCounts = new int[BINS];
+	private float[] binBounds = new float[BINS * 6];
+	private float[] areaRight = new float[BINS];
+	private float[] sweep = new float[6];
+	private float[] oldBound = new float[6];
+
+	// traversal scratch data
+	private int[] stack = new int[64];
+	private float[] stackDist = new float[64];
+	private AABBox box = new AABBox();
+	private float[] distance = new float[1];
+
+	/**
+	 * Builds the tree over the pickable spatials of a scene. Nodes
+	 * themselves are not added, but their pickable descendants are, as
+	 * long as all the nodes on the way are pickable.
+	 * @param root root of the scene
+	 */
+	public void build(Spatial root) {
+		ArrayList<Spatial> spatials = new ArrayList<Spatial>();
+		collectPickable(root, spatials);
+		build(spatials);
+	}
+
+	/**
+	 * Builds the tree over a list of spatials. The world bounds of the
+	 * spatials should be up to date.
+	 * @param spatials spatials to add
+	 */
+	public void build(ArrayList<Spatial> spatials) {
+		itemCount = spatials.size();
+		if(items.length < itemCount) {
+			items = new Spatial[itemCount];
+			itemBounds = new float[itemCount * 6];
+			centers = new float[itemCount * 3];
+			leafItems = new int[itemCount];
+			leafOf = new int[itemCount];
+			int maxNodes = Math.max(itemCount * 2 - 1, 1);
+			bounds = new float[maxNodes * 6];
+			firsts = new int[maxNodes];
+			counts = new int[maxNodes];
+			parents = new int[maxNodes];
+		}
+		for(int i = 0; i < items.length; i++) {
+			items[i] = i < itemCount ? spatials.get(i) : null;
+		}
+		for(int i = 0; i < itemCount; i++) {
+			copyBound(items[i].getWorldBound(), i);
+			centers[i*3] = (itemBounds[i*6] + itemBounds[i*6+3]) * 0.5f;
+			centers[i*3+1] = (itemBounds[i*6+1] + itemBounds[i*6+4]) * 0.5f;
+			centers[i*3+2] = (itemBounds[i*6+2] + itemBounds[i*6+5]) * 0.5f;
+			leafItems[i] = i;
+		}
+		nodeCount = 0;
+		if(itemCount == 0) {
+			return;
+		}
+		nodeCount = 1;
+		parents[0] = -1;
+		int depth = buildNode(0, 0, itemCount, 1);
+		if(stack.length < depth * 2) {
+			stack = new int[depth * 2];
+			stackDist = new float[depth * 2];
+		}
+	}
+
+	/**
+	 * Updates the bounds of the tree after spatials have moved. Only the
+	 * branches holding spatials whose world bound changed are refitted,
+	 * and a branch is only refitted up to the first node whose bound did
+	 * not change.
+	 * @return number of spatials whose bound had changed
+	 */
+	public int refit() {
+		int changed = 0;
+		for(int i = 0; i < itemCount; i++) {
+			if(!sameBound(items[i].getWorldBound(), i)) {
+				copyBound(items[i].getWorldBound(), i);
+				refitUp(leafOf[i]);
+				changed++;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Finds the spatials hit by a ray and adds them to the result.
+	 * Branches further away than the closest hit found so far are skipped.
+	 * @param ray ray to test against
+	 * @param result contains the results when the method returns
+	 */
+	public void calculatePick(Ray ray, PickResult result) {
+		if(nodeCount == 0 || !intersects(ray, 0)) {
+			return;
+		}
+		int sp = 0;
+		stack[sp] = 0;
+		stackDist[sp++] = distance[0];
+		int node, left;
+		float distLeft, distRight;
+		boolean hitLeft, hitRight;
+		while(sp > 0) {
+			node = stack[--sp];
+			if(result.hasResult() && stackDist[sp] > result.getDistance()) {
+				continue;
+			}
+			if(counts[node] > 0) {
+				int end = firsts[node] + counts[node];
+				for(int i = firsts[node]; i < end; i++) {
+					items[leafItems[i]].calculatePick(ray, result);
+				}
+				continue;
+			}
+			left = firsts[node];
+			hitLeft = intersects(ray, left);
+			distLeft = distance[0];
+			hitRight = intersects(ray, left + 1);
+			distRight = distance[0];
+			// push the nearer child last so it is visited first
+			if(hitLeft && hitRight && distLeft < distRight) {
+				stack[sp] = left + 1;
+				stackDist[sp++] = distRight;
+				stack[sp] = left;
+				stackDist[sp++] = distLeft;
+			} else {
+				if(hitLeft) {
+					stack[sp] = left;
+					stackDist[sp++] = distLeft;
+				}
+				if(hitRight) {
+					stack[sp] = left + 1;
+					stackDist[sp++] = distRight;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return number of spatials in the tree
+	 */
+	public int size() {
+		return itemCount;
+	}
+
+	/**
+	 * @return number of nodes in the tree
+	 */
+	public int getNodeCount() {
+		return nodeCount;
+	}
+
+	/**
+	 * Adds the pickable spatials below a spatial to a list, see
+	 * <code>build(Spatial)</code>.
+	 * @param spatial spatial to start from
+	 * @param store list to add the spatials to
+	 */
+	public static void collectPickable(Spatial spatial, ArrayList<Spatial> store) {
+		if(!spatial.isPickable()) {
+			return;
+		}
+		// the levels of a LodNode are picked through the node
+		if(spatial instanceof Node && !(spatial instanceof LodNode)) {
+			ArrayList<Spatial> children = ((Node) spatial).getChildren();
+			int len = children.size();
+			for(int i = 0; i < len; i++) {
+				collectPickable(children.get(i), store);
+			}
+			return;
+		}
+		store.add(spatial);
+	}
+
+	// builds the subtree of node over leafItems[start..end), returns its depth
+	private int buildNode(int node, int start, int end, int depth) {
+		int n = node * 6;
+		float cminX = Float.POSITIVE_INFINITY, cminY = cminX, cminZ = cminX;
+		float cmaxX = Float.NEGATIVE_INFINITY, cmaxY = cmaxX, cmaxZ = cmaxX;
+		resetBound(bounds, n);
+		int item;
+		for(int i = start; i < end; i++) {
+			item = leafItems[i];
+			include(bounds, n, itemBounds, item * 6);
+			cminX = Math.min(cminX, centers[item*3]);
+			cminY = Math.min(cminY, centers[item*3+1]);
+			cminZ = Math.min(cminZ, centers[item*3+2]);
+			cmaxX = Math.max(cmaxX, centers[item*3]);
+			cmaxY = Math.max(cmaxY, centers[item*3+1]);
+			cmaxZ = Math.max(cmaxZ, centers[item*3+2]);
+		}
+
+		int count = end - start;
+		// split along the axis where the centers are spread the most
+		int axis = 0;
+		float min = cminX;
+		float extent = cmaxX - cminX;
+		if(cmaxY - cminY > extent) {
+			axis = 1;
+			min = cminY;
+			extent = cmaxY - cminY;
+		}
+		if(cmaxZ - cminZ > extent) {
+			axis = 2;
+			min = cminZ;
+			extent = cmaxZ - cminZ;
+		}
+		if(count <= MAX_LEAF_SIZE || extent <= 0) {
+			makeLeaf(node, start, count);
+			return depth;
+		}
+
+		// bin the items by center
+		float scale = BINS / extent;
+		for(int b = 0; b < BINS; b++) {
+			binCounts[b] = 0;
+			resetBound(binBounds, b * 6);
+		}
+		for(int i = start; i < end; i++) {
+			item = leafItems[i];
+			int b = bin(centers[item*3+axis], min, scale);
+			binCounts[b]++;
+			include(binBounds, b * 6, itemBounds, item * 6);
+		}
+
+		// sweep from the right to get the areas right of each split,
+		// then from the left to find the cheapest split
+		resetBound(sweep, 0);
+		for(int b = BINS - 1; b > 0; b--) {
+			include(sweep, 0, binBounds, b * 6);
+			areaRight[b] = area(sweep, 0);
+		}
+		resetBound(sweep, 0);
+		int countLeft = 0;
+		int split = -1;
+		float bestCost = Float.POSITIVE_INFINITY;
+		float cost;
+		for(int b = 0; b < BINS - 1; b++) {
+			include(sweep, 0, binBounds, b * 6);
+			countLeft += binCounts[b];
+			if(countLeft == 0 || countLeft == count) {
+				continue;
+			}
+			cost = area(sweep, 0) * countLeft + areaRight[b+1] * (count - countLeft);
+			if(cost < bestCost) {
+				bestCost = cost;
+				split = b;
+			}
+		}
+
+		// partition the items, left of the split first
+		int mid = start;
+		if(split >= 0) {
+			int tmp;
+			for(int i = start; i < end; i++) {
+				if(bin(centers[leafItems[i]*3+axis], min, scale) <= split) {
+					tmp = leafItems[i];
+					leafItems[i] = leafItems[mid];
+					leafItems[mid++] = tmp;
+				}
+			}
+		}
+		if(mid == start || mid == end) {
+			// all centers in one bin, any split is as good as another
+			mid = start + count / 2;
+		}
+
+		int left = nodeCount;
+		nodeCount += 2;
+		firsts[node] = left;
+		counts[node] = 0;
+		parents[left] = node;
+		parents[left+1] = node;
+		int depthLeft = buildNode(left, start, mid, depth + 1);
+		int depthRight = buildNode(left + 1, mid, end, depth + 1);
+		return Math.max(depthLeft, depthRight);
+	}
+
+	private void makeLeaf(int node, int start, int count) {
+		firsts[node] = start;
+		counts[node] = count;
+		for(int i = start; i < start + count; i++) {
+			leafOf[leafItems[i]] = node;
+		}
+	}
+
+	// recomputes the bound of a node and its parents until one is unchanged
+	private void refitUp(int node) {
+		float[] old = oldBound;
+		while(node >= 0) {
+			int n = node * 6;
+			System.arraycopy(bounds, n, old, 0, 6);
+			resetBound(bounds, n);
+			if(counts[node] > 0) {
+				int end = firsts[node] + counts[node];
+				for(int i = firsts[node]; i < end; i++) {
+					include(bounds, n, itemBounds, leafItems[i] * 6);
+				}
+			} else {
+				include(bounds, n, bounds, firsts[node] * 6);
+				include(bounds, n, bounds, (firsts[node] + 1) * 6);
+			}
+			boolean same = true;
+			for(int i = 0; i < 6; i++) {
+				if(bounds[n+i] != old[i]) {
+					same = false;
+					break;
+				}
+			}
+			if(same) {
+				return;
+			}
+			node = parents[node];
+		}
+	}
+
+	// tests the ray against the bound of a node, the distance ends up in distance[0]
+	private boolean intersects(Ray ray, int node) {
+		int n = node * 6;
+		box.minX = bounds[n];
+		box.minY = bounds[n+1];
+		box.minZ = bounds[n+2];
+		box.maxX = bounds[n+3];
+		box.maxY = bounds[n+4];
+		box.maxZ = bounds[n+5];
+		return ray.intersects(box, distance);
+	}
+
+	private static int bin(float center, float min, float scale) {
+		int b = (int) ((center - min) * scale);
+		return b < BINS ? b : BINS - 1;
+	}
+
+	private void copyBound(AABBox bound, int item) {
+		int i = item * 6;
+		itemBounds[i] = bound.minX;
+		itemBounds[i+1] = bound.minY;
+		itemBounds[i+2] = bound.minZ;
+		itemBounds[i+3] = bound.maxX;
+		itemBounds[i+4] = bound.maxY;
+		itemBounds[i+5] = bound.maxZ;
+	}
+
+	private boolean sameBound(AABBox bound, int item) {
+		int i = item * 6;
+		return itemBounds[i] == bound.minX && itemBounds[i+1] == bound.minY
+			&& itemBounds[i+2] == bound.minZ && itemBounds[i+3] == bound.maxX
+			&& itemBounds[i+4] == bound.maxY && itemBounds[i+5] == bound.maxZ;
+	}
+
+	private static void resetBound(float[] b, int o) {
+		b[o] = b[o+1] = b[o+2] = Float.POSITIVE_INFINITY;
+		b[o+3] = b[o+4] = b[o+5] = Float.NEGATIVE_INFINITY;
+	}
+
+	private static void include(float[] b, int o, float[] src, int s) {
+		if(src[s] < b[o]) b[o] = src[s];
+		if(src[s+1] < b[o+1]) b[o+1] = src[s+1];
+		if(src[s+2] < b[o+2]) b[o+2] = src[s+2];
+		if(src[s+3] > b[o+3]) b[o+3] = src[s+3];
+		if(src[s+4] > b[o+4]) b[o+4] = src[s+4];
+		if(src[s+5] > b[o+5]) b[o+5] = src[s+5];
+	}
+
+	// half the surface area of a bound, zero for an empty bound
+	private static float area(float[] b, int o) {
+		float dx = b[o+3] - b[o];
+		float dy = b[o+4] - b[o+1];
+		float dz = b[o+5] - b[o+2];
+		if(dx < 0 || dy < 0 || dz < 0) {
+			return 0;
+		}
+		return dx * dy + dy * dz + dz * dx;
+	}
+}
@@ -0,0 +1,100 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene.intersection;
+
+import android.opengl.Matrix;
+
+/**
+ * A view frustum defined by six planes in world coordinates. The planes
+ * are extracted from the combined projection and camera (model view)
+ * matrix and point inwards, so a point is inside the frustum if it is on
+ * the positive side of all planes.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class Frustum {
+	public final static int OUTSIDE = 0;
+	public final static int INTERSECTS = 1;
+	public final static int INSIDE = 2;
+
+	// a, b, c and d for each plane: left, right, bottom, top, near, far
+	private float[] planes = new float[24];
+	private float[] clipM = new float[16];
+
+	/**
+	 * Sets the planes of this frustum.
+	 * @param projM column-major projection matrix
+	 * @param modelM column-major model view matrix of the camera
+	 */
+	public void set(float[] projM, float[] modelM) {
+		Matrix.multiplyMM(clipM, 0, projM, 0, modelM, 0);
+		// each plane is the fourth row of the matrix plus or minus one
+		// of the other rows (a row is every fourth element)
+		for(int i = 0; i < 3; i++) {
+			setPlane(i*2, i, 1);
+			setPlane(i*2+1, i, -1);
+		}
+	}
+
+	/**
+	 * Tests a bounding box against this frustum. A box that is not set
+	 * is always considered to intersect.
+	 * @param box box to test
+	 * @return OUTSIDE, INTERSECTS or INSIDE
+	 */
+	public int test(AABBox box) {
+		if(!box.isSet()) {
+			return INTERSECTS;
+		}
+		int result = INSIDE;
+		float a, b, c, d;
+		for(int p = 0; p < 24; p += 4) {
+			a = planes[p];
+			b = planes[p+1];
+			c = planes[p+2];
+			d = planes[p+3];
+			// the corner furthest along the plane normal
+			if(a * (a > 0 ? box.maxX : box.minX)
+					+ b * (b > 0 ? box.maxY : box.minY)
+					+ c * (c > 0 ? box.maxZ : box.minZ) + d < 0) {
+				return OUTSIDE;
+			}
+			// the corner furthest against the plane normal
+			if(a * (a > 0 ? box.minX : box.maxX)
+					+ b * (b > 0 ? box.minY : box.maxY)
+					+ c * (c > 0 ? box.minZ : box.maxZ) + d < 0) {
+				result = INTERSECTS;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param box box to test
+	 * @return true if the box is completely outside this frustum
+	 */
+	public boolean isOutside(AABBox box) {
+		return test(box) == OUTSIDE;
+	}
+
+	// plane = row 3 + sign * row
+	private void setPlane(int plane, int row, float sign) {
+		int p = plane * 4;
+		float a = clipM[3] + sign * clipM[row];
+		float b = clipM[7] + sign * clipM[row+4];
+		float c = clipM[11] + sign * clipM[row+8];
+		float d = clipM[15] + sign * clipM[row+12];
+		float len = Matrix.length(a, b, c);
+		if(len > 0) {
+			len = 1 / len;
+			a *= len;
+			b *= len;
+			c *= len;
+			d *= len;
+		}
+		planes[p] = a;
+		planes[p+1] = b;
+		planes[p+2] = c;
+		planes[p+3] = d;
+	}
+}
@@ -0,0 +1,47 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.scene.intersection;
+
+/**
+ * Everything needed to pick in a scene, kept between picks so that
+ * picking does not allocate. Owned by the thread that picks, normally the
+ * game thread. Fill the ray with <code>Camera.calculatePickRay</code>, 
+ * call <code>reset</code> and pass the ray and the result to 
+ * <code>calculatePick</code> of a scene or a <code>BVHTree</code>.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class PickContext {
+	private final Ray ray = new Ray(0, 0, 0, 0, 0, -1);
+	private final PickResult result = new PickResult();
+	private final float[] scratch = new float[16];
+
+	/**
+	 * Clears the result of the previous pick
+	 */
+	public void reset() {
+		result.clear();
+	}
+
+	/**
+	 * @return the pick ray, changed in place by each pick
+	 */
+	public Ray getRay() {
+		return ray;
+	}
+
+	/**
+	 * @return the result of the last pick
+	 */
+	public PickResult getResult() {
+		return result;
+	}
+
+	/**
+	 * @return 16 floats of scratch space for building the pick ray, the
+	 * content is undefined between calls
+	 */
+	public float[] getScratch() {
+		return scratch;
+	}
+}
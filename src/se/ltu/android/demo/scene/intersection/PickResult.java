@@ -27,6 +27,14 @@ public class PickResult {
 		}
 	}
 	
+	/**
+	 * Removes all results, so the instance can be used for a new pick
+	 */
+	public void clear() {
+		spat = null;
+		dist = 0;
+	}
+	
 	/**
 	 * @return the closest spatial
 	 */
@@ -34,6 +42,14 @@ public class PickResult {
 		return spat;
 	}
 	
+	/**
+	 * @return distance to the closest spatial, only valid if there is
+	 * a result
+	 */
+	public float getDistance() {
+		return dist;
+	}
+	
 	/**
 	 * @return true if there is at least one result
 	 */
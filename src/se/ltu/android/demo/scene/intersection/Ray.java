@@ -12,6 +12,7 @@ public class Ray {
 	private float i, j, k;		// ray direction	
 	private float ii, ij, ik;	// inverses of direction components
 	private boolean sgn_ii, sgn_ij, sgn_ik;
+	private final static float EPSILON = 1e-9f;
 	
 	/**
 	 * Constructs a new ray
@@ -23,6 +24,19 @@ public class Ray {
 	 * @param k direction z-coordinate
 	 */
 	public Ray(float x, float y, float z, float i, float j, float k) {
+		set(x, y, z, i, j, k);
+	} // public Ray(float x, float y, float z, float i, float j, float k)
+	
+	/**
+	 * Sets the origin and direction of this ray
+	 * @param x origin x-coordinate
+	 * @param y origin y-coordinate
+	 * @param z origin z-coordinate
+	 * @param i direction x-coordinate
+	 * @param j direction y-coordinate
+	 * @param k direction z-coordinate
+	 */
+	public void set(float x, float y, float z, float i, float j, float k) {
 		this.x = x;
 		this.y = y;
 		this.z = z;
@@ -37,7 +51,80 @@ public class Ray {
 		this.sgn_ii = (ii >= 0);
 		this.sgn_ij = (ij >= 0);
 		this.sgn_ik = (ik >= 0);
-	} // public Ray(float x, float y, float z, float i, float j, float k)
+	}
+	
+	/**
+	 * Transforms this ray by a matrix and stores the result in another
+	 * ray. Distances along the transformed ray are the same as along this
+	 * ray, since the direction is transformed without normalizing it.
+	 * @param m column-major transformation matrix
+	 * @param offset index of the first element of the matrix in m
+	 * @param store ray to store the result in, may be this ray
+	 */
+	public void transform(float[] m, int offset, Ray store) {
+		int o = offset;
+		store.set(m[o]*x + m[o+4]*y + m[o+8]*z + m[o+12],
+				m[o+1]*x + m[o+5]*y + m[o+9]*z + m[o+13],
+				m[o+2]*x + m[o+6]*y + m[o+10]*z + m[o+14],
+				m[o]*i + m[o+4]*j + m[o+8]*k,
+				m[o+1]*i + m[o+5]*j + m[o+9]*k,
+				m[o+2]*i + m[o+6]*j + m[o+10]*k);
+	}
+	
+	/**
+	 * Calculates whether or not the ray intersects a triangle, from either
+	 * side, using the M&ouml;ller-Trumbore algorithm.
+	 * @param ax x-coordinate of the first corner
+	 * @param ay y-coordinate of the first corner
+	 * @param az z-coordinate of the first corner
+	 * @param bx x-coordinate of the second corner
+	 * @param by y-coordinate of the second corner
+	 * @param bz z-coordinate of the second corner
+	 * @param cx x-coordinate of the third corner
+	 * @param cy y-coordinate of the third corner
+	 * @param cz z-coordinate of the third corner
+	 * @param distance the resulting distance from the origin of this ray to the 
+	 * intersection point, in units of the ray direction. Only valid if this
+	 * method returns true.
+	 * @return true if this ray intersects the triangle in front of its origin
+	 */
+	public boolean intersects(float ax, float ay, float az, float bx, float by, float bz,
+			float cx, float cy, float cz, float[] distance) {
+		// edges from the first corner
+		float e1x = bx - ax, e1y = by - ay, e1z = bz - az;
+		float e2x = cx - ax, e2y = cy - ay, e2z = cz - az;
+		// p = direction x e2
+		float px = j * e2z - k * e2y;
+		float py = k * e2x - i * e2z;
+		float pz = i * e2y - j * e2x;
+		float det = e1x * px + e1y * py + e1z * pz;
+		if(det > -EPSILON && det < EPSILON) {
+			// parallel to the triangle, or a degenerate triangle
+			return false;
+		}
+		float inv = 1.0f / det;
+		float tx = x - ax, ty = y - ay, tz = z - az;
+		float u = (tx * px + ty * py + tz * pz) * inv;
+		if(u < 0 || u > 1) {
+			return false;
+		}
+		// q = t x e1
+		float qx = ty * e1z - tz * e1y;
+		float qy = tz * e1x - tx * e1z;
+		float qz = tx * e1y - ty * e1x;
+		float v = (i * qx + j * qy + k * qz) * inv;
+		if(v < 0 || u + v > 1) {
+			return false;
+		}
+		float t = (e2x * qx + e2y * qy + e2z * qz) * inv;
+		if(t < 0) {
+			return false;
+		}
+		if(distance != null && distance.length > 0) {
+			distance[0] = t;
+		}
+		return true;
+	}
 	
 	/**
 	 * Calculates whether or not the ray intersects an axis-aligned bounding box.
@@ -31,35 +31,25 @@ public class Light {
 	// set gl light number
 	private int glLight = -1;
 	
-	// global number of lights checked out
-	private static int curLights = 0;
+	// global gl light numbers checked out, one bit per number
+	private static int usedLights = 0;
 	
-	private static int getNumber() {
-		if(curLights < MAX_LIGHTS) {
-			curLights++;
-			switch(curLights) {
-			case 1:
-				return GL10.GL_LIGHT0;
-			case 2:
-				return GL10.GL_LIGHT1;
-			case 3:
-				return GL10.GL_LIGHT2;
-			case 4:
-				return GL10.GL_LIGHT3;
-			case 5:
-				return GL10.GL_LIGHT4;
-			case 6:
-				return GL10.GL_LIGHT5;
-			case 7:
-				return GL10.GL_LIGHT6;
-			case 8:
-				return GL10.GL_LIGHT7;
+	private static synchronized int getNumber() {
+		for(int i = 0; i < MAX_LIGHTS; i++) {
+			if((usedLights & (1 << i)) == 0) {
+				usedLights |= 1 << i;
+				// GL_LIGHT0 to GL_LIGHT7 are consecutive
+				return GL10.GL_LIGHT0 + i;
 			}
 		}
 		Log.w(TAG, "The maximum number of lights are already created");
 		return -1;
 	}
 	
+	private static synchronized void putNumber(int number) {
+		usedLights &= ~(1 << (number - GL10.GL_LIGHT0));
+	}
+	
 	/**
 	 * Creates a new instance
 	 */
@@ -67,6 +57,20 @@ public class Light {
 		glLight = getNumber();
 	}
 	
+	/**
+	 * Returns the gl light number of this light, so that a new light can
+	 * get it. The light can not be enabled after this. Call when the
+	 * light is no longer used, lights are not numbered per GL context
+	 * but for as long as the process lives.
+	 */
+	public void release() {
+		if(glLight == -1) {
+			return;
+		}
+		putNumber(glLight);
+		glLight = -1;
+	}
+	
 	/**
 	 * @return a copy of this light
 	 */
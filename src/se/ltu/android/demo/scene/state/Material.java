@@ -22,6 +22,7 @@ public class Material {
 	private static float[] current_emission;
 	private static float current_shininess;
 	private static boolean current_useColorMaterial;
+	private static int nextId = 0;
 	
 	private float[] ambient;
 	private float[] diffuse;
@@ -29,6 +30,7 @@ public class Material {
 	private float[] emission;
 	private float shininess; // 0, 128
 	private boolean useColorMaterial;
+	private final int id = nextId++;
 	
 	/**
 	 * Sets the material to the one specified
@@ -127,6 +129,20 @@ public class Material {
 		}
 	}
 
+	/**
+	 * Forgets which material was set last, so that the next material sets
+	 * all its attributes. Called when a new GL context has been created,
+	 * since it starts out with the default material.
+	 */
+	public static void resetState() {
+		current_ambient = null;
+		current_diffuse = null;
+		current_specular = null;
+		current_emission = null;
+		current_shininess = DEFAULT_SHININESS;
+		current_useColorMaterial = false;
+	}
+
 	/**
 	 * @param color4f the ambient to set
 	 */
@@ -315,6 +331,14 @@ public class Material {
 		return useColorMaterial;
 	}
 	
+	/**
+	 * @return a number unique to this material, used to sort 
+	 * geometries by material
+	 */
+	public int getId() {
+		return id;
+	}
+	
 	// maybe not so clever
 	private static boolean sameColor(float[] c1, float[] c2) {
 		if(c1 == c2) {
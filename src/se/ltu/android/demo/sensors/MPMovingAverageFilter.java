@@ -1,14 +1,27 @@
 /* SVN FILE: $Id$ */
 package se.ltu.android.demo.sensors;
 
+import android.util.Log;
+
 /**
- * A Multiple-Pass (and somewhat weighted) Moving Average Filter.
+ * A Multiple-Pass (and somewhat weighted) Moving Average Filter.<br><br>
+ * Each element of a sample is a channel of its own, so one filter can
+ * filter all axes of a sensor (or any number of independent values) at
+ * once. The sampling history of all passes and channels is kept in one
+ * flat ring buffer, with the channels of a sample next to each other, so
+ * every pass of a sample is one tight loop over the channels.<br><br>
+ * When samples are added with a time, a gap since the last sample is
+ * filled by adding the sample several times. A gap that is longer than
+ * it takes the sample to fill every pass is computed directly, so the
+ * cost of a sample never exceeds that of filling the window once, however
+ * long the gap.
  * 
  * @author Åke Svedin <ake.svedin@gmail.com>
  * @version $Revision$
  * @lastmodified $Date$
  */
 public class MPMovingAverageFilter {
+	private final static String TAG = "MPMovingAverageFilter";
 	/**
 	 * Average time (in gigahertz) between two samples. Change this if you
 	 * don't use the fastest rate.
@@ -24,13 +37,14 @@ public class MPMovingAverageFilter {
 	private int nSamples = 1;
 	private int nElements = 1;
 	private boolean passthrough = true;
-	private float[][] lastResult;
-	private float[][][] sampleHistory;
+	// the running sum of each pass, [pass][element]
+	private final float[] sums;
+	// the sampling history of each pass, [pass][sample][element]
+	private final float[] history;
 	private int iSamp = 0;
-	private int iSampNext = 0;
-	private int iLastPassResult = 0;
+	// number of equal samples after which every pass holds only them
+	private final int nSaturate;
 	private long lastTime = 0;
-	private double divValue = 1;
 	private float mulValue = 1;
 
 	/**
@@ -56,22 +70,19 @@ public class MPMovingAverageFilter {
 			this.nElements = nElements;
 		}
 		
-		// iSampNext will be just ahead of iSamp
-		nextIndex(iSampNext);
-		
-		// create arrays
-		sampleHistory = new float[nPasses][nElements][nSamples];
-		lastResult = new float[nPasses][nElements];
-		
 		/*
 		 * Initiates the filter just as if you had added zeros 
 		 * until all passes have sampling history.
 		 */
-		iLastPassResult = nPasses-1;
-		divValue = Math.pow(nSamples, iLastPassResult+1);
-		if(divValue > 0) {
-			mulValue  = (float) (1.0/divValue);
-		}
+		sums = new float[this.nPasses * this.nElements];
+		history = new float[this.nPasses * this.nSamples * this.nElements];
+		mulValue = (float) (1.0 / Math.pow(this.nSamples, this.nPasses));
+		
+		/*
+		 * The first pass holds only the new sample after nSamples adds,
+		 * and each following pass after another nSamples - 1.
+		 */
+		nSaturate = this.nPasses * (this.nSamples - 1) + 1;
 	}
 
 	/**
@@ -107,23 +118,14 @@ public class MPMovingAverageFilter {
 	 * individually.
 	 */
 	public void addSamples(float sample[]) {
-	
 		if (sample.length != nElements) {
-			try {
-				throw new Exception("Warning! The sample arrays length must match the constructor");
-			} catch (Exception e) {
-				e.printStackTrace();
-				return;
-			}
+			Log.w(TAG, "The sample array has "+sample.length+" elements, expected "+nElements);
+			return;
 		}
-
 		if (passthrough) {
-			for (int iElem = 0; iElem < nElements; iElem++) {
-				lastResult[0][iElem] = sample[iElem];
-			}
+			System.arraycopy(sample, 0, sums, 0, nElements);
 			return;
 		}
-		
 		_add(sample);
 	}
 
@@ -139,20 +141,12 @@ public class MPMovingAverageFilter {
 	 * @param time Time in <b>nanoseconds</b>. Such as those already given from the sensors.
 	 */
 	public void addSamples(float[] sample, long time) {
-
 		if (sample.length != nElements) {
-			try {
-				throw new Exception("Warning! The sample arrays length must match the constructor");
-			} catch (Exception e) {
-				e.printStackTrace();
-				return;
-			}
+			Log.w(TAG, "The sample array has "+sample.length+" elements, expected "+nElements);
+			return;
 		}
-
 		if (passthrough) {
-			for (int iElem = 0; iElem < nElements; iElem++) {
-				lastResult[0][iElem] = sample[iElem];
-			}
+			System.arraycopy(sample, 0, sums, 0, nElements);
 			return;
 		}
 		
@@ -170,27 +164,63 @@ public class MPMovingAverageFilter {
 			nAdds = Math.round((time - lastTime)*Frequency);
 		}
 		lastTime = time;
+		if(nAdds >= nSaturate) {
+			_fill(sample, nAdds);
+			return;
+		}
 		for(int i = 0; i < nAdds; i++) {
 			_add(sample);
 		}
 	}
 
 	private void _add(float[] sample) {
+		final int nElements = this.nElements;
+		final float[] sums = this.sums;
+		final float[] history = this.history;
+		float[] in = sample;
+		int inOff = 0;
+		int sumOff = 0;
+		int histOff = iSamp * nElements;
 		float toAdd;
 		for (int iPass = 0; iPass < nPasses; iPass++) {
 			for (int iElem = 0; iElem < nElements; iElem++) {
 				// if first pass, add sample. otherwise, add previous pass result
-				toAdd = iPass == 0 ? sample[iElem] : lastResult[iPass - 1][iElem];
+				toAdd = in[inOff + iElem];
 				
-				// add new value and remove the first
-				lastResult[iPass][iElem] += toAdd - sampleHistory[iPass][iElem][iSampNext];
+				// add new value and remove the oldest
+				sums[sumOff + iElem] += toAdd - history[histOff + iElem];
 				
 				// write over sample history
-				sampleHistory[iPass][iElem][iSamp] = toAdd;
+				history[histOff + iElem] = toAdd;
 			}
+			in = sums;
+			inOff = sumOff;
+			sumOff += nElements;
+			histOff += nSamples * nElements;
 		}
 		iSamp = nextIndex(iSamp);
-		iSampNext = nextIndex(iSampNext);
+	}
+
+	// the state after adding the sample nAdds times, when that is enough
+	// for every pass to hold only the sample: each pass holds the sum of
+	// the previous pass, which is the sample times nSamples to the power
+	// of the pass
+	private void _fill(float[] sample, int nAdds) {
+		int passLen = nSamples * nElements;
+		int sumOff = 0;
+		int histOff = 0;
+		for (int iPass = 0; iPass < nPasses; iPass++) {
+			for (int iElem = 0; iElem < nElements; iElem++) {
+				float value = iPass == 0 ? sample[iElem] : sums[sumOff - nElements + iElem];
+				for (int i = histOff + iElem; i < histOff + passLen; i += nElements) {
+					history[i] = value;
+				}
+				sums[sumOff + iElem] = value * nSamples;
+			}
+			sumOff += nElements;
+			histOff += passLen;
+		}
+		iSamp = (int) ((iSamp + (long) nAdds) % nSamples);
 	}
 
 	/**
@@ -199,20 +229,12 @@ public class MPMovingAverageFilter {
 	 */
 	public void getResults(float[] result) {
 		if (result.length != nElements) {
-			try {
-				throw new Exception("Warning! The result arrays length must match the constructor");
-			} catch (Exception e) {
-				e.printStackTrace();
-				return;
-			}
-		}
-		if (passthrough) {
-			for (int iElem = 0; iElem < nElements; iElem++) {
-				result[iElem] = lastResult[0][iElem];
-			}
+			Log.w(TAG, "The result array has "+result.length+" elements, expected "+nElements);
+			return;
 		}
+		int sumOff = (nPasses - 1) * nElements;
 		for (int iElem = 0; iElem < nElements; iElem++) {
-			result[iElem] = (float) (lastResult[iLastPassResult][iElem] * mulValue);
+			result[iElem] = sums[sumOff + iElem] * mulValue;
 		}
 	}
 
@@ -224,4 +246,4 @@ public class MPMovingAverageFilter {
 		}
 		return index;
 	}
-}
\ No newline at end of file
+}
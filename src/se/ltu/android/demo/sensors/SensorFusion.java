@@ -0,0 +1,136 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.sensors;
+
+import android.hardware.SensorManager;
+
+/**
+ * Turns accelerometer and magnetic field samples into a rotation matrix.
+ * Each sample is filtered and the rotation matrix is computed right away,
+ * on the thread the sensor events are delivered on, and published to the
+ * threads that read it. Reading the newest matrix is then a copy of 16
+ * floats, without locks or allocation, and nothing waits for the sensor
+ * events.<br><br>
+ * Both kinds of samples must be handled on the same thread (the listener
+ * of both sensors is called on the UI thread), which is the only thread
+ * that writes the published matrix. The matrix is published with a
+ * sequence counter (a seqlock): the counter is odd while the matrix is
+ * written, and a reader copies the matrix and tries again if the counter
+ * was odd or changed meanwhile.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class SensorFusion {
+	private static final float ACC_BUFFER_OFFSET = 1.0f;
+	private static final float MAG_BUFFER_OFFSET = 5.0f;
+	
+	// owned by the thread the sensor events are delivered on
+	private final float[] accBuffer = { 0.0f, 0.0f, 0.0f };
+	private final float[] magBuffer = { 0.0f, 0.0f, 0.0f };
+	private final float[] accResult = new float[3];
+	private final float[] magResult = new float[3];
+	private final MPMovingAverageFilter accFilter = new MPMovingAverageFilter(25, 3, 3);
+	private final MPMovingAverageFilter magFilter = new MPMovingAverageFilter(25, 3, 3);
+	private boolean hasAcc = false;
+	private boolean hasMag = false;
+	private final float[] rotM = new float[16];
+	
+	// the published matrix and when it was computed, guarded by sequence
+	private final float[] publishedM = new float[16];
+	private long publishedTime = -1;
+	// odd while the matrix is being published
+	private volatile int sequence = 0;
+	// written by readers after copying the matrix, so the copy is done
+	// before they read sequence again
+	private volatile int fence = 0;
+	
+	/**
+	 * @param timestamp
+	 *            time in nanoseconds for event
+	 * @param data
+	 *            array of values with length 3
+	 */
+	public void handleAccData(long timestamp, float[] data) {
+		holdWithin(data, accBuffer, ACC_BUFFER_OFFSET);
+		accFilter.addSamples(accBuffer, timestamp);
+		accFilter.getResults(accResult);
+		hasAcc = true;
+		update();
+	}
+	
+	/**
+	 * @param timestamp
+	 *            time in nanoseconds for event
+	 * @param data
+	 *            array of values with length 3
+	 */
+	public void handleMagData(long timestamp, float[] data) {
+		holdWithin(data, magBuffer, MAG_BUFFER_OFFSET);
+		magFilter.addSamples(magBuffer, timestamp);
+		magFilter.getResults(magResult);
+		hasMag = true;
+		update();
+	}
+	
+	// keeps the buffered sample until a new sample is further than offset
+	// from it in any direction, to keep the view from shaking
+	private static void holdWithin(float[] raw, float[] buffer, float offset) {
+		if (raw[0] < buffer[0] - offset
+				|| raw[0] > buffer[0] + offset
+				|| raw[1] < buffer[1] - offset
+				|| raw[1] > buffer[1] + offset
+				|| raw[2] < buffer[2] - offset
+				|| raw[2] > buffer[2] + offset) {
+			buffer[0] = raw[0];
+			buffer[1] = raw[1];
+			buffer[2] = raw[2];
+		}
+	}
+	
+	// computes and publishes the rotation matrix of the filtered samples,
+	// the last matrix stays published if this one can not be computed
+	// (in free fall for example)
+	private void update() {
+		if(!hasAcc || !hasMag 
+				|| !SensorManager.getRotationMatrix(rotM, null, accResult, magResult)) {
+			return;
+		}
+		sequence = sequence + 1;
+		// reading it back keeps the writes below from being seen before
+		// the odd sequence
+		int s = sequence;
+		System.arraycopy(rotM, 0, publishedM, 0, 16);
+		publishedTime = System.nanoTime();
+		sequence = s + 1;
+	}
+	
+	/**
+	 * Copies the newest rotation matrix. Can be called from any thread.
+	 * @param result the matrix as float array with length 16
+	 * @return System.nanoTime when the matrix was computed, or -1 if no
+	 * matrix has been computed and the result was not set
+	 */
+	public long getRotM4(float[] result) {
+		int s1, s2;
+		long time;
+		do {
+			s1 = sequence;
+			if((s1 & 1) != 0) {
+				// being written, which takes well under a microsecond
+				continue;
+			}
+			time = publishedTime;
+			if(time == -1) {
+				return -1;
+			}
+			System.arraycopy(publishedM, 0, result, 0, 16);
+			// a volatile write after the copy, so the copy can not be
+			// done after the sequence is read again
+			fence = s1;
+			s2 = sequence;
+			if(s1 == s2) {
+				return time;
+			}
+		} while(true);
+	}
+}
@@ -0,0 +1,1348 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.util;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Random;
+
+import javax.microedition.khronos.opengles.GL11;
+
+import android.content.res.Resources;
+import android.os.Debug;
+import android.util.Log;
+
+import se.ltu.android.demo.scene.AsyncLoader;
+import se.ltu.android.demo.scene.GLResources;
+import se.ltu.android.demo.scene.LodNode;
+import se.ltu.android.demo.scene.MeshCache;
+import se.ltu.android.demo.scene.MeshOptimizer;
+import se.ltu.android.demo.scene.MeshSplitter;
+import se.ltu.android.demo.scene.Node;
+import se.ltu.android.demo.scene.RenderQueue;
+import se.ltu.android.demo.scene.RenderQueueBuffer;
+import se.ltu.android.demo.scene.Spatial;
+import se.ltu.android.demo.scene.TriMesh;
+import se.ltu.android.demo.scene.UploadScheduler;
+import se.ltu.android.demo.scene.camera.Camera;
+import se.ltu.android.demo.scene.intersection.BVHTree;
+import se.ltu.android.demo.scene.intersection.PickContext;
+import se.ltu.android.demo.scene.intersection.PickResult;
+import se.ltu.android.demo.scene.intersection.Ray;
+import se.ltu.android.demo.scene.shapes.Box;
+import se.ltu.android.demo.scene.state.Material;
+import se.ltu.android.demo.sensors.MPMovingAverageFilter;
+import se.ltu.android.demo.sensors.SensorFusion;
+
+/**
+ * Rough on-device benchmarks. Results are written to the log. None of these
+ * are meant to be run in a release, call them from the game thread while
+ * developing (see <code>DemoGameThread.createWorld()</code>).
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public abstract class Benchmarks {
+	private final static String TAG = "Benchmarks";
+	
+	/**
+	 * Compares the load time per MB of a stream model read with 
+	 * <code>TriMesh.importModel</code> against the same model converted
+	 * to a mappable model and loaded with <code>ModLoader</code>.
+	 * @param res resources to load from
+	 * @param id a stream model resource (like R.raw.whatever)
+	 * @param cacheDir a writable directory for the converted model
+	 * @param runs number of loads to average over
+	 * @throws IOException if there was any error
+	 */
+	public static void modelLoading(Resources res, int id, File cacheDir, int runs) 
+			throws IOException {
+		File mapped = new File(cacheDir, "benchmark.mod");
+		ModLoader.convert(res.openRawResource(id), mapped.getPath());
+		ModLoader loader = new ModLoader();
+		
+		// warm up both paths once
+		importStream(res, id);
+		loader.loadModel("warmup", mapped);
+		
+		long streamBytes = 0;
+		long start = System.nanoTime();
+		for(int i = 0; i < runs; i++) {
+			streamBytes = importStream(res, id);
+		}
+		long streamTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		for(int i = 0; i < runs; i++) {
+			TriMesh mesh = loader.loadModel("mapped", mapped);
+			// touch the data once so the pages are actually read
+			mesh.getVertices().get(mesh.getVertices().limit() - 1);
+		}
+		long mappedTime = System.nanoTime() - start;
+		
+		Log.d(TAG, "importModel: "+msPerMB(streamTime, runs, streamBytes)+" ms/MB");
+		Log.d(TAG, "mapped: "+msPerMB(mappedTime, runs, mapped.length())+" ms/MB");
+		mapped.delete();
+	}
+	
+	/**
+	 * Compares a full transform and bound update of a scene with the
+	 * dirty flag driven <code>updateGeometricState</code>, when only a few
+	 * spatials move each frame.
+	 * @param pieces number of meshes in the scene, grouped 16 per node
+	 * @param moving number of meshes that move every frame
+	 * @param runs number of frames to average over
+	 */
+	public static void sceneUpdate(int pieces, int moving, int runs) {
+		Node root = new Node("root");
+		TriMesh[] meshes = createGrid(root, pieces, 0, 0);
+		root.updateGeometricState();
+		
+		long start = System.nanoTime();
+		for(int i = 0; i < runs; i++) {
+			move(meshes, moving, i);
+			root.updateTransform();
+			root.updateWorldBound(false);
+		}
+		long fullTime = System.nanoTime() - start;
+		
+		int updated = 0;
+		start = System.nanoTime();
+		for(int i = 0; i < runs; i++) {
+			move(meshes, moving, i);
+			updated += root.updateGeometricState();
+		}
+		long dirtyTime = System.nanoTime() - start;
+		
+		Log.d(TAG, pieces+" meshes, "+moving+" moving:");
+		Log.d(TAG, "full update: "+fullTime / 1000 / runs+" us/frame");
+		Log.d(TAG, "dirty update: "+dirtyTime / 1000 / runs+" us/frame, "
+				+updated / runs+" spatials/frame");
+	}
+	
+	/**
+	 * Measures how long a game thread and a render thread wait for each
+	 * other when they share the scene under one lock (the way the scene
+	 * was drawn with synchronized nodes), compared to handing render
+	 * queues over through a <code>RenderQueueBuffer</code>.
+	 * @param pieces number of meshes in the scene
+	 * @param frames number of frames each thread runs
+	 * @throws InterruptedException if interrupted while waiting for the threads
+	 */
+	public static void sceneHandoff(int pieces, final int frames) throws InterruptedException {
+		final Node root = new Node("root");
+		final TriMesh[] meshes = new TriMesh[pieces];
+		for(int i = 0; i < pieces; i++) {
+			meshes[i] = new Box("box"+i, 0.5f, 0.5f, 1f);
+			meshes[i].setLocalTranslation(i % 16, i / 16, 0);
+			root.attachChild(meshes[i]);
+		}
+		root.updateGeometricState();
+		final float[] identity = new float[16];
+		android.opengl.Matrix.setIdentityM(identity, 0);
+		// [0] wait and [1] hold time in ns for the game and render threads
+		final long[] game = new long[2];
+		final long[] render = new long[2];
+		
+		Thread writer = new Thread() {
+			public void run() {
+				for(int i = 0; i < frames; i++) {
+					long start = System.nanoTime();
+					synchronized(root) {
+						long locked = System.nanoTime();
+						move(meshes, 2, i);
+						root.updateGeometricState();
+						game[0] += locked - start;
+						game[1] += System.nanoTime() - locked;
+					}
+				}
+			}
+		};
+		Thread reader = new Thread() {
+			RenderQueue queue = new RenderQueue();
+			public void run() {
+				for(int i = 0; i < frames; i++) {
+					long start = System.nanoTime();
+					synchronized(root) {
+						long locked = System.nanoTime();
+						queue.clear(identity, identity);
+						root.queue(queue);
+						queue.sort();
+						render[0] += locked - start;
+						render[1] += System.nanoTime() - locked;
+					}
+				}
+			}
+		};
+		writer.start();
+		reader.start();
+		writer.join();
+		reader.join();
+		Log.d(TAG, "locked scene, "+pieces+" meshes:");
+		Log.d(TAG, "game thread wait "+game[0] / frames+" ns/frame, hold "
+				+game[1] / frames+" ns/frame");
+		Log.d(TAG, "render thread wait "+render[0] / frames+" ns/frame, hold "
+				+render[1] / frames+" ns/frame");
+		
+		final RenderQueueBuffer queues = new RenderQueueBuffer();
+		writer = new Thread() {
+			public void run() {
+				for(int i = 0; i < frames; i++) {
+					move(meshes, 2, i);
+					root.updateGeometricState();
+					RenderQueue queue = queues.getBack();
+					queue.clear(identity, identity);
+					root.queue(queue);
+					queue.sort();
+					queues.publish();
+				}
+			}
+		};
+		reader = new Thread() {
+			public void run() {
+				for(int i = 0; i < frames; i++) {
+					RenderQueue queue = queues.acquire();
+					// stands in for drawing
+					int len = queue.size();
+					for(int j = 0; j < len; j++) {
+						queue.getMesh(j);
+					}
+				}
+			}
+		};
+		writer.start();
+		reader.start();
+		writer.join();
+		reader.join();
+		Log.d(TAG, "render queue buffer, "+pieces+" meshes:");
+		Log.d(TAG, "publish "+queues.getPublishNanos() / frames+" ns/frame, acquire "
+				+queues.getAcquireNanos() / frames+" ns/frame, stale frames "
+				+queues.getStale());
+	}
+	
+	/**
+	 * Reports draw calls per frame for a number of clones of one mesh 
+	 * sharing a material, with and without instance batching, and the
+	 * time it takes to build the batches.
+	 * @param instances number of clones
+	 * @param runs number of frames to average over
+	 */
+	public static void instancing(int instances, int runs) {
+		Node root = new Node("root");
+		Box box = new Box("box", 0.5f, 0.5f, 1f);
+		box.setMaterial(new Material());
+		for(int i = 0; i < instances; i++) {
+			TriMesh clone = box.cloneMesh("clone"+i);
+			clone.setLocalTranslation(i % 8 - 3.5f, i / 8 - 3.5f, -5);
+			root.attachChild(clone);
+		}
+		root.updateGeometricState();
+		float[] identity = new float[16];
+		android.opengl.Matrix.setIdentityM(identity, 0);
+		RenderQueue queue = new RenderQueue();
+		queue.setCulling(false);
+		
+		for(int pass = 0; pass < 2; pass++) {
+			box.setInstancing(pass == 1);
+			long start = System.nanoTime();
+			for(int i = 0; i < runs; i++) {
+				queue.clear(identity, identity);
+				root.queue(queue);
+				queue.sort();
+				queue.buildBatches();
+			}
+			long time = System.nanoTime() - start;
+			Log.d(TAG, instances+" clones, instancing "+(pass == 1 ? "on" : "off")
+					+": "+queue.getPlannedDrawCalls()+" draw calls/frame, "
+					+time / 1000 / runs+" us/frame to queue");
+		}
+	}
+	
+	/**
+	 * Compares picks per second when walking the scene graph with 
+	 * <code>Node.calculatePick</code> against a <code>BVHTree</code>, with
+	 * bound picking and with exact (per triangle) picking, and reports the
+	 * time to build and refit the tree.
+	 * @param objects number of pickable meshes, grouped 16 per node
+	 * @param picks number of rays to pick with
+	 */
+	public static void picking(int objects, int picks) {
+		Node root = new Node("root");
+		TriMesh[] meshes = createGrid(root, objects, 0, 0);
+		Random random = new Random(objects);
+		float side = (float) Math.sqrt(objects) * 2;
+		for(int i = 0; i < objects; i++) {
+			// scattered, so the tree has some depth to it
+			meshes[i].setLocalTranslation(random.nextFloat() * side, 
+					random.nextFloat() * side, random.nextFloat() * 4);
+		}
+		root.updateGeometricState();
+		Ray[] rays = new Ray[picks];
+		for(int i = 0; i < picks; i++) {
+			rays[i] = new Ray(random.nextFloat() * side, random.nextFloat() * side, 10,
+					random.nextFloat() * 0.2f - 0.1f, random.nextFloat() * 0.2f - 0.1f, -1);
+		}
+		
+		BVHTree tree = new BVHTree();
+		long start = System.nanoTime();
+		tree.build(root);
+		long buildTime = System.nanoTime() - start;
+		
+		for(int pass = 0; pass < 2; pass++) {
+			for(int i = 0; i < objects; i++) {
+				meshes[i].setExactPicking(pass == 1);
+			}
+			int hits = 0;
+			int agree = 0;
+			PickResult[] linear = new PickResult[picks];
+			start = System.nanoTime();
+			for(int i = 0; i < picks; i++) {
+				linear[i] = new PickResult();
+				root.calculatePick(rays[i], linear[i]);
+			}
+			long linearTime = System.nanoTime() - start;
+			PickResult result;
+			start = System.nanoTime();
+			for(int i = 0; i < picks; i++) {
+				result = new PickResult();
+				tree.calculatePick(rays[i], result);
+				if(result.hasResult()) {
+					hits++;
+				}
+				if(result.getClosest() == linear[i].getClosest()) {
+					agree++;
+				}
+			}
+			long treeTime = System.nanoTime() - start;
+			Log.d(TAG, objects+" objects, "+(pass == 1 ? "exact" : "bound")+" picking: "
+					+"scene graph "+picksPerSecond(picks, linearTime)+" picks/s, "
+					+"bvh "+picksPerSecond(picks, treeTime)+" picks/s, "
+					+hits+" hits, "+agree+"/"+picks+" same results");
+		}
+		
+		move(meshes, Math.max(objects / 10, 1), 1);
+		root.updateGeometricState();
+		start = System.nanoTime();
+		int refitted = tree.refit();
+		long refitTime = System.nanoTime() - start;
+		Log.d(TAG, objects+" objects: build "+buildTime / 1000+" us ("+tree.getNodeCount()
+				+" nodes), refit of "+refitted+" moved "+refitTime / 1000+" us");
+	}
+	
+	/**
+	 * Counts the allocations made by picking on the calling thread, with
+	 * a new ray and result per pick (the way taps used to be handled)
+	 * and with a reused <code>PickContext</code>. Picking with a context
+	 * must not allocate once it has warmed up, an error is logged if it
+	 * does. The camera uses the current perspective, so run this after
+	 * the surface has been set up.
+	 * @param objects number of pickable meshes, grouped 16 per node
+	 * @param picks number of picks to count over
+	 */
+	public static void pickingAllocations(int objects, int picks) {
+		Node root = new Node("root");
+		TriMesh[] meshes = createGrid(root, objects, -8, -5);
+		for(int i = 0; i < objects; i++) {
+			meshes[i].setExactPicking(i % 2 == 0);
+		}
+		root.updateGeometricState();
+		BVHTree tree = new BVHTree();
+		tree.build(root);
+		Camera camera = new Camera();
+		camera.setPosition(0, 0, 10);
+		PickContext context = new PickContext();
+		// warm up both paths, so class loading is not counted and the
+		// context has grown to what the picks need
+		PickResult result = new PickResult();
+		root.calculatePick(camera.calculatePickRay(0, 0), result);
+		for(int i = 0; i < picks; i++) {
+			context.reset();
+			tree.calculatePick(camera.calculatePickRay(i % 320, i % 480, context), 
+					context.getResult());
+		}
+		
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		int hits = 0;
+		for(int i = 0; i < picks; i++) {
+			result = new PickResult();
+			root.calculatePick(camera.calculatePickRay(i % 320, i % 480), result);
+			if(result.hasResult()) {
+				hits++;
+			}
+		}
+		int allocating = Debug.getThreadAllocCount();
+		
+		Debug.resetThreadAllocCount();
+		int contextHits = 0;
+		for(int i = 0; i < picks; i++) {
+			context.reset();
+			tree.calculatePick(camera.calculatePickRay(i % 320, i % 480, context), 
+					context.getResult());
+			if(context.getResult().hasResult()) {
+				contextHits++;
+			}
+		}
+		int reusing = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+		Log.d(TAG, picks+" picks in "+objects+" objects: "+allocating
+				+" allocations with new rays and results ("+hits+" hits), "+reusing
+				+" with a pick context ("+contextHits+" hits)");
+		if(reusing != 0) {
+			Log.e(TAG, "Picking with a pick context allocated "+reusing+" times in "
+					+picks+" picks, expected none");
+		}
+	}
+	
+	/**
+	 * Compares the throughput and allocations of <code>ObjLoader</code>
+	 * with the line based parsing it used to do (a string per line, split
+	 * into strings that are parsed one by one, and a float[8] per face 
+	 * corner), on a synthetic OBJ-file with positions, texture coordinates
+	 * and normals. The old parsing is measured without its vertex 
+	 * deduplication, so it is a lower bound for the old loader.
+	 * @param triangles number of triangles in the file
+	 * @param runs number of loads to average over
+	 * @throws IOException if there was any error
+	 */
+	public static void objLoading(int triangles, int runs) throws IOException {
+		byte[] obj = syntheticObj(triangles);
+		ObjLoader loader = new ObjLoader();
+		// warm up both paths once
+		parseLines(obj);
+		loader.loadModel("warmup", ByteBuffer.wrap(obj));
+		
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		long start = System.nanoTime();
+		for(int i = 0; i < runs; i++) {
+			parseLines(obj);
+		}
+		long lineTime = System.nanoTime() - start;
+		int lineAllocs = Debug.getThreadAllocCount();
+		
+		Debug.resetThreadAllocCount();
+		start = System.nanoTime();
+		for(int i = 0; i < runs; i++) {
+			loader.loadModel("obj", ByteBuffer.wrap(obj));
+		}
+		long loaderTime = System.nanoTime() - start;
+		int loaderAllocs = Debug.getThreadAllocCount();
+		Debug.stopAllocCounting();
+		
+		Log.d(TAG, triangles+" triangles ("+obj.length / 1024+" kB): line parsing "
+				+mbPerSecond(obj.length, runs, lineTime)+" MB/s, "+lineAllocs / runs
+				+" allocations/load, ObjLoader "+mbPerSecond(obj.length, runs, loaderTime)
+				+" MB/s, "+loaderAllocs / runs+" allocations/load");
+	}
+	
+	/**
+	 * Compares vertex deduplication with a sorted list (binary search and
+	 * insertion, the way <code>ObjLoader</code> used to do it) against the
+	 * hash table in <code>ObjLoader</code>, on the face vertices of the
+	 * same synthetic grid as <code>objLoading</code>. The loader time
+	 * includes parsing the file.
+	 * @param triangles number of triangles in the grid
+	 * @throws IOException if there was any error
+	 */
+	public static void objDeduplication(int triangles) throws IOException {
+		int side = Math.max((int) Math.sqrt(triangles / 2), 1);
+		byte[] obj = syntheticObj(triangles);
+		ObjLoader loader = new ObjLoader();
+		loader.loadModel("warmup", ByteBuffer.wrap(obj));
+		
+		long start = System.nanoTime();
+		loader.loadModel("obj", ByteBuffer.wrap(obj));
+		long hashTime = System.nanoTime() - start;
+		Log.d(TAG, triangles+" triangles, hash table: "+loader.getUniqueVertices()
+				+" unique, "+loader.getSimilarVertices()+" similar, "
+				+hashTime / 1000000+" ms to load");
+		
+		// the same face vertices, deduplicated with a sorted list
+		Comparator<float[]> order = new Comparator<float[]>() {
+			public int compare(float[] a, float[] b) {
+				for(int i = 0; i < a.length; i++) {
+					if(a[i] < b[i]) {
+						return -1;
+					}
+					if(a[i] > b[i]) {
+						return 1;
+					}
+				}
+				return 0;
+			}
+		};
+		ArrayList<float[]> sorted = new ArrayList<float[]>();
+		int unique = 0;
+		int similar = 0;
+		int row = side + 1;
+		int[] corners = new int[6];
+		start = System.nanoTime();
+		for(int y = 0; y < side; y++) {
+			for(int x = 0; x < side; x++) {
+				corners[0] = y * row + x;
+				corners[1] = corners[0] + 1;
+				corners[2] = corners[1] + row;
+				corners[3] = corners[0];
+				corners[4] = corners[2];
+				corners[5] = corners[0] + row;
+				for(int c = 0; c < 6; c++) {
+					int vx = corners[c] % row;
+					int vy = corners[c] / row;
+					float[] data = new float[] { vx * 0.01f, vy * 0.01f, (vx * vy % 7) * 0.001f,
+							0, 0, 1, (float) vx / side, (float) vy / side };
+					int i = Collections.binarySearch(sorted, data, order);
+					if(i < 0) {
+						sorted.add(-(i + 1), data);
+						unique++;
+					} else {
+						similar++;
+					}
+				}
+			}
+		}
+		long sortedTime = System.nanoTime() - start;
+		Log.d(TAG, triangles+" triangles, sorted list: "+unique+" unique, "+similar
+				+" similar, "+sortedTime / 1000000+" ms to deduplicate");
+	}
+	
+	/**
+	 * Loads a synthetic OBJ-file with more vertices than 16-bit indices
+	 * can address, round trips it through both model formats and splits it
+	 * into meshes with 16-bit indices, logging the index widths, part 
+	 * counts and times.
+	 * @param triangles number of triangles in the grid, over 131072 to 
+	 * need 32-bit indices
+	 * @throws IOException if there was any error
+	 */
+	public static void largeMesh(int triangles) throws IOException {
+		ObjLoader loader = new ObjLoader();
+		TriMesh mesh = loader.loadModel("large", ByteBuffer.wrap(syntheticObj(triangles)));
+		Log.d(TAG, loader.getUniqueVertices()+" vertices, 32-bit indices: "
+				+mesh.hasIntIndices());
+		
+		long start = System.nanoTime();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mesh.exportModel(new DataOutputStream(out));
+		TriMesh streamed = new TriMesh("streamed");
+		streamed.importModel(new DataInputStream(new ByteArrayInputStream(out.toByteArray())));
+		long streamTime = System.nanoTime() - start;
+		
+		start = System.nanoTime();
+		out.reset();
+		mesh.exportMappedModel(out, ByteOrder.nativeOrder());
+		TriMesh mapped = new TriMesh("mapped");
+		mapped.importMappedModel(ByteBuffer.wrap(out.toByteArray()));
+		long mappedTime = System.nanoTime() - start;
+		Log.d(TAG, "Round trip: stream "+streamed.getIndexCount()+" indices (32-bit: "
+				+streamed.hasIntIndices()+") in "+streamTime / 1000000+" ms, mapped "
+				+mapped.getIndexCount()+" indices (32-bit: "+mapped.hasIntIndices()
+				+") in "+mappedTime / 1000000+" ms");
+		
+		start = System.nanoTime();
+		Node node = MeshSplitter.split(mesh, MeshSplitter.MAX_VERTICES);
+		long splitTime = System.nanoTime() - start;
+		int vertices = 0;
+		int indices = 0;
+		ArrayList<Spatial> parts = node.getChildren();
+		for(int i = 0; i < parts.size(); i++) {
+			TriMesh part = (TriMesh) parts.get(i);
+			vertices += part.getVertices().limit() / 3;
+			indices += part.getIndexCount();
+		}
+		Log.d(TAG, "Split into "+parts.size()+" meshes with "+vertices+" vertices and "
+				+indices+" indices in "+splitTime / 1000000+" ms");
+	}
+	
+	/**
+	 * Logs the ACMR (cache misses per triangle) of a model as it is
+	 * shipped and after running <code>MeshOptimizer</code> on it, for a
+	 * few cache sizes, and how long the optimization took.
+	 * @param res resources to load from
+	 * @param id resource identifier of the model (like R.raw.whatever)
+	 * @param name name to log the model as
+	 * @throws IOException if the model could not be loaded
+	 */
+	public static void meshOptimization(Resources res, int id, String name) throws IOException {
+		TriMesh mesh = new ModLoader().loadModel(name, res, id);
+		int[] sizes = { 8, MeshOptimizer.FIFO_SIZE, 32 };
+		float[] before = new float[sizes.length];
+		for(int i = 0; i < sizes.length; i++) {
+			before[i] = MeshOptimizer.acmr(mesh, sizes[i]);
+		}
+		int indices = mesh.getIndexCount();
+		long start = System.nanoTime();
+		MeshOptimizer.optimize(mesh, false);
+		long time = System.nanoTime() - start;
+		for(int i = 0; i < sizes.length; i++) {
+			Log.d(TAG, name+", FIFO "+sizes[i]+": ACMR "+before[i]+" -> "
+					+MeshOptimizer.acmr(mesh, sizes[i]));
+		}
+		Log.d(TAG, name+": "+indices+" -> "+mesh.getIndexCount()+" indices, optimized in "
+				+time / 1000000+" ms");
+	}
+	
+	/**
+	 * Logs the bytes per vertex a model is drawn from with separate float
+	 * arrays, an interleaved float buffer and quantized data, and the size
+	 * of its mappable model file with float and quantized data. Frame times
+	 * are logged by the renderer.
+	 * @param res resources to load from
+	 * @param id resource identifier of the model (like R.raw.whatever)
+	 * @param name name to log the model as
+	 * @throws IOException if the model could not be loaded
+	 */
+	public static void vertexFormats(Resources res, int id, String name) throws IOException {
+		TriMesh mesh = new ModLoader().loadModel(name, res, id);
+		int vertices = mesh.getVertices().limit() / 3;
+		int separate = mesh.getVertexSize();
+		mesh.setInterleaved(true);
+		int interleaved = mesh.getVertexSize();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		mesh.exportMappedModel(out, ByteOrder.nativeOrder());
+		int floatFile = out.size();
+		mesh.setQuantized(true);
+		int quantized = mesh.getVertexSize();
+		out.reset();
+		mesh.exportMappedModel(out, ByteOrder.nativeOrder());
+		Log.d(TAG, name+": "+vertices+" vertices, bytes/vertex separate "+separate
+				+", interleaved "+interleaved+", quantized "+quantized+" (saves "
+				+(interleaved - quantized) * vertices+" bytes of vertex data), model file "
+				+floatFile+" -> "+out.size()+" bytes");
+	}
+	
+	/**
+	 * Reports the triangles queued per frame for a full board of one piece
+	 * (32 copies on the rows the pieces start on), drawn at full detail and
+	 * with levels of detail, from the default camera, the default camera
+	 * zoomed out and the side camera zoomed out.
+	 * @param res resources to load from
+	 * @param ids model resources of the levels, most detailed first
+	 * @param minSizes smallest screen size of each level, see
+	 * <code>LodNode.addLevel</code>
+	 * @param name name of the piece
+	 * @throws IOException if there was any error
+	 */
+	public static void lod(Resources res, int[] ids, float[] minSizes, String name)
+			throws IOException {
+		ModLoader loader = new ModLoader();
+		LodNode piece = new LodNode(name);
+		for(int i = 0; i < ids.length; i++) {
+			piece.addLevel(loader.loadModel(name+" "+i, res, ids[i]), minSizes[i]);
+		}
+		Node full = new Node("full");
+		int[] rows = { 0, 1, 6, 7 };
+		Spatial copy;
+		for(int i = 0; i < rows.length * 8; i++) {
+			copy = MeshSplitter.cloneModel(piece.getLevel(0), "full"+i);
+			copy.setLocalTranslation(i % 8 - 3.5f, rows[i / 8] - 3.5f, -2.8f);
+			full.attachChild(copy);
+		}
+		full.updateGeometricState();
+		
+		// same field of view as DemoRenderer, the screen size does not
+		// depend on the aspect ratio
+		float[] projM = new float[16];
+		float top = 0.1f * (float) Math.tan(Math.toRadians(30));
+		android.opengl.Matrix.frustumM(projM, 0, -top * 1.5f, top * 1.5f, -top, top, 0.1f, 20f);
+		Camera[] cameras = new Camera[3];
+		cameras[0] = new Camera();
+		cameras[0].setIdentity();
+		cameras[0].setPosition(0, 0, 9);
+		cameras[1] = new Camera();
+		cameras[1].setIdentity();
+		cameras[1].setPosition(0, 0, 15);
+		cameras[2] = new Camera();
+		cameras[2].lookAt(6, 0, 9, 0, 0, -2.9f, 0, 0, 1);
+		String[] views = { "default camera", "default camera zoomed out", "side camera zoomed out" };
+		
+		RenderQueue queue = new RenderQueue();
+		Node lod;
+		int fullTriangles;
+		for(int i = 0; i < cameras.length; i++) {
+			queue.clear(projM, cameras[i].getModelM());
+			full.queue(queue);
+			fullTriangles = queue.getTriangles();
+			// new nodes for each view, so the levels chosen for the previous
+			// view are not kept by the hysteresis
+			lod = new Node("lod");
+			for(int j = 0; j < rows.length * 8; j++) {
+				copy = piece.cloneLod("lod"+j);
+				copy.setLocalTranslation(j % 8 - 3.5f, rows[j / 8] - 3.5f, -2.8f);
+				lod.attachChild(copy);
+			}
+			lod.updateGeometricState();
+			queue.clear(projM, cameras[i].getModelM());
+			lod.queue(queue);
+			Log.d(TAG, "32 "+name+"s, "+views[i]+": "+fullTriangles+" triangles/frame, with LOD "
+					+queue.getTriangles()+" ("+queue.getTriangles() * 100 / Math.max(fullTriangles, 1)
+					+"%)");
+		}
+	}
+	
+	/**
+	 * Compares the time to the first frame and the time until every model
+	 * is in the scene, when the models are loaded before the first frame
+	 * and when they are loaded by an <code>AsyncLoader</code> with boxes
+	 * standing in for them. The game loop is simulated with a frame every
+	 * 40 ms (25 FPS).
+	 * @param res resources to load from
+	 * @param id a model resource (like R.raw.whatever)
+	 * @param models number of models to load
+	 * @param threads number of loading threads
+	 * @throws IOException if there was any error
+	 * @throws InterruptedException if interrupted while waiting for a frame
+	 */
+	public static void asyncLoading(final Resources res, final int id, int models, int threads)
+			throws IOException, InterruptedException {
+		float[] identity = new float[16];
+		android.opengl.Matrix.setIdentityM(identity, 0);
+		RenderQueue queue = new RenderQueue();
+		queue.setCulling(false);
+		
+		// everything loaded before the first frame
+		long start = System.nanoTime();
+		Node root = new Node("root");
+		ModLoader loader = new ModLoader();
+		TriMesh mesh;
+		for(int i = 0; i < models; i++) {
+			mesh = loader.loadModel("model"+i, res, id);
+			mesh.setQuantized(true);
+			mesh.setLocalTranslation(i % 8 - 3.5f, i / 8 - 3.5f, -5);
+			root.attachChild(mesh);
+		}
+		root.updateGeometricState();
+		queue.clear(identity, identity);
+		root.queue(queue);
+		long sync = System.nanoTime() - start;
+		
+		// boxes first, models attached as they are loaded
+		start = System.nanoTime();
+		root = new Node("root");
+		AsyncLoader asyncLoader = new AsyncLoader(threads);
+		AsyncLoader.Task task = new AsyncLoader.Task() {
+			public Spatial load() throws IOException {
+				TriMesh model = new ModLoader().loadModel("model", res, id);
+				model.setQuantized(true);
+				return model;
+			}
+		};
+		Box box;
+		for(int i = 0; i < models; i++) {
+			box = new Box("box"+i, 0.6f, 0.6f, 1);
+			box.setLocalTranslation(i % 8 - 3.5f, i / 8 - 3.5f, -5);
+			root.attachChild(box);
+			asyncLoader.load(task, box, null);
+		}
+		long firstFrame = 0;
+		int frames = 0;
+		do {
+			asyncLoader.update();
+			root.updateGeometricState();
+			queue.clear(identity, identity);
+			root.queue(queue);
+			if(frames++ == 0) {
+				firstFrame = System.nanoTime() - start;
+			}
+			if(!asyncLoader.isIdle()) {
+				Thread.sleep(40);
+			}
+		} while(!asyncLoader.isIdle());
+		long async = System.nanoTime() - start;
+		asyncLoader.shutdown();
+		Log.d(TAG, models+" models, loaded first: first frame and fully loaded after "
+				+sync / 1000000+" ms. Loaded on "+threads+" threads: first frame after "
+				+firstFrame / 1000000+" ms, fully loaded after "+async / 1000000+" ms ("
+				+frames+" frames)");
+	}
+	
+	/**
+	 * Compares loading a number of copies of some models one by one with
+	 * acquiring them from a <code>MeshCache</code>, by time and bytes of
+	 * model data. Then acquires and releases the models one at a time with
+	 * a cache budget of three quarters of their data, first in order and
+	 * then in reverse order, to show the least recently used evictions.
+	 * @param res resources to load from
+	 * @param ids model resources (like R.raw.whatever)
+	 * @param copies copies of each model
+	 * @throws IOException if there was any error
+	 */
+	public static void meshCache(Resources res, int[] ids, int copies) throws IOException {
+		ModLoader loader = new ModLoader();
+		long start = System.nanoTime();
+		long bytes = 0;
+		for(int i = 0; i < ids.length; i++) {
+			for(int j = 0; j < copies; j++) {
+				bytes += loader.loadModel("copy", res, ids[i]).getDataSize();
+			}
+		}
+		long time = System.nanoTime() - start;
+		
+		RenderQueueBuffer queues = new RenderQueueBuffer();
+		MeshCache cache = new MeshCache(Long.MAX_VALUE, queues);
+		Node root = new Node("root");
+		start = System.nanoTime();
+		for(int i = 0; i < ids.length; i++) {
+			for(int j = 0; j < copies; j++) {
+				root.attachChild(cache.acquire("copy", res, ids[i]));
+			}
+		}
+		long cacheTime = System.nanoTime() - start;
+		Log.d(TAG, ids.length+" models x "+copies+" copies, loaded one by one: "
+				+time / 1000000+" ms, "+bytes+" bytes. From the cache: "
+				+cacheTime / 1000000+" ms, "+cache.getResidentBytes()+" bytes, "
+				+cache.getHits()+" hits, "+cache.getMisses()+" misses");
+		cache.release(root);
+		
+		cache = new MeshCache(cache.getResidentBytes() * 3 / 4, queues);
+		Spatial mesh;
+		for(int i = 0; i < ids.length * 2; i++) {
+			mesh = cache.acquire("copy", res, ids[i < ids.length ? i : ids.length * 2 - 1 - i]);
+			cache.release(mesh);
+		}
+		Log.d(TAG, "Budget of 3/4 of the data, models acquired in order and in reverse: "
+				+cache.getHits()+" hits, "+cache.getMisses()+" misses, "
+				+cache.getEvictions()+" evictions, "+cache.size()+" models and "
+				+cache.getResidentBytes()+" bytes resident");
+	}
+	
+	// an OBJ-file with a grid of quads split into triangles
+	private static byte[] syntheticObj(int triangles) {
+		int side = Math.max((int) Math.sqrt(triangles / 2), 1);
+		StringBuilder sb = new StringBuilder();
+		sb.append("# synthetic grid\n");
+		for(int y = 0; y <= side; y++) {
+			for(int x = 0; x <= side; x++) {
+				sb.append("v ").append(x * 0.01f).append(' ').append(y * 0.01f)
+					.append(' ').append((x * y % 7) * 0.001f).append('\n');
+				sb.append("vt ").append((float) x / side).append(' ')
+					.append((float) y / side).append('\n');
+				sb.append("vn 0.0 0.0 1.0\n");
+			}
+		}
+		int row = side + 1;
+		int a, b, c, d;
+		for(int y = 0; y < side; y++) {
+			for(int x = 0; x < side; x++) {
+				a = y * row + x + 1;
+				b = a + 1;
+				c = a + row;
+				d = c + 1;
+				appendFace(sb, a, b, d);
+				appendFace(sb, a, d, c);
+			}
+		}
+		return sb.toString().getBytes();
+	}
+	
+	private static void appendFace(StringBuilder sb, int a, int b, int c) {
+		sb.append("f ").append(a).append('/').append(a).append('/').append(a)
+			.append(' ').append(b).append('/').append(b).append('/').append(b)
+			.append(' ').append(c).append('/').append(c).append('/').append(c).append('\n');
+	}
+	
+	// the per line work ObjLoader did before it parsed bytes directly
+	private static int parseLines(byte[] obj) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new ByteArrayInputStream(obj)), 8192);
+		String line;
+		String[] lineSplit;
+		String[] faceSplit;
+		ArrayList<float[]> corners = new ArrayList<float[]>();
+		float sum = 0;
+		while((line = in.readLine()) != null) {
+			line = line.trim();
+			if(line.length() < 2) {
+				continue;
+			}
+			if(line.charAt(0) == 'v') {
+				lineSplit = line.split("\\s+");
+				for(int i = 1; i < lineSplit.length; i++) {
+					sum += Float.parseFloat(lineSplit[i]);
+				}
+			} else if(line.charAt(0) == 'f') {
+				line = line.replace("//", "/0/");
+				lineSplit = line.split("\\s+");
+				for(int i = 1; i < 4; i++) {
+					faceSplit = lineSplit[i].split("/");
+					float[] data = new float[8];
+					data[0] = Integer.parseInt(faceSplit[0]);
+					data[6] = Integer.parseInt(faceSplit[1]);
+					data[3] = Integer.parseInt(faceSplit[2]);
+					corners.add(data);
+				}
+			}
+		}
+		in.close();
+		return corners.size() + (int) sum;
+	}
+	
+	// boxes in rows of 16, each row under a node of its own, at (column,
+	// row) plus the offset and at the given z
+	private static TriMesh[] createGrid(Node root, int objects, float offset, float z) {
+		TriMesh[] meshes = new TriMesh[objects];
+		Node group = null;
+		for(int i = 0; i < objects; i++) {
+			if(i % 16 == 0) {
+				group = new Node("group"+i);
+				root.attachChild(group);
+			}
+			meshes[i] = new Box("box"+i, 0.5f, 0.5f, 1f);
+			meshes[i].setLocalTranslation(i % 16 + offset, i / 16 + offset, z);
+			group.attachChild(meshes[i]);
+		}
+		return meshes;
+	}
+	
+	private static long mbPerSecond(long bytes, int runs, long nanos) {
+		return nanos > 0 ? bytes * runs * 1000L / nanos : 0;
+	}
+	
+	private static long picksPerSecond(int picks, long nanos) {
+		return nanos > 0 ? picks * 1000000000L / nanos : 0;
+	}
+	
+	private static void move(TriMesh[] meshes, int moving, int frame) {
+		for(int i = 0; i < moving; i++) {
+			TriMesh mesh = meshes[(i * 31) % meshes.length];
+			float[] t = mesh.getLocalTranslation();
+			mesh.setLocalTranslation(t[0], t[1], (frame % 10) * 0.1f);
+		}
+	}
+	
+	private static long importStream(Resources res, int id) throws IOException {
+		InputStream stream = res.openRawResource(id);
+		CountingInputStream counter = new CountingInputStream(stream);
+		TriMesh mesh = new TriMesh("stream");
+		try {
+			mesh.importModel(new DataInputStream(counter));
+		} finally {
+			stream.close();
+		}
+		return counter.count;
+	}
+	
+	private static float msPerMB(long nanos, int runs, long bytes) {
+		float ms = nanos / 1000000f / runs;
+		return ms / (bytes / (1024f * 1024f));
+	}
+	
+	// unbuffered on purpose, this is what createWorld used to do
+	private static class CountingInputStream extends InputStream {
+		private final InputStream in;
+		long count;
+		
+		CountingInputStream(InputStream in) {
+			this.in = in;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0) {
+				count++;
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n > 0) {
+				count += n;
+			}
+			return n;
+		}
+	}
+	
+	/**
+	 * Replays a synthetic trace of accelerometer and magnetic field
+	 * samples, 50 Hz each, of a device slowly tilting back and forth with
+	 * noise, through a <code>SensorFusion</code> of its own (the one the
+	 * sensors feed is not touched). First the trace is handled as fast as
+	 * possible, for the cost per sample. Then it is replayed in real time
+	 * while this thread reads the rotation matrix at 25 Hz like the game
+	 * thread, for the cost and allocations per read and how old the
+	 * matrices read were.
+	 * @param seconds length of the trace
+	 * @throws InterruptedException if interrupted while replaying
+	 */
+	public static void sensorFusion(int seconds) throws InterruptedException {
+		final int n = seconds * 100;
+		// acceleration and magnetic field samples take turns, 10 ms apart
+		final long[] times = new long[n];
+		final float[][] samples = new float[n][3];
+		Random random = new Random(24);
+		for(int i = 0; i < n; i++) {
+			times[i] = i * 10000000L;
+			double angle = Math.sin(i * 0.005) * 0.8;
+			float c = (float) Math.cos(angle);
+			float s = (float) Math.sin(angle);
+			if(i % 2 == 0) {
+				samples[i][0] = (float) random.nextGaussian() * 0.3f;
+				samples[i][1] = 9.81f * s + (float) random.nextGaussian() * 0.3f;
+				samples[i][2] = 9.81f * c + (float) random.nextGaussian() * 0.3f;
+			} else {
+				samples[i][0] = (float) random.nextGaussian();
+				samples[i][1] = 22 * c + 42 * s + (float) random.nextGaussian();
+				samples[i][2] = -22 * s + 42 * c + (float) random.nextGaussian();
+			}
+		}
+		
+		SensorFusion fusion = new SensorFusion();
+		long start = System.nanoTime();
+		for(int i = 0; i < n; i++) {
+			if(i % 2 == 0) {
+				fusion.handleAccData(times[i], samples[i]);
+			} else {
+				fusion.handleMagData(times[i], samples[i]);
+			}
+		}
+		long sampleNanos = (System.nanoTime() - start) / n;
+		
+		final SensorFusion replayed = new SensorFusion();
+		Thread sensors = new Thread() {
+			public void run() {
+				long begin = System.nanoTime();
+				for(int i = 0; i < n; i++) {
+					long wait = (begin + times[i] - System.nanoTime()) / 1000000;
+					if(wait > 0) {
+						try {
+							sleep(wait);
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if(i % 2 == 0) {
+						replayed.handleAccData(times[i], samples[i]);
+					} else {
+						replayed.handleMagData(times[i], samples[i]);
+					}
+				}
+			}
+		};
+		float[] rotM = new float[16];
+		int reads = 0;
+		int allocations = 0;
+		long readNanos = 0;
+		long age, ageTotal = 0, ageMax = 0;
+		sensors.start();
+		Debug.startAllocCounting();
+		Debug.resetThreadAllocCount();
+		while(sensors.isAlive()) {
+			int allocated = Debug.getThreadAllocCount();
+			long before = System.nanoTime();
+			long time = replayed.getRotM4(rotM);
+			long after = System.nanoTime();
+			allocations += Debug.getThreadAllocCount() - allocated;
+			if(time != -1) {
+				readNanos += after - before;
+				age = after - time;
+				ageTotal += age;
+				ageMax = Math.max(ageMax, age);
+				reads++;
+			}
+			Thread.sleep(40);
+		}
+		Debug.stopAllocCounting();
+		sensors.join();
+		reads = Math.max(reads, 1);
+		Log.d(TAG, n+" sensor samples: "+sampleNanos+" ns/sample to filter and compute the rotation");
+		Log.d(TAG, reads+" reads at 25 Hz: "+readNanos / reads+" ns/read, "
+				+allocations+" allocations, matrix age "+ageTotal / reads / 1000
+				+" us (max: "+ageMax / 1000+" us)");
+	}
+
+	/**
+	 * Compares <code>MPMovingAverageFilter</code> with the filter it
+	 * replaced (a float[pass][element][sample] history, a gap filled by
+	 * adding the sample once per missed period), both with 25 samples and
+	 * 3 passes of 3 elements like the sensor filters. Samples come at
+	 * 50 Hz with jitter, and in a second run every 50th sample comes after
+	 * a gap of two seconds. The largest difference between the results of
+	 * the two filters is logged as well.
+	 * @param samples number of samples to add
+	 */
+	public static void movingAverage(int samples) {
+		float[][] values = new float[samples][3];
+		long[] steady = new long[samples];
+		long[] gaps = new long[samples];
+		Random random = new Random(25);
+		long time = 0, gapTime = 0;
+		for(int i = 0; i < samples; i++) {
+			for(int j = 0; j < 3; j++) {
+				values[i][j] = (float) random.nextGaussian() * 10;
+			}
+			long step = 20000000L + random.nextInt(8000000) - 4000000;
+			time += step;
+			gapTime += i % 50 == 49 ? 2000000000L : step;
+			steady[i] = time;
+			gaps[i] = gapTime;
+		}
+		float[] result = new float[3];
+		float[] oldResult = new float[3];
+		for(int run = 0; run < 2; run++) {
+			long[] times = run == 0 ? steady : gaps;
+			MPMovingAverageFilter filter = new MPMovingAverageFilter(25, 3, 3);
+			OldMovingAverageFilter oldFilter = new OldMovingAverageFilter(25, 3, 3);
+			float diff = 0;
+			for(int i = 0; i < samples; i++) {
+				filter.addSamples(values[i], times[i]);
+				oldFilter.addSamples(values[i], times[i]);
+				filter.getResults(result);
+				oldFilter.getResults(oldResult);
+				for(int j = 0; j < 3; j++) {
+					diff = Math.max(diff, Math.abs(result[j] - oldResult[j]));
+				}
+			}
+			
+			filter = new MPMovingAverageFilter(25, 3, 3);
+			long start = System.nanoTime();
+			for(int i = 0; i < samples; i++) {
+				filter.addSamples(values[i], times[i]);
+				filter.getResults(result);
+			}
+			long nanos = System.nanoTime() - start;
+			
+			oldFilter = new OldMovingAverageFilter(25, 3, 3);
+			start = System.nanoTime();
+			for(int i = 0; i < samples; i++) {
+				oldFilter.addSamples(values[i], times[i]);
+				oldFilter.getResults(oldResult);
+			}
+			long oldNanos = System.nanoTime() - start;
+			Log.d(TAG, samples+" samples "+(run == 0 ? "at 50 Hz" : "with gaps")+": "
+					+nanos / samples+" ns/sample (was: "+oldNanos / samples
+					+" ns/sample), largest difference "+diff);
+		}
+	}
+	
+	// the moving average filter before it used a flat ring buffer, for
+	// comparison
+	private static class OldMovingAverageFilter {
+		private final int nPasses, nSamples, nElements;
+		private final float[][] lastResult;
+		private final float[][][] sampleHistory;
+		private final float mulValue;
+		private int iSamp = 0;
+		private long lastTime = 0;
+		
+		OldMovingAverageFilter(int nSamples, int nPasses, int nElements) {
+			this.nSamples = nSamples;
+			this.nPasses = nPasses;
+			this.nElements = nElements;
+			sampleHistory = new float[nPasses][nElements][nSamples];
+			lastResult = new float[nPasses][nElements];
+			mulValue = (float) (1.0 / Math.pow(nSamples, nPasses));
+		}
+		
+		void addSamples(float[] sample, long time) {
+			int nAdds = lastTime == 0 ? 1 
+					: Math.round((time - lastTime) * MPMovingAverageFilter.Frequency);
+			lastTime = time;
+			for(int i = 0; i < nAdds; i++) {
+				float toAdd;
+				for(int iPass = 0; iPass < nPasses; iPass++) {
+					for(int iElem = 0; iElem < nElements; iElem++) {
+						toAdd = iPass == 0 ? sample[iElem] : lastResult[iPass - 1][iElem];
+						lastResult[iPass][iElem] += toAdd - sampleHistory[iPass][iElem][iSamp];
+						sampleHistory[iPass][iElem][iSamp] = toAdd;
+					}
+				}
+				iSamp = iSamp + 1 == nSamples ? 0 : iSamp + 1;
+			}
+		}
+		
+		void getResults(float[] result) {
+			for(int iElem = 0; iElem < nElements; iElem++) {
+				result[iElem] = lastResult[nPasses - 1][iElem] * mulValue;
+			}
+		}
+	}
+	
+	/**
+	 * Simulates the loss of the GL context with fake GL11 contexts, that
+	 * only hand out buffer names and count calls, and checks that 
+	 * <code>GLResources</code> restores everything in the new context:
+	 * every mesh is uploaded again and draws from buffers of the new
+	 * context, the clones of a mesh share its buffers, which are deleted
+	 * with the last clone and not before, and the first material applied
+	 * sets all its attributes again. Failed checks are logged as errors.
+	 * Logs how many frames and how long the restore took with the
+	 * budget.<br><br>
+	 * This changes the material state shared with the renderer, so it
+	 * resets it when done, and the real context sets the next material in
+	 * full.
+	 * @param families number of meshes, each registered as clones like the
+	 * models of a <code>MeshCache</code>
+	 * @param clones number of clones of each mesh
+	 * @param byteBudget number of bytes to upload per frame
+	 */
+	public static void contextLoss(int families, int clones, int byteBudget) {
+		boolean intIndices = TriMesh.isIntIndicesSupported();
+		GLResources resources = new GLResources(byteBudget, Long.MAX_VALUE);
+		UploadScheduler uploads = resources.getUploads();
+		TriMesh[][] meshes = new TriMesh[families][clones];
+		for(int i = 0; i < families; i++) {
+			Box box = new Box("box"+i, 0.5f, 0.5f, 0.5f + i);
+			for(int j = 0; j < clones; j++) {
+				meshes[i][j] = box.cloneMesh("box"+i+"_"+j);
+				uploads.register(meshes[i][j]);
+			}
+		}
+		Material material = new Material();
+		material.setAmbient(0.2f, 0.2f, 0.2f, 1);
+		material.setDiffuse(0.8f, 0.1f, 0.1f, 1);
+		material.setSpecular(1, 1, 1, 1);
+		material.setEmission(0.1f, 0, 0, 1);
+		material.setShininess(64);
+		int failed = 0;
+		
+		FakeGL first = new FakeGL(1000, intIndices);
+		GL11 gl = first.create();
+		resources.contextCreated(gl);
+		while(resources.isRestoring()) {
+			resources.upload(gl);
+			resources.frameDrawn(0);
+		}
+		material.applyState(gl);
+		first.materialCalls = 0;
+		material.applyState(gl);
+		if(first.materialCalls != 0) {
+			Log.e(TAG, "Material set again in the same context: "+first.materialCalls+" calls");
+			failed++;
+		}
+		
+		// the context is lost, the new one hands out other names
+		FakeGL second = new FakeGL(2000, intIndices);
+		gl = second.create();
+		resources.contextCreated(gl);
+		if(uploads.getBuffered() != 0 || !uploads.isPending()) {
+			Log.e(TAG, "Meshes not registered again after a new context");
+			failed++;
+		}
+		long start;
+		while(resources.isRestoring()) {
+			start = System.nanoTime();
+			resources.upload(gl);
+			resources.frameDrawn(System.nanoTime() - start);
+		}
+		if(uploads.getBuffered() != families * clones) {
+			Log.e(TAG, uploads.getBuffered()+" of "+families * clones+" meshes restored");
+			failed++;
+		}
+		material.applyState(gl);
+		if(second.materialCalls != 5) {
+			Log.e(TAG, "First material in the new context made "+second.materialCalls
+					+" calls, expected 5");
+			failed++;
+		}
+		
+		int buffers = second.generated;
+		int familyBuffer;
+		for(int i = 0; i < families; i++) {
+			familyBuffer = 0;
+			for(int j = 0; j < clones; j++) {
+				second.arrayBuffer = 0;
+				meshes[i][j].draw(gl);
+				if(!meshes[i][j].hasHardwareBuffers() || second.arrayBuffer < 2000) {
+					Log.e(TAG, meshes[i][j].getName()+" does not draw from buffers of the new context");
+					failed++;
+				} else if(j == 0) {
+					familyBuffer = second.arrayBuffer;
+				} else if(second.arrayBuffer != familyBuffer) {
+					Log.e(TAG, meshes[i][j].getName()+" does not share the buffers of its family");
+					failed++;
+				}
+			}
+			// the buffers go with the last clone
+			for(int j = 0; j < clones; j++) {
+				int deleted = second.deleted;
+				meshes[i][j].freeHardwareBuffers(gl);
+				if(second.deleted != deleted && j < clones - 1) {
+					Log.e(TAG, "Buffers of box"+i+" deleted with "+(clones - j - 1)+" clones left");
+					failed++;
+				} else if(second.deleted == deleted && j == clones - 1) {
+					Log.e(TAG, "Buffers of box"+i+" not deleted with the last clone");
+					failed++;
+				}
+			}
+		}
+		if(second.deleted != buffers) {
+			Log.e(TAG, "Deleted "+second.deleted+" of "+buffers+" buffers");
+			failed++;
+		}
+		Material.resetState();
+		TriMesh.setIntIndicesSupported(intIndices);
+		Log.d(TAG, "Context loss, "+families+" meshes x "+clones+" clones: "
+				+(failed == 0 ? "restored" : failed+" checks failed")+", "+buffers
+				+" buffers in "+resources.getRestoreFrames()+" frames of at most "+byteBudget
+				+" bytes, "+resources.getRestoreNanos() / 1000+" us (longest frame: "
+				+resources.getLongestRestoreFrame() / 1000+" us)");
+	}
+	
+	// a GL11 context that hands out buffer names and counts the calls the
+	// context loss checks need, every other call does nothing
+	private static class FakeGL implements InvocationHandler {
+		private int nextBuffer;
+		private final boolean intIndices;
+		int generated = 0;
+		int deleted = 0;
+		int materialCalls = 0;
+		// the last buffer other than 0 bound to GL_ARRAY_BUFFER
+		int arrayBuffer = 0;
+		
+		FakeGL(int firstBuffer, boolean intIndices) {
+			this.nextBuffer = firstBuffer;
+			this.intIndices = intIndices;
+		}
+		
+		GL11 create() {
+			return (GL11) Proxy.newProxyInstance(GL11.class.getClassLoader(), 
+					new Class<?>[] { GL11.class }, this);
+		}
+		
+		public Object invoke(Object proxy, Method method, Object[] args) {
+			String name = method.getName();
+			if(name.equals("glGenBuffers") && args[1] instanceof int[]) {
+				int[] names = (int[]) args[1];
+				int n = (Integer) args[0];
+				for(int i = 0; i < n; i++) {
+					names[(Integer) args[2] + i] = nextBuffer++;
+				}
+				generated += n;
+			} else if(name.equals("glDeleteBuffers")) {
+				deleted += (Integer) args[0];
+			} else if(name.equals("glBindBuffer")) {
+				if((Integer) args[0] == GL11.GL_ARRAY_BUFFER && (Integer) args[1] != 0) {
+					arrayBuffer = (Integer) args[1];
+				}
+			} else if(name.startsWith("glMaterial")) {
+				materialCalls++;
+			} else if(name.equals("glGetString")) {
+				return intIndices ? "GL_OES_element_index_uint" : "";
+			}
+			Class<?> type = method.getReturnType();
+			if(type == int.class) {
+				return 0;
+			} else if(type == boolean.class) {
+				return Boolean.FALSE;
+			}
+			return null;
+		}
+	}
+}
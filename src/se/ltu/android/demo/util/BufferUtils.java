@@ -49,7 +49,7 @@ public abstract class BufferUtils {
 	 * @param size number of integers the buffer should hold
 	 * @return the newly allocated integer buffer
 	 */
-	private static IntBuffer createIntBuffer(int size) {
+	public static IntBuffer createIntBuffer(int size) {
 		ByteBuffer bb = ByteBuffer.allocateDirect(4*size);
 		bb.order(ByteOrder.nativeOrder());
 		return bb.asIntBuffer();
@@ -69,7 +69,7 @@ public abstract class BufferUtils {
 			fixedBuffer.put((int)(floatBuffer.get(i)*65536));
 		}
 		fixedBuffer.clear();
-		return null;
+		return fixedBuffer;
 	}
 	
 }
@@ -0,0 +1,113 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.util;
+
+import java.util.Arrays;
+
+/**
+ * Collects frame times over a sliding window of the most recent frames,
+ * to report frame pacing as percentiles. The median (p50) is the typical
+ * frame time, and the distance from it to the 99th percentile shows the
+ * jitter. Adding a frame time does not allocate.
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class FrameStats {
+	// ring buffer of frame times in nanoseconds
+	private final long[] times;
+	private final long[] sorted;
+	private int next = 0;
+	private int count = 0;
+	private long total = 0;
+	private boolean sortedValid = false;
+
+	/**
+	 * Creates empty statistics.
+	 * @param window number of recent frames to keep
+	 */
+	public FrameStats(int window) {
+		times = new long[Math.max(window, 1)];
+		sorted = new long[times.length];
+	}
+
+	/**
+	 * Adds the time of a frame, replacing the oldest frame if the window
+	 * is full.
+	 * @param nanos frame time in nanoseconds
+	 */
+	public void add(long nanos) {
+		if(count == times.length) {
+			total -= times[next];
+		} else {
+			count++;
+		}
+		times[next] = nanos;
+		total += nanos;
+		next = (next + 1) % times.length;
+		sortedValid = false;
+	}
+
+	/**
+	 * @param p percentile, from 0 to 100
+	 * @return the frame time below which p percent of the frames in the
+	 * window are, in nanoseconds, or 0 if there are no frames
+	 */
+	public long getPercentile(float p) {
+		if(count == 0) {
+			return 0;
+		}
+		if(!sortedValid) {
+			System.arraycopy(times, 0, sorted, 0, count);
+			Arrays.sort(sorted, 0, count);
+			sortedValid = true;
+		}
+		int i = (int) Math.ceil(p / 100 * count) - 1;
+		return sorted[Math.max(0, Math.min(i, count - 1))];
+	}
+
+	/**
+	 * @return the median frame time in nanoseconds
+	 */
+	public long getP50() {
+		return getPercentile(50);
+	}
+
+	/**
+	 * @return the 99th percentile frame time in nanoseconds
+	 */
+	public long getP99() {
+		return getPercentile(99);
+	}
+
+	/**
+	 * @return the mean frame time in nanoseconds, or 0 if there are no
+	 * frames
+	 */
+	public long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/**
+	 * @return the longest frame time in the window in nanoseconds
+	 */
+	public long getMax() {
+		return getPercentile(100);
+	}
+
+	/**
+	 * @return number of frames in the window
+	 */
+	public int getCount() {
+		return count;
+	}
+
+	/**
+	 * Removes every frame.
+	 */
+	public void clear() {
+		next = 0;
+		count = 0;
+		total = 0;
+		sortedValid = false;
+	}
+}
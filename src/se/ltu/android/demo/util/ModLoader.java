@@ -0,0 +1,234 @@
+/* SVN FILE: $Id$ */
+package se.ltu.android.demo.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.Resources;
+import android.util.Log;
+
+import se.ltu.android.demo.scene.TriMesh;
+
+/**
+ * Loads models in our TriMesh's binary formats. Mappable models (version 2)
+ * are memory mapped and handed to the TriMesh without copying, older stream
+ * models are read with <code>TriMesh.importModel</code>.<br><br>
+ * 
+ * A resource can only be mapped if it is stored uncompressed in the package
+ * (for example by passing <code>-0 mod</code> to aapt). Compressed resources
+ * are read as streams instead.
+ * 
+ * @author Åke Svedin <ake.svedin@gmail.com>
+ * @version $Revision$
+ * @lastmodified $Date$
+ */
+public class ModLoader {
+	private final static String TAG = "ModLoader";
+	
+	/**
+	 * Loads a model from a raw resource into a new TriMesh.
+	 * @param name name of the new TriMesh
+	 * @param res resources to load from
+	 * @param id resource identifier (like R.raw.whatever)
+	 * @return the new TriMesh
+	 * @throws IOException if there was an error loading the model
+	 */
+	public TriMesh loadModel(String name, Resources res, int id) throws IOException {
+		AssetFileDescriptor fd;
+		try {
+			fd = res.openRawResourceFd(id);
+		} catch (Resources.NotFoundException e) {
+			fd = null;
+		}
+		if(fd == null) {
+			// compressed resource, can not be mapped
+			return loadModel(name, res.openRawResource(id));
+		}
+		return loadModel(name, fd);
+	}
+	
+	/**
+	 * Loads a model from an uncompressed asset into a new TriMesh.
+	 * @param name name of the new TriMesh
+	 * @param fd a file descriptor for the model to be imported
+	 * @return the new TriMesh
+	 * @throws IOException if there was an error loading the model
+	 */
+	public TriMesh loadModel(String name, AssetFileDescriptor fd) throws IOException {
+		ByteBuffer data;
+		try {
+			data = map(fd);
+		} finally {
+			fd.close();
+		}
+		return loadModel(name, data);
+	}
+	
+	/**
+	 * Loads a model from a file into a new TriMesh.
+	 * @param name name of the new TriMesh
+	 * @param file model file
+	 * @return the new TriMesh
+	 * @throws IOException if there was an error loading the model
+	 */
+	public TriMesh loadModel(String name, File file) throws IOException {
+		return loadModel(name, map(file));
+	}
+	
+	/**
+	 * Loads a model in any of our formats from a stream into a new TriMesh.
+	 * A mappable model is read into a direct buffer with a bulk read.
+	 * @param name name of the new TriMesh
+	 * @param stream stream to read from, closed when done
+	 * @return the new TriMesh
+	 * @throws IOException if there was an error loading the model
+	 */
+	public TriMesh loadModel(String name, InputStream stream) throws IOException {
+		TriMesh mesh = new TriMesh(name);
+		BufferedInputStream in = new BufferedInputStream(stream, 8192);
+		try {
+			in.mark(4);
+			byte[] magic = new byte[4];
+			int read = 0;
+			while(read < 4) {
+				int n = in.read(magic, read, 4 - read);
+				if(n < 0) {
+					break;
+				}
+				read += n;
+			}
+			in.reset();
+			if(read == 4 && TriMesh.isMappedModel(ByteBuffer.wrap(magic))) {
+				mesh.importMappedModel(readFully(in));
+			} else {
+				mesh.importModel(new DataInputStream(in));
+			}
+		} finally {
+			in.close();
+		}
+		return mesh;
+	}
+	
+	private TriMesh loadModel(String name, ByteBuffer data) throws IOException {
+		TriMesh mesh = new TriMesh(name);
+		if(TriMesh.isMappedModel(data)) {
+			mesh.importMappedModel(data);
+		} else {
+			// an old stream model, the mapping is only used as a stream source
+			mesh.importModel(new DataInputStream(new ByteBufferInputStream(data)));
+		}
+		return mesh;
+	}
+	
+	/**
+	 * Memory maps an uncompressed asset as read only.
+	 * @param fd a file descriptor for the asset
+	 * @return the mapped data
+	 * @throws IOException if the asset could not be mapped
+	 */
+	public static ByteBuffer map(AssetFileDescriptor fd) throws IOException {
+		FileInputStream fis = new FileInputStream(fd.getFileDescriptor());
+		try {
+			FileChannel channel = fis.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 
+					fd.getStartOffset(), fd.getLength());
+		} finally {
+			fis.close();
+		}
+	}
+	
+	/**
+	 * Memory maps a file as read only.
+	 * @param file file to map
+	 * @return the mapped data
+	 * @throws IOException if the file could not be mapped
+	 */
+	public static ByteBuffer map(File file) throws IOException {
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel channel = fis.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} finally {
+			fis.close();
+		}
+	}
+	
+	/**
+	 * Converts a stream model to a mappable model (version 2) in the native
+	 * byte order of this device.
+	 * @param in stream model to read, closed when done
+	 * @param outputMod an output file location (like "/sdcard/whatever.mod")
+	 * @throws IOException if there was any error
+	 */
+	public static void convert(InputStream in, String outputMod) throws IOException {
+		TriMesh mesh = new TriMesh("convert");
+		try {
+			mesh.importModel(new DataInputStream(new BufferedInputStream(in, 8192)));
+		} finally {
+			in.close();
+		}
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(outputMod), 8192);
+		try {
+			mesh.exportMappedModel(out, ByteOrder.nativeOrder());
+		} finally {
+			out.close();
+		}
+		Log.d(TAG, "Converted mod to mappable mod: "+outputMod);
+	}
+	
+	// reads the rest of a stream into a direct buffer
+	static ByteBuffer readFully(InputStream in) throws IOException {
+		byte[] chunk = new byte[8192];
+		ByteBuffer buf = BufferUtils.createByteBuffer(64 * 1024);
+		int n;
+		while((n = in.read(chunk)) > 0) {
+			if(buf.remaining() < n) {
+				ByteBuffer bigger = BufferUtils.createByteBuffer(2 * buf.capacity() + n);
+				buf.flip();
+				bigger.put(buf);
+				buf = bigger;
+			}
+			buf.put(chunk, 0, n);
+		}
+		buf.flip();
+		return buf;
+	}
+	
+	// lets a DataInputStream read from a buffer
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buf;
+		
+		public ByteBufferInputStream(ByteBuffer buf) {
+			this.buf = buf.duplicate();
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if(!buf.hasRemaining()) {
+				return -1;
+			}
+			return buf.get() & 0xff;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(!buf.hasRemaining()) {
+				return -1;
+			}
+			len = Math.min(len, buf.remaining());
+			buf.get(b, off, len);
+			return len;
+		}
+	}
+}
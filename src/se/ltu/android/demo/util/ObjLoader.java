@@ -1,16 +1,15 @@
 /* SVN FILE: $Id$ */
 package se.ltu.android.demo.util;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.nio.FloatBuffer;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.IntBuffer;
 
 import android.content.res.AssetFileDescriptor;
-import android.opengl.Matrix;
 import android.util.Log;
 
 import se.ltu.android.demo.scene.TriMesh;
@@ -18,38 +17,57 @@ import se.ltu.android.demo.scene.intersection.AABBox;
 
 /**
  * A simple Obj-loader. It parses vertices, UV coordinates, normals and face descriptions.
- * It currently only works for triangulated faces.<br><br>
- * Since this model loader is quite slow and memory intensive, consider saving the resulting
- * TriMesh to a binary format by using the export method.
- * 
+ * Faces with more than three corners are split into triangle fans.<br><br>
+ * The file is read in a single pass straight from a byte buffer (a memory
+ * mapped file when possible) without creating strings, and the data is
+ * collected in arrays that grow as needed. Identical face vertices are
+ * merged with a hash table, optionally welding vertices that are closer
+ * than a tolerance (see <code>setWeldTolerance</code>).<br><br>
+ * Since OBJ files are still slower to load than our binary format, consider saving the
+ * resulting TriMesh to a binary format by using the export method.
+ *
  * @author Åke Svedin <ake.svedin@gmail.com>
  * @version $Revision$
  * @lastmodified $Date$
  */
 public class ObjLoader {
 	private final static String TAG = "ObjLoader";
+	// floats per unique face vertex: position, normal and texture coordinates
+	private final static int VERTEX_SIZE = 8;
+	private final static double[] POW10 = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10,
+		1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18
+	};
 
-	// the result will end up in these buffers
-	private CharBuffer indices;
-	private FloatBuffer vertices;
-	private FloatBuffer texcoords;
-	private FloatBuffer normals;
+	// the file being parsed
+	private ByteBuffer data;
+	private int pos;
+	private int end;
+	private int line;
 
 	// data read from the model file
-	private float[] tmpVertices;
-	private float[] tmpNormals; // normalized
-	private float[] tmpTexCoords;
+	private float[] positions;
+	private float[] normals; // normalized
+	private float[] texcoords;
+	private int nPositions;
+	private int nNormals;
+	private int nTexCoords;
 
-	// storage for face values
-	private ArrayList<FaceValues> faceSortedValues;
-	private ArrayList<FaceValues> faceValues;
+	// unique face vertices, VERTEX_SIZE floats each
+	private float[] vertexData;
+	private int nVertexData;
+	// open addressing hash table of vertex numbers + 1 (0 is a free slot)
+	// and the hash of each unique vertex, for finding duplicates
+	private int[] table;
+	private int[] hashes;
+	private float weldTolerance = 0;
+	private int[] indices;
+	private int nIndices;
 
-	// for allocating buffers
-	private int nVertices = 0;
-	private int nFaces = 0;
-	private int nTexCoords = 0;
-	private int nNormals = 0;
-	private int nVertsPerFace = 0;
+	// position, texture coordinate and normal number of each face corner
+	private int[] corners = new int[3 * 8];
+	private int[] cornerIndices = new int[8];
+	private float[] key = new float[VERTEX_SIZE];
 
 	// for bounding volume (or centering or stuff in future implementations?)
 	private float minX = 0;
@@ -59,12 +77,12 @@ public class ObjLoader {
 	private float maxY = 0;
 	private float maxZ = 0;
 
-	private int yeah = 0;
-	private int doh = 0;
+	private int unique = 0;
+	private int similar = 0;
 
 	/**
 	 * Loads a model from an OBJ-file into a new TriMesh
-	 * 
+	 *
 	 * @param name
 	 *            name of the new TriMesh
 	 * @param fd a file descriptor for the model to be imported
@@ -72,80 +90,179 @@ public class ObjLoader {
 	 * @throws IOException if there was an error loading the model
 	 */
 	public TriMesh loadModel(String name, AssetFileDescriptor fd) throws IOException {
-		BufferedReader in = new BufferedReader(new InputStreamReader(fd.createInputStream()), 8192);
-		TriMesh mesh = null;
+		ByteBuffer buf;
+		try {
+			buf = ModLoader.map(fd);
+		} catch (IOException e) {
+			// compressed asset, read it instead
+			buf = ModLoader.readFully(fd.createInputStream());
+		} finally {
+			fd.close();
+		}
+		return loadModel(name, buf);
+	}
 
-		// count occurrences first
-		count(in);
-		if (nVertices == 0) {
-			Log.e(TAG, "No vertices found in file");
-			return null;
+	/**
+	 * Loads a model from an OBJ-file into a new TriMesh. The file is
+	 * memory mapped.
+	 * @param name name of the new TriMesh
+	 * @param file OBJ-file to load
+	 * @return the new TriMesh or null if the file could not be imported
+	 * @throws IOException if there was an error loading the model
+	 */
+	public TriMesh loadModel(String name, File file) throws IOException {
+		return loadModel(name, ModLoader.map(file));
+	}
+
+	/**
+	 * Loads a model from an OBJ stream into a new TriMesh.
+	 * @param name name of the new TriMesh
+	 * @param in stream to read, closed when done
+	 * @return the new TriMesh or null if the file could not be imported
+	 * @throws IOException if there was an error loading the model
+	 */
+	public TriMesh loadModel(String name, InputStream in) throws IOException {
+		try {
+			return loadModel(name, ModLoader.readFully(in));
+		} finally {
+			in.close();
 		}
-		if (nFaces == 0) {
+	}
+
+	/**
+	 * Loads a model from OBJ data into a new TriMesh. The data is read
+	 * from its position to its limit.
+	 * @param name name of the new TriMesh
+	 * @param buf OBJ data
+	 * @return the new TriMesh or null if the data could not be imported
+	 * @throws IOException if the data could not be parsed
+	 */
+	public TriMesh loadModel(String name, ByteBuffer buf) throws IOException {
+		long start = System.nanoTime();
+		data = buf;
+		pos = buf.position();
+		end = buf.limit();
+		line = 1;
+		// a rough first guess, the arrays grow as needed
+		int guess = Math.max((end - pos) / 64, 16);
+		positions = new float[guess];
+		normals = null;
+		texcoords = null;
+		nPositions = nNormals = nTexCoords = 0;
+		vertexData = new float[guess * 2];
+		hashes = new int[guess / 3];
+		table = new int[tableSize(guess / 3)];
+		indices = new int[guess];
+		nVertexData = nIndices = 0;
+		unique = similar = 0;
+
+		try {
+			parse();
+		} finally {
+			data = null;
+		}
+
+		TriMesh mesh = null;
+		if (nPositions == 0) {
+			Log.e(TAG, "No vertices found in file");
+		} else if (nIndices == 0) {
 			Log.e(TAG, "No face descriptions found in file");
-			return null;
-		}
-		if (nVertsPerFace != 3) {
-			Log.e(TAG, "Can not parse non-triangluar faces");
-			return null;
-		}
-
-		// this is the same regardless of the cases below
-		indices = BufferUtils.createCharBuffer(nFaces * nVertsPerFace);
-		in = new BufferedReader(new InputStreamReader(fd.createInputStream()), 8192);
-		
-		if (nNormals == 0 && nTexCoords == 0) {
-			// we can directly use faces as indices
-			vertices = BufferUtils.createFloatBuffer(3 * nVertices);
-			// loads indices to index buffer and vertices to vertex buffer
-			load(in, true);
-			mesh = new TriMesh(name, vertices, indices);
 		} else {
-			// need to be more clever
-			tmpVertices = new float[3 * nVertices];
-			if (nNormals > 0) {
-				tmpNormals = new float[3 * nNormals];
-			}
-			if (nTexCoords > 0) {
-				tmpTexCoords = new float[3 * nTexCoords];
-			}
-			faceSortedValues = new ArrayList<FaceValues>(nVertices);
-			faceValues = new ArrayList<FaceValues>(nVertices);
-			
-			// loads indices to index buffer and triples to faceValues
-			// indices now points to rows in faceValues
-			load(in, false);
-			
-			int nFaceValues = faceValues.size();
-			vertices = BufferUtils.createFloatBuffer(3 * nFaceValues);
-			if(nNormals > 0) {
-				normals = BufferUtils.createFloatBuffer(3 * nFaceValues);
-			}
-			if(nTexCoords > 0) {
-				texcoords = BufferUtils.createFloatBuffer(2 * nFaceValues);
-			}
-			float[] fv_data;
-			for(int i = 0; i < faceValues.size(); i++) {
-				fv_data = faceValues.get(i).data;
-				vertices.put(fv_data, 0, 3);
-				if(nNormals > 0) {
-					normals.put(fv_data, 3, 3);
-				}
-				if(nTexCoords > 0) {
-					texcoords.put(fv_data, 6, 2);
-				}
+			mesh = createMesh(name);
+		}
+
+		// free loads of resources...
+		positions = null;
+		normals = null;
+		texcoords = null;
+		vertexData = null;
+		table = null;
+		hashes = null;
+		indices = null;
+
+		Log.d(TAG, "Unique vertices: "+unique);
+		Log.d(TAG, "Similar vertices: "+similar);
+		Log.d(TAG, "Loaded "+nIndices / 3+" triangles in "
+				+(System.nanoTime() - start) / 1000000+" ms");
+		return mesh;
+	}
+
+	/**
+	 * Sets how far apart vertices may be and still be merged into one.
+	 * With a tolerance, all values of a vertex (position, normal and
+	 * texture coordinates) are snapped to multiples of the tolerance before
+	 * they are compared, so vertices within the same grid cell are welded.
+	 * The default is 0, which merges only identical vertices.
+	 * @param tolerance weld tolerance, 0 to disable welding
+	 */
+	public void setWeldTolerance(float tolerance) {
+		weldTolerance = Math.max(tolerance, 0);
+	}
+
+	/**
+	 * @return number of unique vertices in the last loaded model
+	 */
+	public int getUniqueVertices() {
+		return unique;
+	}
+
+	/**
+	 * @return number of face corners in the last loaded model that were
+	 * merged with an earlier identical (or welded) vertex
+	 */
+	public int getSimilarVertices() {
+		return similar;
+	}
+
+	// smallest power of two that keeps the table at most half full
+	private static int tableSize(int vertices) {
+		int size = 16;
+		while(size < vertices * 2) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private TriMesh createMesh(String name) {
+		FloatBuffer vBuf = BufferUtils.createFloatBuffer(3 * nVertexData);
+		FloatBuffer nBuf = nNormals > 0 ? BufferUtils.createFloatBuffer(3 * nVertexData) : null;
+		FloatBuffer tBuf = nTexCoords > 0 ? BufferUtils.createFloatBuffer(2 * nVertexData) : null;
+		for(int i = 0; i < nVertexData; i++) {
+			int o = i * VERTEX_SIZE;
+			vBuf.put(vertexData, o, 3);
+			if(nBuf != null) {
+				nBuf.put(vertexData, o + 3, 3);
 			}
-			
-			mesh = new TriMesh(name, vertices, indices);
-			if(nNormals > 0) {
-				mesh.setNormals(normals);
+			if(tBuf != null) {
+				tBuf.put(vertexData, o + 6, 2);
 			}
-			if(nTexCoords > 0) {
-				mesh.setTexCoords(texcoords);
+		}
+		vBuf.rewind();
+		TriMesh mesh;
+		if(nVertexData > 65536) {
+			// too many for 16-bit indices, see MeshSplitter
+			Log.d(TAG, "Using 32-bit indices for "+nVertexData+" vertices");
+			IntBuffer iBuf = BufferUtils.createIntBuffer(nIndices);
+			iBuf.put(indices, 0, nIndices);
+			iBuf.rewind();
+			mesh = new TriMesh(name, vBuf, iBuf);
+		} else {
+			CharBuffer iBuf = BufferUtils.createCharBuffer(nIndices);
+			for(int i = 0; i < nIndices; i++) {
+				iBuf.put((char) indices[i]);
 			}
+			iBuf.rewind();
+			mesh = new TriMesh(name, vBuf, iBuf);
+		}
+		if(nBuf != null) {
+			nBuf.rewind();
+			mesh.setNormals(nBuf);
+		}
+		if(tBuf != null) {
+			tBuf.rewind();
+			mesh.setTexCoords(tBuf);
 		}
 
-		// create the TriMesh
 		AABBox bound = new AABBox();
 		bound.minX = minX;
 		bound.minY = minY;
@@ -154,224 +271,345 @@ public class ObjLoader {
 		bound.maxY = maxY;
 		bound.maxZ = maxZ;
 		mesh.setModelBound(bound);
-
-		// free loads of resources...
-		tmpVertices = null;
-		tmpNormals = null;
-		tmpTexCoords = null;
-		faceSortedValues = null;
-		faceValues = null;
-		
-		Log.d(TAG, "Unique vertices: "+doh);
-		Log.d(TAG, "Similar vertices: "+yeah);
 		return mesh;
 	}
 
-	/**
-	 * Count the number of vertices, indices etc that are present in an
-	 * OBJ-file. Needed to allocate buffers with a minimum capacity.
-	 * 
-	 * @param file
-	 *            target OBJ-file
-	 * @throws IOException
-	 */
-	private void count(BufferedReader in) throws IOException {
-		String line;
-		while (((line = in.readLine()) != null)) {
-			line = line.trim();
-			if (line.length() > 0) {
-				if (line.charAt(0) == 'v' && line.charAt(1) == ' ')
-					nVertices++;
-				if (line.charAt(0) == 'v' && line.charAt(1) == 't')
-					nTexCoords++;
-
-				if (line.charAt(0) == 'v' && line.charAt(1) == 'n')
-					nNormals++;
-
-				if (line.charAt(0) == 'f' && line.charAt(1) == ' ') {
-					if (nVertsPerFace == 0) {
-						nVertsPerFace = line.split("\\s+").length - 1;
-					}
-					nFaces++;
-				}
+	// parses all lines of the data
+	private void parse() throws IOException {
+		byte c, c1;
+		while(pos < end) {
+			skipSpaces();
+			if(pos >= end) {
+				break;
+			}
+			c = data.get(pos);
+			c1 = pos + 1 < end ? data.get(pos + 1) : (byte) '\n';
+			if(c == 'v' && isSpace(c1)) {
+				pos++;
+				readPosition();
+			} else if(c == 'v' && c1 == 'n') {
+				pos += 2;
+				readNormal();
+			} else if(c == 'v' && c1 == 't') {
+				pos += 2;
+				readTexCoord();
+			} else if(c == 'f' && isSpace(c1)) {
+				pos++;
+				readFace();
 			}
+			skipLine();
 		}
 	}
 
-	private void load(BufferedReader in, boolean toBuffer) throws NumberFormatException, IOException {
-		String line;
-		String[] lineSplit;
-		String[] faceSplit;
-		float[] data3f = new float[3];	// used for vertices, texcoords and normals
-		int iRawVertices = 0;
-		int iRawNormals = 0;
-		int iRawTexCoords = 0;
-		float invLength;
-		int[] tmpData = null;
-		if(!toBuffer) {
-			tmpData = new int[3];
-		}
-		FaceValues fv;
-
-		while (((line = in.readLine()) != null)) {
-			line = line.trim();
-			if (line.length() > 1) {
-				if (line.charAt(0) == 'v' && line.charAt(1) == ' ') {
-					
-					lineSplit = line.split("\\s+");
-					data3f[0] = Float.parseFloat(lineSplit[1]);
-					data3f[1] = Float.parseFloat(lineSplit[2]);
-					data3f[2] = Float.parseFloat(lineSplit[3]);
-					
-					if (iRawVertices == 0) {
-						minX = maxX = data3f[0];
-						minY = maxY = data3f[1];
-						minZ = maxZ = data3f[2];
-					} else {
-						if (data3f[0] < minX)
-							minX = data3f[0];
-						if (data3f[0] > maxX)
-							maxX = data3f[0];
-						if (data3f[1] < minY)
-							minY = data3f[1];
-						if (data3f[1] > maxY)
-							maxY = data3f[1];
-						if (data3f[2] < minZ)
-							minZ = data3f[2];
-						if (data3f[2] > maxZ)
-							maxZ = data3f[2];
-					}
-					
-					if(toBuffer) {
-						vertices.put(data3f);
-					} else {
-						tmpVertices[iRawVertices] = data3f[0];
-						tmpVertices[iRawVertices+1] = data3f[1];
-						tmpVertices[iRawVertices+2] = data3f[2];
-						iRawVertices += 3;
-					}
-					
-				}
-				else if (line.charAt(0) == 'v' && line.charAt(1) == 't') {
-					
-					if(!toBuffer) {
-					
-						lineSplit = line.split("\\s+");
-						data3f[0] = Float.parseFloat(lineSplit[1]);
-						data3f[1] = Float.parseFloat(lineSplit[2]);
-						
-						tmpTexCoords[iRawTexCoords] = data3f[0];
-						tmpTexCoords[iRawTexCoords+1] = data3f[1];
-						iRawVertices += 2;
-					
-					}
-					
-				}
-				else if (line.charAt(0) == 'v' && line.charAt(1) == 'n') {
-					
-					if(!toBuffer) {
-					
-						lineSplit = line.split("\\s+");
-						data3f[0] = Float.parseFloat(lineSplit[1]);
-						data3f[1] = Float.parseFloat(lineSplit[2]);
-						data3f[2] = Float.parseFloat(lineSplit[3]);
-					
-						// normalize... 
-						invLength =  1/Matrix.length(data3f[0], data3f[1], data3f[2]);
-						data3f[0] *= invLength;
-						data3f[1] *= invLength;
-						data3f[2] *= invLength;
-					
-						tmpNormals[iRawNormals] = data3f[0];
-						tmpNormals[iRawNormals+1] = data3f[1];
-						tmpNormals[iRawNormals+2] = data3f[2];
-						iRawNormals += 3;
-					}
-					
+	private void readPosition() throws IOException {
+		float x = parseFloat();
+		float y = parseFloat();
+		float z = parseFloat();
+		if (nPositions == 0) {
+			minX = maxX = x;
+			minY = maxY = y;
+			minZ = maxZ = z;
+		} else {
+			if (x < minX)
+				minX = x;
+			if (x > maxX)
+				maxX = x;
+			if (y < minY)
+				minY = y;
+			if (y > maxY)
+				maxY = y;
+			if (z < minZ)
+				minZ = z;
+			if (z > maxZ)
+				maxZ = z;
+		}
+		positions = ensure(positions, nPositions * 3 + 3);
+		positions[nPositions * 3] = x;
+		positions[nPositions * 3 + 1] = y;
+		positions[nPositions * 3 + 2] = z;
+		nPositions++;
+	}
+
+	private void readNormal() throws IOException {
+		float x = parseFloat();
+		float y = parseFloat();
+		float z = parseFloat();
+		// normalize...
+		float length = (float) Math.sqrt(x*x + y*y + z*z);
+		if(length > 0) {
+			x /= length;
+			y /= length;
+			z /= length;
+		}
+		if(normals == null) {
+			normals = new float[Math.max(positions.length, 48)];
+		}
+		normals = ensure(normals, nNormals * 3 + 3);
+		normals[nNormals * 3] = x;
+		normals[nNormals * 3 + 1] = y;
+		normals[nNormals * 3 + 2] = z;
+		nNormals++;
+	}
+
+	private void readTexCoord() throws IOException {
+		float s = parseFloat();
+		float t = parseFloat();
+		if(texcoords == null) {
+			texcoords = new float[Math.max(positions.length, 32)];
+		}
+		texcoords = ensure(texcoords, nTexCoords * 2 + 2);
+		texcoords[nTexCoords * 2] = s;
+		texcoords[nTexCoords * 2 + 1] = t;
+		nTexCoords++;
+	}
+
+	// reads the corners of a face and adds it as a triangle fan
+	private void readFace() throws IOException {
+		int n = 0;
+		while(true) {
+			skipSpaces();
+			if(pos >= end || isLineEnd(data.get(pos))) {
+				break;
+			}
+			corners = ensure(corners, n * 3 + 3);
+			cornerIndices = ensure(cornerIndices, n + 1);
+			// v, v/t, v//n or v/t/n
+			corners[n*3] = resolve(parseInt(), nPositions);
+			corners[n*3+1] = -1;
+			corners[n*3+2] = -1;
+			if(pos < end && data.get(pos) == '/') {
+				pos++;
+				if(pos < end && data.get(pos) != '/') {
+					corners[n*3+1] = resolve(parseInt(), nTexCoords);
 				}
-				else if (line.charAt(0) == 'f' && line.charAt(1) == ' ') {
-					
-					// avoid unnecessary NumberFormatExpection
-					line = line.replace("//", "/0/");
-					lineSplit = line.split("\\s+");
-					
-					// go through each face triangle data
-					for(int i = 1; i < 4; i++) {
-						// faceSplit = "vertex/texcoord/normal"
-						faceSplit = lineSplit[i].split("/");
-						
-						if(toBuffer) {
-							indices.put((char) (Integer.parseInt(faceSplit[0])-1));
-						} else {
-							tmpData[0] = 3 * (Integer.parseInt(faceSplit[0]) - 1);
-							tmpData[1] = 2 * (Integer.parseInt(faceSplit[1]) - 1);
-							tmpData[2] = 3 * (Integer.parseInt(faceSplit[2]) - 1);
-							fv = new FaceValues();
-							fv.data[0] = tmpVertices[tmpData[0]];
-							fv.data[1] = tmpVertices[tmpData[0]+1];
-							fv.data[2] = tmpVertices[tmpData[0]+2];
-							if(tmpNormals != null) {
-								fv.data[3] = tmpNormals[tmpData[2]];
-								fv.data[4] = tmpNormals[tmpData[2]+1];
-								fv.data[5] = tmpNormals[tmpData[2]+2];
-							}
-							if(tmpTexCoords != null) {
-								fv.data[6] = tmpTexCoords[tmpData[1]];
-								fv.data[7] = tmpTexCoords[tmpData[1]+1];
-							}
-							indices.put(addVertex(fv));
-						}
-					}
+				if(pos < end && data.get(pos) == '/') {
+					pos++;
+					corners[n*3+2] = resolve(parseInt(), nNormals);
 				}
-				
-			} // if (line.length() > 0)
-		} // while (((line = in.readLine()) != null));
-	} // load(BufferedReader in)
-
-	private char addVertex(FaceValues values) {
-		// find the vertex with binary search
-		int i = Collections.binarySearch(faceSortedValues, values);
-		if (i < 0) {
-			// the vertex was not found and can be inserted
-			// at position -(i + 1)
-			faceSortedValues.add(-(i + 1), values);
-			values.index = (char)faceValues.size();
-			faceValues.add(values);
-			doh++;
-			return values.index;
-		}
-		yeah++;
-		return faceSortedValues.get(i).index;
+			}
+			n++;
+		}
+		if(n < 3) {
+			throw new IOException("Face with less than three corners on line "+line);
+		}
+		for(int i = 0; i < n; i++) {
+			cornerIndices[i] = addVertex(corners[i*3], corners[i*3+1], corners[i*3+2]);
+		}
+		indices = ensure(indices, nIndices + (n - 2) * 3);
+		for(int i = 1; i + 1 < n; i++) {
+			indices[nIndices++] = cornerIndices[0];
+			indices[nIndices++] = cornerIndices[i];
+			indices[nIndices++] = cornerIndices[i+1];
+		}
 	}
 
-	private class FaceValues implements Comparable<FaceValues> {
-		/*
-		 * Data array is structured as 
-		 * 1. Vertex (3 separate x,y,z coordinates)
-		 * 2. Normal (3 separate x,y,z coordinates)
-		 * 3. Texture Coordinates (2 separate s,t coordinates)
-		 */
-		float[] data;
-		char index;
-
-		/**
-		 * 
-		 */
-		public FaceValues() {
-			data = new float[8];
-		}
-
-		@Override
-		public int compareTo(FaceValues other) {
-			for (int i = 0; i < data.length; i++) {
-				if (this.data[i] < other.data[i]) {
-					return -1;
-				}
-				if (this.data[i] > other.data[i]) {
-					return 1;
+	// OBJ numbers from 1, and negative numbers count from the end
+	private int resolve(int number, int count) throws IOException {
+		int index = number < 0 ? count + number : number - 1;
+		if(index < 0 || index >= count) {
+			throw new IOException("Invalid face reference "+number+" on line "+line);
+		}
+		return index;
+	}
+
+	// returns the number of the unique vertex with these values
+	private int addVertex(int position, int texcoord, int normal) {
+		key[0] = positions[position * 3];
+		key[1] = positions[position * 3 + 1];
+		key[2] = positions[position * 3 + 2];
+		if(normal >= 0) {
+			key[3] = normals[normal * 3];
+			key[4] = normals[normal * 3 + 1];
+			key[5] = normals[normal * 3 + 2];
+		} else {
+			key[3] = key[4] = key[5] = 0;
+		}
+		if(texcoord >= 0) {
+			key[6] = texcoords[texcoord * 2];
+			key[7] = texcoords[texcoord * 2 + 1];
+		} else {
+			key[6] = key[7] = 0;
+		}
+
+		if(weldTolerance > 0) {
+			// snap to the weld grid, so close vertices get the same values
+			for(int i = 0; i < VERTEX_SIZE; i++) {
+				key[i] = Math.round(key[i] / weldTolerance) * weldTolerance;
+			}
+		}
+
+		// find the vertex in the hash table, with linear probing
+		int hash = hash();
+		int mask = table.length - 1;
+		int slot = hash & mask;
+		int vertex;
+		while((vertex = table[slot] - 1) >= 0) {
+			if(hashes[vertex] == hash && equalsKey(vertex)) {
+				similar++;
+				return vertex;
+			}
+			slot = (slot + 1) & mask;
+		}
+		// the vertex was not found and is added in the free slot
+		vertex = nVertexData++;
+		vertexData = ensure(vertexData, nVertexData * VERTEX_SIZE);
+		System.arraycopy(key, 0, vertexData, vertex * VERTEX_SIZE, VERTEX_SIZE);
+		hashes = ensure(hashes, nVertexData);
+		hashes[vertex] = hash;
+		table[slot] = vertex + 1;
+		if(nVertexData * 2 > table.length) {
+			rehash(table.length * 2);
+		}
+		unique++;
+		return vertex;
+	}
+
+	// hash of the bits of the key, with -0 and 0 treated as equal
+	private int hash() {
+		int h = 0;
+		for(int i = 0; i < VERTEX_SIZE; i++) {
+			h = 31 * h + Float.floatToIntBits(key[i] + 0.0f);
+		}
+		// spread the bits, since the low bits select the slot
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+		return h;
+	}
+
+	private boolean equalsKey(int vertex) {
+		int o = vertex * VERTEX_SIZE;
+		for (int i = 0; i < VERTEX_SIZE; i++) {
+			if (key[i] != vertexData[o+i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void rehash(int size) {
+		table = new int[size];
+		int mask = size - 1;
+		int slot;
+		for(int vertex = 0; vertex < nVertexData; vertex++) {
+			slot = hashes[vertex] & mask;
+			while(table[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = vertex + 1;
+		}
+	}
+
+	// parses a decimal number like -12.5e-3 without creating a string
+	private float parseFloat() throws IOException {
+		skipSpaces();
+		boolean negative = false;
+		if(pos < end && (data.get(pos) == '-' || data.get(pos) == '+')) {
+			negative = data.get(pos) == '-';
+			pos++;
+		}
+		long mantissa = 0;
+		int exponent = 0;
+		int digits = 0;
+		byte c;
+		while(pos < end && (c = data.get(pos)) >= '0' && c <= '9') {
+			if(mantissa < 100000000000000000L) {
+				mantissa = mantissa * 10 + (c - '0');
+			} else {
+				exponent++;
+			}
+			digits++;
+			pos++;
+		}
+		if(pos < end && data.get(pos) == '.') {
+			pos++;
+			while(pos < end && (c = data.get(pos)) >= '0' && c <= '9') {
+				if(mantissa < 100000000000000000L) {
+					mantissa = mantissa * 10 + (c - '0');
+					exponent--;
 				}
+				digits++;
+				pos++;
 			}
-			return 0;
 		}
+		if(digits == 0) {
+			throw new IOException("Invalid number on line "+line);
+		}
+		if(pos < end && (data.get(pos) == 'e' || data.get(pos) == 'E')) {
+			pos++;
+			exponent += parseInt();
+		}
+		double value = mantissa;
+		if(exponent < 0) {
+			value /= pow10(-exponent);
+		} else if(exponent > 0) {
+			value *= pow10(exponent);
+		}
+		return (float) (negative ? -value : value);
+	}
+
+	private static double pow10(int exponent) {
+		return exponent < POW10.length ? POW10[exponent] : Math.pow(10, exponent);
+	}
+
+	// parses an integer without creating a string
+	private int parseInt() throws IOException {
+		boolean negative = false;
+		if(pos < end && (data.get(pos) == '-' || data.get(pos) == '+')) {
+			negative = data.get(pos) == '-';
+			pos++;
+		}
+		int value = 0;
+		int start = pos;
+		byte c;
+		while(pos < end && (c = data.get(pos)) >= '0' && c <= '9') {
+			value = value * 10 + (c - '0');
+			pos++;
+		}
+		if(pos == start) {
+			throw new IOException("Invalid number on line "+line);
+		}
+		return negative ? -value : value;
+	}
+
+	private void skipSpaces() {
+		while(pos < end && isSpace(data.get(pos))) {
+			pos++;
+		}
+	}
+
+	// skips the rest of the line, including comments and unknown statements
+	private void skipLine() {
+		while(pos < end && data.get(pos) != '\n') {
+			pos++;
+		}
+		pos++;
+		line++;
+	}
+
+	private static boolean isSpace(byte c) {
+		return c == ' ' || c == '\t' || c == '\r';
+	}
+
+	private static boolean isLineEnd(byte c) {
+		return c == '\n' || c == '#';
+	}
+
+	private static float[] ensure(float[] array, int size) {
+		if(array.length >= size) {
+			return array;
+		}
+		float[] bigger = new float[Math.max(array.length * 2, size)];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
+	}
+
+	private static int[] ensure(int[] array, int size) {
+		if(array.length >= size) {
+			return array;
+		}
+		int[] bigger = new int[Math.max(array.length * 2, size)];
+		System.arraycopy(array, 0, bigger, 0, array.length);
+		return bigger;
 	}
-}
\ No newline at end of file
+}